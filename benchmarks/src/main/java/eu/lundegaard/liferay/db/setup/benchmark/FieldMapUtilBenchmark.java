@@ -0,0 +1,79 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2020 Lundegaard a.s.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package eu.lundegaard.liferay.db.setup.benchmark;
+
+import eu.lundegaard.liferay.db.setup.core.util.FieldMapUtil;
+import eu.lundegaard.liferay.db.setup.domain.TitleTranslation;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Title maps of pages, articles and categories, the site default locale comes from the in-memory portal.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class FieldMapUtilBenchmark {
+
+    private static final String[] LOCALES = {"de_DE", "cs_CZ", "fr_FR", "es_ES", "it_IT", "ja", "pt_BR", "nl_NL"};
+
+    @Param({"0", "2", "8"})
+    private int translations;
+
+    private List<TitleTranslation> titleTranslations;
+
+    @Setup
+    public void prepare() {
+        InMemoryServices.install();
+        titleTranslations = new ArrayList<>();
+        for (int i = 0; i < translations; i++) {
+            TitleTranslation translation = new TitleTranslation();
+            translation.setLocale(LOCALES[i % LOCALES.length]);
+            translation.setTitleText("Title " + i);
+            titleTranslations.add(translation);
+        }
+    }
+
+    @Benchmark
+    public Map<Locale, String> getTitleMap() {
+        return FieldMapUtil.getTitleMap(titleTranslations, 2, "Title", "benchmark");
+    }
+}
@@ -0,0 +1,142 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2020 Lundegaard a.s.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package eu.lundegaard.liferay.db.setup.benchmark;
+
+import com.liferay.portal.kernel.bean.BeanLocator;
+import com.liferay.portal.kernel.bean.PortalBeanLocatorUtil;
+import com.liferay.portal.kernel.service.ClassNameLocalService;
+import com.liferay.portal.kernel.util.Portal;
+import com.liferay.portal.kernel.util.PortalUtil;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * In-memory stand-ins of the Liferay services used by the benchmarked code, registered behind the static
+ * {@code *LocalServiceUtil} and {@link PortalUtil} facades. A stand-in is a proxy of the service interface which
+ * delegates to the public method of the same signature of a plain object, other methods of the interface throw
+ * {@link UnsupportedOperationException}, so that a benchmark does not silently measure an unexpected call.
+ * <p>
+ * Only services of the portal kernel can be registered this way. Services of modules, e.g. journal or dynamic data
+ * mapping, are looked up by their facades through OSGi service trackers, which do not exist outside of the portal.
+ */
+public final class InMemoryServices {
+
+    private static final Map<String, Object> SERVICES = new ConcurrentHashMap<>();
+
+    private static volatile boolean installed;
+
+    private InMemoryServices() {
+
+    }
+
+    /**
+     * Registers the bean locator and the portal stand-in, the services are looked up lazily by their facades.
+     */
+    public static synchronized void install() {
+        if (installed) {
+            return;
+        }
+        register(ClassNameLocalService.class, new ClassNames());
+        PortalBeanLocatorUtil.setBeanLocator(proxy(BeanLocator.class, new Beans()));
+        new PortalUtil().setPortal(proxy(Portal.class, new SitePortal()));
+        installed = true;
+    }
+
+    /**
+     * @param serviceInterface interface the facade looks the service up by
+     * @param implementation object with the implemented methods of the interface
+     */
+    public static <T> void register(final Class<T> serviceInterface, final Object implementation) {
+        SERVICES.put(serviceInterface.getName(), proxy(serviceInterface, implementation));
+    }
+
+    static <T> T proxy(final Class<T> type, final Object implementation) {
+        Object proxy = Proxy.newProxyInstance(InMemoryServices.class.getClassLoader(), new Class<?>[] {type},
+                (instance, method, args) -> {
+                    Method target;
+                    try {
+                        target = implementation.getClass().getMethod(method.getName(), method.getParameterTypes());
+                    } catch (NoSuchMethodException e) {
+                        throw new UnsupportedOperationException(type.getSimpleName() + "." + method.getName()
+                                + " is not implemented by the in-memory service");
+                    }
+                    try {
+                        return target.invoke(implementation, args);
+                    } catch (InvocationTargetException e) {
+                        throw e.getCause();
+                    }
+                });
+        return type.cast(proxy);
+    }
+
+    /**
+     * Locates the registered services by the name of their interface.
+     */
+    public static final class Beans {
+
+        public ClassLoader getClassLoader() {
+            return InMemoryServices.class.getClassLoader();
+        }
+
+        public Object locate(final String name) {
+            Object service = SERVICES.get(name);
+            if (service == null) {
+                throw new UnsupportedOperationException("No in-memory service " + name);
+            }
+            return service;
+        }
+    }
+
+    /**
+     * Assigns IDs to class names on first use, as the portal does.
+     */
+    public static final class ClassNames {
+
+        private final Map<String, Long> ids = new ConcurrentHashMap<>();
+        private final AtomicLong nextId = new AtomicLong(20000);
+
+        public long getClassNameId(final String value) {
+            return ids.computeIfAbsent(value, name -> nextId.incrementAndGet());
+        }
+
+        public long getClassNameId(final Class<?> clazz) {
+            return getClassNameId(clazz.getName());
+        }
+    }
+
+    /**
+     * Every site has the same default locale.
+     */
+    public static final class SitePortal {
+
+        public Locale getSiteDefaultLocale(final long groupId) {
+            return Locale.US;
+        }
+    }
+}
@@ -0,0 +1,111 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2020 Lundegaard a.s.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package eu.lundegaard.liferay.db.setup.benchmark;
+
+import eu.lundegaard.liferay.db.setup.MarshallUtil;
+import eu.lundegaard.liferay.db.setup.domain.ObjectFactory;
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.util.concurrent.TimeUnit;
+import javax.xml.XMLConstants;
+import javax.xml.bind.JAXBContext;
+import javax.xml.bind.Unmarshaller;
+import javax.xml.parsers.SAXParserFactory;
+import javax.xml.transform.sax.SAXSource;
+import javax.xml.transform.stream.StreamSource;
+import javax.xml.validation.SchemaFactory;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.xml.sax.InputSource;
+
+/**
+ * Per-file parse cost of the small setup files an upgrade step usually loads. The fresh benchmarks create the JAXB
+ * context, SAX parser factory and, when validating, the compiled XSD for every file, as {@link MarshallUtil} did before
+ * it cached them. The cached benchmarks call {@link MarshallUtil}, which reuses them and pools the unmarshallers.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class PerFileUnmarshallBenchmark {
+
+    private static final String XSD_RESOURCE = "setup_definition-1.0.xsd";
+
+    @Param({"10", "100"})
+    private int entities;
+
+    private byte[] xml;
+
+    @Setup
+    public void generate() {
+        xml = SetupGenerator.generate(entities);
+    }
+
+    @Benchmark
+    public Object fresh() throws Exception {
+        return freshUnmarshaller().unmarshal(freshSource());
+    }
+
+    @Benchmark
+    public Object freshValidated() throws Exception {
+        Unmarshaller unmarshaller = freshUnmarshaller();
+        try (InputStream schema = MarshallUtil.class.getClassLoader().getResourceAsStream(XSD_RESOURCE)) {
+            unmarshaller.setSchema(SchemaFactory.newInstance(XMLConstants.W3C_XML_SCHEMA_NS_URI)
+                    .newSchema(new StreamSource(schema)));
+        }
+        return unmarshaller.unmarshal(freshSource());
+    }
+
+    @Benchmark
+    public Object cached() throws Exception {
+        return MarshallUtil.unmarshall(new ByteArrayInputStream(xml));
+    }
+
+    @Benchmark
+    public Object cachedValidated() throws Exception {
+        return MarshallUtil.unmarshall(new ByteArrayInputStream(xml), true);
+    }
+
+    private static Unmarshaller freshUnmarshaller() throws Exception {
+        ClassLoader cl = ObjectFactory.class.getClassLoader();
+        return JAXBContext.newInstance(ObjectFactory.class.getPackage().getName(), cl).createUnmarshaller();
+    }
+
+    private SAXSource freshSource() throws Exception {
+        SAXParserFactory spf = SAXParserFactory.newInstance();
+        spf.setNamespaceAware(true);
+        return new SAXSource(spf.newSAXParser().getXMLReader(), new InputSource(new ByteArrayInputStream(xml)));
+    }
+}
@@ -0,0 +1,111 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2020 Lundegaard a.s.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package eu.lundegaard.liferay.db.setup.benchmark;
+
+import eu.lundegaard.liferay.db.setup.core.util.ResolutionCache;
+import eu.lundegaard.liferay.db.setup.core.util.ResolverUtil;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Placeholder resolution in an article content of about 20 kB. Class name placeholders are resolved by the in-memory
+ * class name service, every tenth placeholder is unknown and kept as it is.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ResolverUtilBenchmark {
+
+    private static final int CONTENT_LENGTH = 20_000;
+    private static final String[] CLASS_NAMES = {
+        "com.liferay.journal.model.JournalArticle", "com.liferay.portal.kernel.model.Layout",
+        "com.liferay.portal.kernel.model.Group", "com.liferay.portal.kernel.model.User",
+        "com.liferay.asset.kernel.model.AssetEntry", "com.liferay.document.library.kernel.model.DLFileEntry"};
+
+    @Param({"0", "10", "100"})
+    private int placeholders;
+
+    /**
+     * Whether the run-scoped resolution cache is enabled, as it is during a setup.
+     */
+    @Param({"false", "true"})
+    private boolean cached;
+
+    private String content;
+
+    @Setup
+    public void prepare() {
+        InMemoryServices.install();
+        if (cached) {
+            ResolutionCache.start();
+        }
+        StringBuilder builder = new StringBuilder(CONTENT_LENGTH + placeholders * 64);
+        int textLength = CONTENT_LENGTH / (placeholders + 1);
+        for (int i = 0; i <= placeholders; i++) {
+            appendText(builder, textLength);
+            if (i == placeholders) {
+                break;
+            }
+            if (i % 10 == 9) {
+                builder.append("{{$UNKNOWN-PLACEHOLDER=").append(i).append("$}}");
+            } else {
+                builder.append("{{$CLASS-ID-BY-NAME=").append(CLASS_NAMES[i % CLASS_NAMES.length]).append("$}}");
+            }
+        }
+        content = builder.toString();
+    }
+
+    @TearDown
+    public void stopCache() {
+        if (cached) {
+            ResolutionCache.stop();
+        }
+    }
+
+    @Benchmark
+    public String lookupAll() {
+        return ResolverUtil.lookupAll(1, 2, 3, content, "benchmark");
+    }
+
+    private static void appendText(final StringBuilder builder, final int length) {
+        String text = "<p>Lorem ipsum dolor sit amet, consectetur adipiscing elit.</p>";
+        for (int appended = 0; appended < length; appended += text.length()) {
+            builder.append(text);
+        }
+    }
+}
@@ -0,0 +1,201 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2020 Lundegaard a.s.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package eu.lundegaard.liferay.db.setup.benchmark;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+
+/**
+ * Generates synthetic setup files of a given number of entities. A tenth of the entities are roles, a tenth
+ * organizations, four tenths users with a role each, and the rest are pages and articles spread over sites of at most
+ * {@value #ENTITIES_PER_SITE} pages and articles. The generated files are valid against the setup XSD.
+ */
+public final class SetupGenerator {
+
+    public static final int SMALL = 1_000;
+    public static final int MEDIUM = 10_000;
+    public static final int LARGE = 100_000;
+
+    private static final String NAMESPACE = "http://www.lundegaard.eu/liferay/setup";
+    private static final int ENTITIES_PER_SITE = 200;
+
+    private SetupGenerator() {
+
+    }
+
+    /**
+     * Writes a generated setup to a file, e.g. to run it against a real portal.
+     */
+    public static void main(final String[] args) throws IOException, XMLStreamException {
+        if (args.length != 2) {
+            throw new IllegalArgumentException("Usage: SetupGenerator <number of entities> <setup XML file>");
+        }
+        try (OutputStream out = new BufferedOutputStream(new FileOutputStream(args[1]))) {
+            generate(Integer.parseInt(args[0]), out);
+        }
+    }
+
+    /**
+     * @param entities number of entities of the setup
+     * @return UTF-8 encoded setup XML
+     */
+    public static byte[] generate(final int entities) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(entities * 256);
+        try {
+            generate(entities, out);
+        } catch (XMLStreamException e) {
+            throw new IllegalStateException("Cannot generate a setup of " + entities + " entities", e);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * @param entities number of entities of the setup
+     * @param out stream the UTF-8 encoded setup XML is written to, not closed by this method
+     */
+    public static void generate(final int entities, final OutputStream out) throws XMLStreamException {
+        int roles = Math.max(1, entities / 10);
+        int organizations = entities / 10;
+        int users = entities * 4 / 10;
+        int siteEntities = Math.max(0, entities - roles - organizations - users);
+
+        XMLStreamWriter writer = XMLOutputFactory.newInstance().createXMLStreamWriter(out, "UTF-8");
+        writer.writeStartDocument("UTF-8", "1.0");
+        writer.setDefaultNamespace(NAMESPACE);
+        writer.writeStartElement(NAMESPACE, "setup");
+        writer.writeDefaultNamespace(NAMESPACE);
+
+        writer.writeStartElement(NAMESPACE, "configuration");
+        writeText(writer, "runasuser", "test@liferay.com");
+        writer.writeEndElement();
+
+        writer.writeStartElement(NAMESPACE, "roles");
+        for (int i = 0; i < roles; i++) {
+            writer.writeEmptyElement(NAMESPACE, "role");
+            writer.writeAttribute("name", roleName(i));
+        }
+        writer.writeEndElement();
+
+        if (users > 0) {
+            writer.writeStartElement(NAMESPACE, "users");
+            for (int i = 0; i < users; i++) {
+                writeUser(writer, i, roleName(i % roles));
+            }
+            writer.writeEndElement();
+        }
+
+        if (siteEntities > 0) {
+            writer.writeStartElement(NAMESPACE, "sites");
+            for (int first = 0; first < siteEntities; first += ENTITIES_PER_SITE) {
+                writeSite(writer, first / ENTITIES_PER_SITE, Math.min(ENTITIES_PER_SITE, siteEntities - first));
+            }
+            writer.writeEndElement();
+        }
+
+        if (organizations > 0) {
+            writer.writeStartElement(NAMESPACE, "organizations");
+            for (int i = 0; i < organizations; i++) {
+                writer.writeEmptyElement(NAMESPACE, "organization");
+                writer.writeAttribute("name", "Organization " + i);
+            }
+            writer.writeEndElement();
+        }
+
+        writer.writeEndElement();
+        writer.writeEndDocument();
+        writer.flush();
+        writer.close();
+    }
+
+    private static void writeUser(final XMLStreamWriter writer, final int index, final String role)
+            throws XMLStreamException {
+        writer.writeStartElement(NAMESPACE, "user");
+        writer.writeAttribute("screenName", "user" + index);
+        writer.writeAttribute("emailAddress", "user" + index + "@example.com");
+        writer.writeAttribute("password", "password" + index);
+        writer.writeAttribute("firstName", "First" + index);
+        writer.writeAttribute("lastName", "Last" + index);
+        writer.writeEmptyElement(NAMESPACE, "role");
+        writer.writeAttribute("name", role);
+        writer.writeEndElement();
+    }
+
+    /**
+     * Half of the entities of a site are pages, the other half articles.
+     */
+    private static void writeSite(final XMLStreamWriter writer, final int index, final int entities)
+            throws XMLStreamException {
+        int pages = (entities + 1) / 2;
+        int articles = entities - pages;
+        writer.writeStartElement(NAMESPACE, "site");
+        writer.writeAttribute("name", "Site " + index);
+        writer.writeAttribute("site-friendly-url", "/site-" + index);
+
+        writer.writeStartElement(NAMESPACE, "public-pages");
+        for (int i = 0; i < pages; i++) {
+            writer.writeStartElement(NAMESPACE, "page");
+            writer.writeAttribute("name", "Page " + i);
+            writer.writeAttribute("friendlyURL", "/page-" + i);
+            writeTitleTranslation(writer, "Page " + i);
+            writer.writeEndElement();
+        }
+        writer.writeEndElement();
+
+        for (int i = 0; i < articles; i++) {
+            writer.writeStartElement(NAMESPACE, "article");
+            writer.writeAttribute("articleId", "ARTICLE-" + index + "-" + i);
+            writer.writeAttribute("title", "Article " + i);
+            writer.writeAttribute("path", "articles/article-" + i + ".xml");
+            writer.writeAttribute("article-structure-key", "BASIC-WEB-CONTENT");
+            writer.writeAttribute("article-template-key", "BASIC-WEB-CONTENT");
+            writeTitleTranslation(writer, "Article " + i);
+            writer.writeEndElement();
+        }
+        writer.writeEndElement();
+    }
+
+    private static void writeTitleTranslation(final XMLStreamWriter writer, final String title)
+            throws XMLStreamException {
+        writer.writeEmptyElement(NAMESPACE, "title-translation");
+        writer.writeAttribute("locale", "de_DE");
+        writer.writeAttribute("title-text", title + " (de)");
+    }
+
+    private static void writeText(final XMLStreamWriter writer, final String element, final String text)
+            throws XMLStreamException {
+        writer.writeStartElement(NAMESPACE, element);
+        writer.writeCharacters(text);
+        writer.writeEndElement();
+    }
+
+    private static String roleName(final int index) {
+        return "Role " + index;
+    }
+}
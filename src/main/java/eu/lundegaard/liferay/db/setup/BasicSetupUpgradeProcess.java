@@ -27,10 +27,23 @@ import com.liferay.portal.kernel.log.Log;
 import com.liferay.portal.kernel.log.LogFactoryUtil;
 import com.liferay.portal.kernel.upgrade.UpgradeException;
 import com.liferay.portal.kernel.upgrade.UpgradeProcess;
-import java.io.FileNotFoundException;
+import eu.lundegaard.liferay.db.setup.core.util.ConcurrencyUtil;
+import eu.lundegaard.liferay.db.setup.core.util.SetupJournal;
+import eu.lundegaard.liferay.db.setup.domain.Setup;
+import java.io.BufferedInputStream;
+import java.io.IOException;
 import java.io.InputStream;
+import java.net.URL;
+import java.security.DigestInputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
 import javax.xml.bind.JAXBException;
 import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.stream.XMLStreamException;
 import org.xml.sax.SAXException;
 
 /**
@@ -52,23 +65,125 @@ public abstract class BasicSetupUpgradeProcess extends UpgradeProcess {
     public final void upgrade() throws UpgradeException {
 
         String[] fileNames = getSetupFileNames();
-        for (String fileName : fileNames) {
-            LOG.info("Starting upgrade process. Filename: " + fileName);
+        if (isStreamingEnabled()) {
+            for (String fileName : fileNames) {
+                LOG.info("Starting upgrade process. Filename: " + fileName);
+                setupStreaming(fileName);
+                LOG.info("Finished upgrade process. Filename: " + fileName);
+            }
+            return;
+        }
+
+        // all files are parsed at once, they are still set up one by one in the declared order
+        boolean validate = isValidationEnabled();
+        Set<String> missingFileNames = ConcurrentHashMap.newKeySet();
+        String[] checksums = new String[fileNames.length];
+        List<Callable<Setup>> parsers = new ArrayList<>();
+        for (int i = 0; i < fileNames.length; i++) {
+            int index = i;
+            parsers.add(() -> parse(fileNames[index], validate, missingFileNames, checksums, index));
+        }
+        List<Setup> setups;
+        try {
+            setups = ConcurrencyUtil.invokeAll(parsers, LiferaySetup.getParserParallelism(), "setup-parser");
+        } catch (ExecutionException e) {
+            throw new UpgradeException(e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new UpgradeException(e);
+        }
 
-            InputStream is = BasicSetupUpgradeProcess.class.getClassLoader().getResourceAsStream(fileName);
+        for (int i = 0; i < fileNames.length; i++) {
+            String fileName = fileNames[i];
+            LOG.info("Starting upgrade process. Filename: " + fileName);
 
-            if (is == null) {
+            if (missingFileNames.contains(fileName)) {
                 throw new UpgradeException("XML configuration not found: " + fileName);
             }
-            try {
-                LiferaySetup.setup(is);
-            } catch (FileNotFoundException | ParserConfigurationException | JAXBException | SAXException e) {
-                e.printStackTrace();
+            Setup setup = setups.get(i);
+            if (setup != null) {
+                LiferaySetup.setup(setup, checksums[i]);
+                setups.set(i, null);
             }
             LOG.info("Finished upgrade process. Filename: " + fileName);
         }
     }
 
+    private static Setup parse(final String fileName, final boolean validate, final Set<String> missingFileNames,
+            final String[] checksums, final int index) throws UpgradeException {
+        Setup compiled = loadCompiled(fileName, checksums, index);
+        if (compiled != null) {
+            return compiled;
+        }
+        InputStream is = BasicSetupUpgradeProcess.class.getClassLoader().getResourceAsStream(fileName);
+
+        if (is == null) {
+            missingFileNames.add(fileName);
+            return null;
+        }
+        try (InputStream setupStream = is) {
+            DigestInputStream digestingStream = SetupJournal.digesting(setupStream);
+            Setup setup = MarshallUtil.unmarshall(digestingStream, validate);
+            checksums[index] = SetupJournal.checksum(digestingStream);
+            return setup;
+        } catch (IOException | ParserConfigurationException | JAXBException | SAXException e) {
+            LOG.error("Cannot parse setup " + fileName, e);
+            throw new UpgradeException("Cannot parse setup " + fileName, e);
+        }
+    }
+
+    private static Setup loadCompiled(final String fileName, final String[] checksums, final int index) {
+        String compiledFileName = fileName + SetupCompiler.COMPILED_SUFFIX;
+        InputStream is = BasicSetupUpgradeProcess.class.getClassLoader().getResourceAsStream(compiledFileName);
+        if (is == null) {
+            return null;
+        }
+        try (InputStream compiledStream = new BufferedInputStream(is)) {
+            SetupCompiler.CompiledSetup compiled = SetupCompiler.load(compiledStream);
+            if (compiled == null) {
+                return null;
+            }
+            // the compiled setup is outdated when the XML was edited without compiling it again
+            String xmlChecksum = checksumOf(fileName);
+            if (xmlChecksum != null && !xmlChecksum.equals(compiled.getChecksum())) {
+                LOG.warn("Compiled setup " + compiledFileName + " does not match " + fileName
+                        + ", parsing the XML instead");
+                return null;
+            }
+            checksums[index] = compiled.getChecksum();
+            LOG.info("Loaded compiled setup " + compiledFileName);
+            return compiled.getSetup();
+        } catch (IOException e) {
+            LOG.error("Cannot load compiled setup " + compiledFileName + ", parsing " + fileName + " instead", e);
+            return null;
+        }
+    }
+
+    /**
+     * @return checksum of the setup XML, null if it is not shipped next to the compiled setup
+     */
+    private static String checksumOf(final String fileName) throws IOException {
+        InputStream is = BasicSetupUpgradeProcess.class.getClassLoader().getResourceAsStream(fileName);
+        if (is == null) {
+            return null;
+        }
+        try (InputStream setupStream = is) {
+            return SetupJournal.checksum(SetupJournal.digesting(setupStream));
+        }
+    }
+
+    private static void setupStreaming(final String fileName) throws UpgradeException {
+        URL url = BasicSetupUpgradeProcess.class.getClassLoader().getResource(fileName);
+        if (url == null) {
+            throw new UpgradeException("XML configuration not found: " + fileName);
+        }
+        try {
+            LiferaySetup.setupStreaming(url);
+        } catch (IOException | XMLStreamException | JAXBException e) {
+            throw new UpgradeException(e);
+        }
+    }
+
     @Override
     protected void doUpgrade() throws Exception {
         this.upgrade();
@@ -78,4 +193,24 @@ public abstract class BasicSetupUpgradeProcess extends UpgradeProcess {
      * @return paths to setup xml files.
      */
     protected abstract String[] getSetupFileNames();
+
+    /**
+     * Override to read the setup files with {@link LiferaySetup#setupStreaming(URL)}, which keeps only a bounded
+     * chunk of roles, users, organizations or sites in memory at a time. Useful for very large generated setup files.
+     *
+     * @return true to use the streaming reader, false by default
+     */
+    protected boolean isStreamingEnabled() {
+        return false;
+    }
+
+    /**
+     * Override to validate the setup files against the setup XSD while they are parsed. A file which does not pass the
+     * validation fails the upgrade.
+     *
+     * @return true to validate the setup files, false by default
+     */
+    protected boolean isValidationEnabled() {
+        return false;
+    }
 }
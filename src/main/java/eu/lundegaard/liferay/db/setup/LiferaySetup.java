@@ -39,6 +39,19 @@ import com.liferay.portal.kernel.service.RoleLocalServiceUtil;
 import com.liferay.portal.kernel.service.UserLocalServiceUtil;
 import com.liferay.portal.kernel.util.PortalUtil;
 import eu.lundegaard.liferay.db.setup.core.*;
+import eu.lundegaard.liferay.db.setup.core.util.BatchQueryUtil;
+import eu.lundegaard.liferay.db.setup.core.util.CategoryTreeCache;
+import eu.lundegaard.liferay.db.setup.core.util.ConcurrencyUtil;
+import eu.lundegaard.liferay.db.setup.core.util.FolderPathCache;
+import eu.lundegaard.liferay.db.setup.core.util.IndexerUtil;
+import eu.lundegaard.liferay.db.setup.core.util.PagedDeleteUtil;
+import eu.lundegaard.liferay.db.setup.core.util.ResolutionCache;
+import eu.lundegaard.liferay.db.setup.core.util.ResolverPrefetcher;
+import eu.lundegaard.liferay.db.setup.core.util.SetupJournal;
+import eu.lundegaard.liferay.db.setup.core.util.SetupMetrics;
+import eu.lundegaard.liferay.db.setup.core.util.SiteGroupIdCache;
+import eu.lundegaard.liferay.db.setup.core.util.TaskGraph;
+import eu.lundegaard.liferay.db.setup.core.util.TransactionBatchUtil;
 import eu.lundegaard.liferay.db.setup.domain.*;
 import eu.lundegaard.liferay.db.setup.core.SetupCustomFields;
 import eu.lundegaard.liferay.db.setup.core.SetupOrganizations;
@@ -51,12 +64,22 @@ import eu.lundegaard.liferay.db.setup.core.SetupUsers;
 import org.xml.sax.SAXException;
 import javax.xml.bind.JAXBException;
 import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.stream.XMLStreamException;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
+import java.io.IOException;
 import java.io.InputStream;
+import java.net.URL;
+import java.security.DigestInputStream;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.function.Consumer;
 
 public final class LiferaySetup {
 
@@ -64,6 +87,8 @@ public final class LiferaySetup {
 
     private static final Log LOG = LogFactoryUtil.getLog(LiferaySetup.class);
     private static final String ADMIN_ROLE_NAME = "Administrator";
+    private static final int MAX_PARSER_THREADS = 4;
+    private static final int STREAMING_CHUNK_SIZE = BatchQueryUtil.MAX_IN_LIST_SIZE;
     private static long runAsUserId;
 
     private LiferaySetup() {
@@ -73,12 +98,29 @@ public final class LiferaySetup {
     public static void setupFiles(final List<File> files)
             throws FileNotFoundException, ParserConfigurationException, SAXException, JAXBException {
 
-        List<Setup> setups = new ArrayList<>();
-        for (File file : files) {
-            Setup setup = MarshallUtil.unmarshall(file);
-            setups.add(setup);
+        setupFiles(files, false);
+    }
+
+    /**
+     * Parses all files in parallel and then sets them up one by one in the given order.
+     *
+     * @param files setup XML files
+     * @param validate whether to validate the files against the setup XSD while parsing
+     */
+    public static void setupFiles(final List<File> files, final boolean validate)
+            throws FileNotFoundException, ParserConfigurationException, SAXException, JAXBException {
+
+        List<InputStream> inputStreams = new ArrayList<>();
+        try {
+            for (File file : files) {
+                inputStreams.add(new FileInputStream(file));
+            }
+            setupInputStreams(inputStreams, validate);
+        } finally {
+            for (InputStream inputStream : inputStreams) {
+                closeQuietly(inputStream);
+            }
         }
-        setup(setups);
     }
 
     public static void setup(final File file)
@@ -90,12 +132,54 @@ public final class LiferaySetup {
     public static void setupInputStreams(final List<InputStream> inputStreams)
             throws ParserConfigurationException, SAXException, JAXBException {
 
-        List<Setup> setups = new ArrayList<>();
-        for (InputStream inputStream : inputStreams) {
-            Setup setup = MarshallUtil.unmarshall(inputStream);
-            setups.add(setup);
+        setupInputStreams(inputStreams, false);
+    }
+
+    /**
+     * Parses all streams in parallel and then sets them up one by one in the given order. Nothing is set up if any
+     * of the streams cannot be parsed.
+     *
+     * @param inputStreams setup XML streams
+     * @param validate whether to validate the streams against the setup XSD while parsing
+     */
+    public static void setupInputStreams(final List<InputStream> inputStreams, final boolean validate)
+            throws ParserConfigurationException, SAXException, JAXBException {
+
+        String[] checksums = new String[inputStreams.size()];
+        List<Callable<Setup>> parsers = new ArrayList<>();
+        for (int i = 0; i < inputStreams.size(); i++) {
+            int index = i;
+            InputStream inputStream = inputStreams.get(i);
+            parsers.add(() -> {
+                DigestInputStream digestingStream = SetupJournal.digesting(inputStream);
+                Setup setup = MarshallUtil.unmarshall(digestingStream, validate);
+                checksums[index] = SetupJournal.checksum(digestingStream);
+                return setup;
+            });
+        }
+
+        List<Setup> setups;
+        try {
+            setups = ConcurrencyUtil.invokeAll(parsers, getParserParallelism(), "setup-parser");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof JAXBException) {
+                throw (JAXBException) cause;
+            } else if (cause instanceof SAXException) {
+                throw (SAXException) cause;
+            } else if (cause instanceof ParserConfigurationException) {
+                throw (ParserConfigurationException) cause;
+            }
+            throw new JAXBException("Cannot unmarshall the setup", cause);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new JAXBException("Interrupted while unmarshalling the setup", e);
+        }
+        for (int i = 0; i < setups.size(); i++) {
+            setup(setups.get(i), checksums[i]);
+            // the applied tree is not needed anymore, only the trees still to be set up stay on the heap
+            setups.set(i, null);
         }
-        setup(setups);
     }
 
     public static void setup(final InputStream inputStream)
@@ -104,108 +188,442 @@ public final class LiferaySetup {
         setupInputStreams(Arrays.asList(inputStream));
     }
 
+    /**
+     * @return number of threads used to parse setup files at once
+     */
+    static int getParserParallelism() {
+        return Math.min(Runtime.getRuntime().availableProcessors(), MAX_PARSER_THREADS);
+    }
+
+    private static void closeQuietly(final InputStream inputStream) {
+        try {
+            inputStream.close();
+        } catch (IOException e) {
+            LOG.warn("Cannot close setup stream", e);
+        }
+    }
+
     public static void setup(final List<Setup> setups) {
 
         for (Setup setup : setups) {
-            try {
-                Configuration configuration = setup.getConfiguration();
-
-                String runAsUser = configuration.getRunasuser();
-                if (runAsUser == null || runAsUser.isEmpty()) {
-                    setAdminPermissionCheckerForThread(PortalUtil.getDefaultCompanyId());
-                    LOG.info("Using default administrator.");
-                } else {
-                    User user = UserLocalServiceUtil.getUserByEmailAddress(PortalUtil.getDefaultCompanyId(), runAsUser);
-                    runAsUserId = user.getUserId();
-                    PrincipalThreadLocal.setName(runAsUserId);
-                    PermissionChecker permissionChecker = PermissionCheckerFactoryUtil.create(user);
-                    PermissionThreadLocal.setPermissionChecker(permissionChecker);
-
-                    LOG.info("Execute setup module as user " + setup.getConfiguration().getRunasuser());
-                }
-
-                setupPortal(setup);
-            } catch (Exception e) {
-                LOG.error("An error occured while executing the portal setup ", e);
-            } finally {
-                PrincipalThreadLocal.setName(null);
-                PermissionThreadLocal.setPermissionChecker(null);
+            setup(setup, null);
+        }
+    }
+
+    /**
+     * Sets up the portal and, if enabled by the configuration, journals the completed units under the checksum of the
+     * setup file, so that a run interrupted e.g. by a restart of the node resumes where it stopped.
+     *
+     * @param setup unmarshalled setup
+     * @param checksum checksum of the setup file, null if the run cannot be resumed
+     */
+    public static void setup(final Setup setup, final String checksum) {
+
+        startRun();
+        boolean finished = false;
+        try {
+            initRunAsUser(setup.getConfiguration());
+            startDeferredIndexing(setup.getConfiguration());
+            startTransactionBatching(setup.getConfiguration());
+            openJournal(setup.getConfiguration(), checksum);
+            setupPortal(setup);
+            finished = true;
+        } catch (Exception e) {
+            LOG.error("An error occured while executing the portal setup ", e);
+        } finally {
+            finishRun(finished);
+        }
+    }
+
+    /**
+     * Sets up the portal from a setup XML without loading the whole document into memory. Roles, users,
+     * organizations and sites are unmarshalled and handed to their handlers in bounded chunks, the remaining sections
+     * are small and are read at once. Sections are applied in the same order as by {@link #setupPortal(Setup)}, so the
+     * source is read once per streamed section.
+     *
+     * @param source setup XML, must be readable repeatedly
+     * @throws IOException if the source cannot be read
+     * @throws XMLStreamException if the source is not a well-formed XML
+     * @throws JAXBException if an element cannot be unmarshalled
+     */
+    public static void setupStreaming(final URL source) throws IOException, XMLStreamException, JAXBException {
+
+        StreamingSetupReader reader = new StreamingSetupReader(source);
+        Setup setup = new Setup();
+        Map<String, Consumer<Object>> sections = new HashMap<>();
+        sections.put("configuration", section -> setup.setConfiguration((Configuration) section));
+        sections.put("deleteLiferayObjects", section -> setup.setDeleteLiferayObjects((DeleteLiferayObjects) section));
+        sections.put("customFields", section -> setup.setCustomFields((CustomFields) section));
+        sections.put("userGroups", section -> setup.setUserGroups((UserGroups) section));
+        sections.put("portletPermissions", section -> setup.setPortletPermissions((PortletPermissions) section));
+        sections.put("fragment-collection", section -> setup.getFragmentCollection().add((FragmentCollection) section));
+        sections.put("page-templates", section -> setup.setPageTemplates((PageTemplates) section));
+        sections.put("form", section -> setup.getForm().add((Form) section));
+        reader.readSections(sections);
+        String checksum = null;
+        if (setup.getConfiguration() != null && setup.getConfiguration().isResumeInterrupted()) {
+            try (DigestInputStream stream = SetupJournal.digesting(source.openStream())) {
+                checksum = SetupJournal.checksum(stream);
             }
         }
+
+        startRun();
+        boolean finished = false;
+        try {
+            initRunAsUser(setup.getConfiguration());
+            startDeferredIndexing(setup.getConfiguration());
+            startTransactionBatching(setup.getConfiguration());
+            openJournal(setup.getConfiguration(), checksum);
+
+            long companyId = PortalUtil.getDefaultCompanyId();
+            long defaultUserId = getDefaultUserId(companyId);
+            long groupId = getGuestGroupId(companyId);
+
+            setupDeleteObjects(setup);
+            setupCustomFields(setup);
+            LOG.info("Setting up streamed roles");
+            readInChunks(reader, "roles", "role", eu.lundegaard.liferay.db.setup.domain.Role.class,
+                    STREAMING_CHUNK_SIZE, roles -> SetupRoles.setupRoles(roles, runAsUserId, groupId, companyId));
+            LOG.info("Setting up streamed users");
+            readInChunks(reader, "users", "user", eu.lundegaard.liferay.db.setup.domain.User.class,
+                    STREAMING_CHUNK_SIZE, users -> SetupUsers.setupUsers(users, defaultUserId, groupId));
+            LOG.info("Setting up streamed organizations");
+            readInChunks(reader, "organizations", "organization", Organization.class, STREAMING_CHUNK_SIZE,
+                    organizations -> SetupOrganizations.setupOrganizations(organizations, null, null));
+            setupUserGroups(setup);
+            setupPortletPermissions(setup);
+            setupFragments(setup, defaultUserId, groupId);
+            LOG.info("Setting up streamed sites");
+            // sites are the largest elements, so only as many are kept in memory as can be set up at once
+            int siteParallelism = setup.getConfiguration() == null ? 1 : setup.getConfiguration().getSiteParallelism();
+            readInChunks(reader, "sites", "site", Site.class, Math.max(siteParallelism, 1),
+                    sites -> SetupSites.setupSites(sites, null, siteParallelism));
+            setupPageTemplates(setup, groupId, companyId, defaultUserId);
+            setupForms(setup, defaultUserId, groupId);
+
+            LOG.info("Setup finished");
+            finished = true;
+        } catch (IOException | XMLStreamException | JAXBException e) {
+            LOG.error("Cannot read the streamed setup " + source, e);
+            throw e;
+        } catch (Exception e) {
+            LOG.error("An error occured while executing the portal setup ", e);
+        } finally {
+            finishRun(finished);
+        }
+    }
+
+    /**
+     * Reads the elements of a streamed section and passes them to the handler in chunks of at most given size, so
+     * that the handler can look up and write the entities of a chunk together.
+     */
+    private static <T> void readInChunks(final StreamingSetupReader reader, final String section, final String element,
+            final Class<T> type, final int chunkSize, final Consumer<List<T>> handler)
+            throws IOException, XMLStreamException, JAXBException {
+
+        List<T> chunk = new ArrayList<>(chunkSize);
+        Runnable flush = () -> {
+            try (SetupMetrics.Section metrics = SetupMetrics.section(section, chunk.size())) {
+                handler.accept(chunk);
+            }
+            chunk.clear();
+        };
+        reader.readElements(section, element, type, item -> {
+            chunk.add(item);
+            if (chunk.size() >= chunkSize) {
+                flush.run();
+            }
+        });
+        if (!chunk.isEmpty()) {
+            flush.run();
+        }
+    }
+
+    /**
+     * Computes the changes the setup would make to the portal of the default company without writing anything, e.g.
+     * to size a maintenance window or to spot mass deletions before the setup is run.
+     *
+     * @param setup unmarshalled setup
+     * @return planned create, update, delete and no-op actions per entity
+     */
+    public static SetupPlan plan(final Setup setup) {
+        SetupPlan plan = SetupPlanner.plan(setup, PortalUtil.getDefaultCompanyId());
+        LOG.info(plan);
+        return plan;
     }
 
     public static void setupPortal(final Setup setup) {
 
-        long defaultUserId = 0;
         long companyId = PortalUtil.getDefaultCompanyId();
-        try {
-            defaultUserId = UserLocalServiceUtil.getDefaultUserId(companyId);
-        } catch (PortalException e1) {
-            LOG.error("default user not found", e1);
+        long defaultUserId = getDefaultUserId(companyId);
+        long groupId = getGuestGroupId(companyId);
+
+        Configuration configuration = setup.getConfiguration();
+        if (configuration != null && configuration.isPrefetchReferences()) {
+            try (SetupMetrics.Section section = SetupMetrics.section("prefetch", 0)) {
+                ResolverPrefetcher.prefetch(setup, companyId);
+            }
+        }
+        int parallelism = configuration == null ? 1 : configuration.getParallelism();
+        if (parallelism > 1) {
+            setupPortalConcurrently(setup, parallelism, companyId, defaultUserId, groupId);
+            return;
         }
-        long groupId = 0;
-        Group g;
+
+        setupDeleteObjects(setup);
+        setupCustomFields(setup);
+        setupRoles(setup, groupId, companyId);
+        setupUsers(setup, defaultUserId, groupId);
+        setupOrganizations(setup);
+        setupUserGroups(setup);
+        setupPortletPermissions(setup);
+        setupFragments(setup, defaultUserId, groupId);
+        setupSites(setup);
+        setupPageTemplates(setup, groupId, companyId, defaultUserId);
+        setupForms(setup, defaultUserId, groupId);
+
+        LOG.info("Setup finished");
+    }
+
+    /**
+     * Sets up the sections of the setup as a dependency graph, independent sections run concurrently. Unlike the
+     * serial order, organizations are set up before the users, so that users can be assigned to them.
+     */
+    private static void setupPortalConcurrently(final Setup setup, final int parallelism, final long companyId,
+            final long defaultUserId, final long groupId) {
+
+        LOG.info("Setting up sections with " + parallelism + " threads");
+        TaskGraph graph = new TaskGraph()
+                .add("deleteObjects", () -> setupDeleteObjects(setup))
+                .add("customFields", () -> setupCustomFields(setup), "deleteObjects")
+                .add("roles", () -> setupRoles(setup, groupId, companyId), "deleteObjects")
+                .add("fragments", () -> setupFragments(setup, defaultUserId, groupId), "deleteObjects")
+                .add("forms", () -> setupForms(setup, defaultUserId, groupId), "deleteObjects")
+                .add("portletPermissions", () -> setupPortletPermissions(setup), "roles")
+                // organization sites get pages built of fragments and portlets with permissions, as sites do
+                .add("organizations", () -> setupOrganizations(setup), "customFields", "roles", "fragments",
+                        "portletPermissions")
+                .add("users", () -> setupUsers(setup, defaultUserId, groupId), "customFields", "roles",
+                        "organizations")
+                .add("userGroups", () -> setupUserGroups(setup), "customFields", "roles", "users")
+                .add("sites", () -> setupSites(setup), "customFields", "roles", "organizations", "users",
+                        "userGroups", "fragments")
+                .add("pageTemplates", () -> setupPageTemplates(setup, groupId, companyId, defaultUserId),
+                        "customFields", "roles", "fragments", "sites");
         try {
-            g = GroupLocalServiceUtil.getGroup(companyId, "Guest");
-            groupId = g.getGroupId();
-        } catch (PortalException e) {
-            LOG.error("Default site not found", e);
+            graph.run(parallelism, "setup-section");
+            LOG.info("Setup finished");
+        } catch (ExecutionException e) {
+            // a failed run must keep its journal so that it can be resumed
+            throw new SystemException("Setup finished with errors", e.getCause());
         }
+    }
 
-        if (setup.getDeleteLiferayObjects() != null) {
-            LOG.info("Deleting : " + setup.getDeleteLiferayObjects().getObjectsToBeDeleted().size() + " objects");
-            deleteObjects(setup.getDeleteLiferayObjects().getObjectsToBeDeleted());
+    private static void setupDeleteObjects(final Setup setup) {
+        // objects set up by an interrupted run must not be deleted again
+        if (setup.getDeleteLiferayObjects() != null
+                && !SetupJournal.isCompleted(SetupJournal.DELETE_OBJECTS, SetupJournal.DELETE_OBJECTS)) {
+            List<ObjectsToBeDeleted> objects = setup.getDeleteLiferayObjects().getObjectsToBeDeleted();
+            LOG.info("Deleting : " + objects.size() + " objects");
+            Configuration configuration = setup.getConfiguration();
+            PagedDeleteUtil.setParallelism(configuration == null ? 1 : configuration.getDeleteParallelism());
+            try (SetupMetrics.Section section = SetupMetrics.section("delete objects", objects.size())) {
+                deleteObjects(objects);
+            } finally {
+                PagedDeleteUtil.setParallelism(1);
+            }
+            SetupJournal.markCompleted(SetupJournal.DELETE_OBJECTS, SetupJournal.DELETE_OBJECTS);
         }
+    }
 
+    private static void setupCustomFields(final Setup setup) {
         if (setup.getCustomFields() != null) {
-            LOG.info("Setting up " + setup.getCustomFields().getField().size() + " custom fields");
-            SetupCustomFields.setupExpandoFields(setup.getCustomFields().getField());
+            List<CustomFields.Field> fields = setup.getCustomFields().getField();
+            LOG.info("Setting up " + fields.size() + " custom fields");
+            try (SetupMetrics.Section section = SetupMetrics.section("custom fields", fields.size())) {
+                SetupCustomFields.setupExpandoFields(fields);
+            }
         }
+    }
 
+    private static void setupRoles(final Setup setup, final long groupId, final long companyId) {
         if (setup.getRoles() != null) {
-            LOG.info("Setting up " + setup.getRoles().getRole().size() + " roles");
-            SetupRoles.setupRoles(setup.getRoles().getRole(), runAsUserId, groupId, companyId);
+            List<eu.lundegaard.liferay.db.setup.domain.Role> roles = setup.getRoles().getRole();
+            LOG.info("Setting up " + roles.size() + " roles");
+            try (SetupMetrics.Section section = SetupMetrics.section("roles", roles.size())) {
+                SetupRoles.setupRoles(roles, runAsUserId, groupId, companyId);
+            }
         }
+    }
+
+    private static void setupUsers(final Setup setup, final long defaultUserId, final long groupId) {
         if (setup.getUsers() != null) {
-            LOG.info("Setting up " + setup.getUsers().getUser().size() + " users");
-            SetupUsers.setupUsers(setup.getUsers().getUser(), defaultUserId, groupId);
+            List<eu.lundegaard.liferay.db.setup.domain.User> users = setup.getUsers().getUser();
+            LOG.info("Setting up " + users.size() + " users");
+            try (SetupMetrics.Section section = SetupMetrics.section("users", users.size())) {
+                SetupUsers.setupUsers(users, defaultUserId, groupId);
+            }
         }
+    }
 
+    private static void setupOrganizations(final Setup setup) {
         if (setup.getOrganizations() != null) {
-            LOG.info("Setting up " + setup.getOrganizations().getOrganization().size() + " organizations");
-            SetupOrganizations.setupOrganizations(setup.getOrganizations().getOrganization(), null, null);
+            List<Organization> organizations = setup.getOrganizations().getOrganization();
+            LOG.info("Setting up " + organizations.size() + " organizations");
+            try (SetupMetrics.Section section = SetupMetrics.section("organizations", organizations.size())) {
+                SetupOrganizations.setupOrganizations(organizations, null, null);
+            }
         }
+    }
 
+    private static void setupSites(final Setup setup) {
+        if (setup.getSites() != null) {
+            List<Site> sites = setup.getSites().getSite();
+            LOG.info("Setting up " + sites.size() + " sites");
+            Configuration configuration = setup.getConfiguration();
+            int siteParallelism = configuration == null ? 1 : configuration.getSiteParallelism();
+            try (SetupMetrics.Section section = SetupMetrics.section("sites", sites.size())) {
+                SetupSites.setupSites(sites, null, siteParallelism);
+            }
+        }
+    }
+
+    private static void setupUserGroups(final Setup setup) {
         if (setup.getUserGroups() != null) {
-            LOG.info("Setting up " + setup.getUserGroups().getUserGroup().size() + " User Groups");
-            SetupUserGroups.setupUserGroups(setup.getUserGroups().getUserGroup());
+            List<UserGroup> userGroups = setup.getUserGroups().getUserGroup();
+            LOG.info("Setting up " + userGroups.size() + " User Groups");
+            try (SetupMetrics.Section section = SetupMetrics.section("user groups", userGroups.size())) {
+                SetupUserGroups.setupUserGroups(userGroups);
+            }
         }
+    }
 
+    private static void setupPortletPermissions(final Setup setup) {
         if (setup.getPortletPermissions() != null) {
-            LOG.info("Setting up " + setup.getPortletPermissions().getPortlet().size() + " roles");
-            SetupPermissions.setupPortletPermissions(setup.getPortletPermissions());
+            int portlets = setup.getPortletPermissions().getPortlet().size();
+            LOG.info("Setting up " + portlets + " roles");
+            try (SetupMetrics.Section section = SetupMetrics.section("portlet permissions", portlets)) {
+                SetupPermissions.setupPortletPermissions(setup.getPortletPermissions());
+            }
         }
+    }
 
+    private static void setupFragments(final Setup setup, final long defaultUserId, final long groupId) {
         if (!setup.getFragmentCollection().isEmpty()) {
-            LOG.info("Setting up " + setup.getFragmentCollection().size() + " fragment collections with fragments");
-            SetupFragments.setupFragments(setup.getFragmentCollection(), defaultUserId, groupId);
-        }
-
-        if (setup.getSites() != null) {
-            LOG.info("Setting up " + setup.getSites().getSite().size() + " sites");
-            SetupSites.setupSites(setup.getSites().getSite(), null);
+            int collections = setup.getFragmentCollection().size();
+            LOG.info("Setting up " + collections + " fragment collections with fragments");
+            try (SetupMetrics.Section section = SetupMetrics.section("fragments", collections)) {
+                SetupFragments.setupFragments(setup.getFragmentCollection(), defaultUserId, groupId);
+            }
         }
+    }
 
+    private static void setupPageTemplates(final Setup setup, final long groupId, final long companyId,
+            final long defaultUserId) {
         if (setup.getPageTemplates() != null) {
-            SetupPages.setupPageTemplates(setup.getPageTemplates(), groupId, companyId, defaultUserId);
+            int pageTemplates = setup.getPageTemplates().getPageTemplate().size();
+            try (SetupMetrics.Section section = SetupMetrics.section("page templates", pageTemplates)) {
+                SetupPages.setupPageTemplates(setup.getPageTemplates(), groupId, companyId, defaultUserId);
+            }
         }
+    }
 
+    private static void setupForms(final Setup setup, final long defaultUserId, final long groupId) {
         if (!setup.getForm().isEmpty()) {
             LOG.info("Handling " + setup.getForm().size() + " forms");
-            SetupForms.handleForms(setup.getForm(), defaultUserId, groupId);
+            try (SetupMetrics.Section section = SetupMetrics.section("forms", setup.getForm().size())) {
+                SetupForms.handleForms(setup.getForm(), defaultUserId, groupId);
+            }
         }
+    }
 
-        LOG.info("Setup finished");
+    private static void startRun() {
+        // sites may have been changed outside of the setup since the last run
+        SiteGroupIdCache.clear();
+        FolderPathCache.clear();
+        CategoryTreeCache.clear();
+        ResolutionCache.start();
+        SetupMetrics.start();
+    }
+
+    private static void finishRun(final boolean finished) {
+        TransactionBatchUtil.setBatchSize(1);
+        // the journal keeps the entities to reindex until they have been reindexed
+        try (SetupMetrics.Section section = SetupMetrics.section("deferred indexing", 0)) {
+            IndexerUtil.flushDeferredIndexing();
+        }
+        closeJournal(finished);
+        SetupMetrics.finish();
+        ResolutionCache.stop();
+        FolderPathCache.clear();
+        CategoryTreeCache.clear();
+        PrincipalThreadLocal.setName(null);
+        PermissionThreadLocal.setPermissionChecker(null);
+    }
+
+    private static void startDeferredIndexing(final Configuration configuration) {
+        if (configuration != null && configuration.isDeferredIndexing()) {
+            IndexerUtil.startDeferredIndexing();
+        }
+    }
+
+    private static void startTransactionBatching(final Configuration configuration) {
+        if (configuration != null) {
+            TransactionBatchUtil.setBatchSize(configuration.getTransactionBatchSize());
+        }
+    }
+
+    private static void openJournal(final Configuration configuration, final String checksum) {
+        if (checksum != null && configuration != null && configuration.isResumeInterrupted()) {
+            SetupJournal.open(checksum);
+            IndexerUtil.restoreDeferredReindex();
+        }
+    }
+
+    private static void closeJournal(final boolean finished) {
+        if (finished) {
+            SetupJournal.complete();
+        } else {
+            SetupJournal.close();
+        }
+    }
+
+    private static void initRunAsUser(final Configuration configuration) throws Exception {
+        String runAsUser = configuration.getRunasuser();
+        if (runAsUser == null || runAsUser.isEmpty()) {
+            setAdminPermissionCheckerForThread(PortalUtil.getDefaultCompanyId());
+            LOG.info("Using default administrator.");
+        } else {
+            SetupMetrics.serviceCall("UserLocalService.getUserByEmailAddress");
+            User user = UserLocalServiceUtil.getUserByEmailAddress(PortalUtil.getDefaultCompanyId(), runAsUser);
+            runAsUserId = user.getUserId();
+            PrincipalThreadLocal.setName(runAsUserId);
+            PermissionChecker permissionChecker = PermissionCheckerFactoryUtil.create(user);
+            PermissionThreadLocal.setPermissionChecker(permissionChecker);
+
+            LOG.info("Execute setup module as user " + runAsUser);
+        }
+    }
+
+    private static long getDefaultUserId(final long companyId) {
+        try {
+            SetupMetrics.serviceCall("UserLocalService.getDefaultUserId");
+            return UserLocalServiceUtil.getDefaultUserId(companyId);
+        } catch (PortalException e1) {
+            LOG.error("default user not found", e1);
+            return 0;
+        }
+    }
+
+    private static long getGuestGroupId(final long companyId) {
+        try {
+            SetupMetrics.serviceCall("GroupLocalService.getGroup");
+            Group g = GroupLocalServiceUtil.getGroup(companyId, "Guest");
+            return g.getGroupId();
+        } catch (PortalException e) {
+            LOG.error("Default site not found", e);
+            return 0;
+        }
     }
 
     private static void deleteObjects(final List<ObjectsToBeDeleted> objectsToBeDeleted) {
@@ -245,7 +663,9 @@ public final class LiferaySetup {
     private static User getAdminUser(final long companyId) throws Exception {
 
         try {
+            SetupMetrics.serviceCall("RoleLocalService.getRole");
             Role adminRole = RoleLocalServiceUtil.getRole(companyId, ADMIN_ROLE_NAME);
+            SetupMetrics.serviceCall("UserLocalService.getRoleUsers");
             List<User> adminUsers = UserLocalServiceUtil.getRoleUsers(adminRole.getRoleId());
 
             if (adminUsers == null || adminUsers.isEmpty()) {
@@ -35,6 +35,9 @@ import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
 import javax.xml.XMLConstants;
 import javax.xml.bind.JAXBContext;
 import javax.xml.bind.JAXBException;
@@ -47,9 +50,22 @@ import javax.xml.validation.Schema;
 import javax.xml.validation.SchemaFactory;
 import javax.xml.validation.Validator;
 
+/**
+ * JAXB context, SAX parser factory and compiled XSD are created once per class loader and reused. Unmarshallers are
+ * not thread-safe, so they are kept in a small pool and borrowed for the duration of a single unmarshall call.
+ */
 public final class MarshallUtil {
 
     private static final Log LOG = LogFactoryUtil.getLog(MarshallUtil.class);
+    static final String XSD_RESOURCE = "setup_definition-1.0.xsd";
+    private static final int MAX_POOLED_UNMARSHALLERS = 16;
+
+    private static final Queue<Unmarshaller> UNMARSHALLER_POOL = new ConcurrentLinkedQueue<>();
+    private static final AtomicInteger POOLED_UNMARSHALLERS = new AtomicInteger();
+    private static final SAXParserFactory SAX_PARSER_FACTORY = createSaxParserFactory();
+
+    private static volatile JAXBContext jaxbContext;
+    private static volatile Schema schema;
 
     private MarshallUtil() {}
 
@@ -60,11 +76,22 @@ public final class MarshallUtil {
 
     public static Setup unmarshall(final InputStream stream)
             throws JAXBException, ParserConfigurationException, SAXException {
+        return unmarshall(stream, false);
+    }
+
+    /**
+     * Unmarshalls the setup, optionally validating it against the setup XSD while it is parsed.
+     *
+     * @param stream setup XML
+     * @param validate whether to validate the XML against the setup XSD
+     * @return unmarshalled setup
+     */
+    public static Setup unmarshall(final InputStream stream, final boolean validate)
+            throws JAXBException, ParserConfigurationException, SAXException {
+        long start = System.nanoTime();
+        Unmarshaller unmarshaller = null;
         try {
-            SAXParserFactory spf = SAXParserFactory.newInstance();
-            //spf.setXIncludeAware(true);
-            spf.setNamespaceAware(true);
-            XMLReader xr = spf.newSAXParser().getXMLReader();
+            XMLReader xr = newXMLReader();
             /*
              * EntityResolver entityResolver = new EntityResolver() {
              *
@@ -74,32 +101,107 @@ public final class MarshallUtil {
              * InputSource(resourceAsStream); } }; xr.setEntityResolver(entityResolver);
              */
             SAXSource src = new SAXSource(xr, new InputSource(stream));
-            return (Setup) getUnmarshaller().unmarshal(src);
+            unmarshaller = borrowUnmarshaller();
+            if (validate) {
+                unmarshaller.setSchema(getSchema());
+            }
+            return (Setup) unmarshaller.unmarshal(src);
+        } catch (IOException e) {
+            LOG.error("Cannot load the setup XSD", e);
+            throw new JAXBException("Cannot load the setup XSD", e);
         } catch (JAXBException | ParserConfigurationException | SAXException e) {
             LOG.error("Cannot unmarshall the provided stream", e);
             throw e;
+        } finally {
+            releaseUnmarshaller(unmarshaller);
+            if (LOG.isDebugEnabled()) {
+                LOG.debug("Setup unmarshalled in " + (System.nanoTime() - start) / 1_000_000 + " ms");
+            }
         }
     }
 
-    private static Unmarshaller getUnmarshaller() throws JAXBException {
+    static JAXBContext getJaxbContext() throws JAXBException {
+        JAXBContext context = jaxbContext;
+        if (context == null) {
+            synchronized (MarshallUtil.class) {
+                context = jaxbContext;
+                if (context == null) {
+                    ClassLoader cl = ObjectFactory.class.getClassLoader();
+                    context = JAXBContext.newInstance(ObjectFactory.class.getPackage().getName(), cl);
+                    jaxbContext = context;
+                }
+            }
+        }
+        return context;
+    }
 
-        ClassLoader cl = ObjectFactory.class.getClassLoader();
-        JAXBContext jc = JAXBContext.newInstance(ObjectFactory.class.getPackage().getName(), cl);
-        return jc.createUnmarshaller();
+    static Unmarshaller borrowUnmarshaller() throws JAXBException {
+        Unmarshaller unmarshaller = UNMARSHALLER_POOL.poll();
+        if (unmarshaller == null) {
+            return getJaxbContext().createUnmarshaller();
+        }
+        POOLED_UNMARSHALLERS.decrementAndGet();
+        return unmarshaller;
     }
 
-    public static boolean validateAgainstXSD(final InputStream xml) throws IOException {
+    static void releaseUnmarshaller(final Unmarshaller unmarshaller) {
+        if (unmarshaller == null) {
+            return;
+        }
+        unmarshaller.setSchema(null);
+        if (POOLED_UNMARSHALLERS.incrementAndGet() <= MAX_POOLED_UNMARSHALLERS) {
+            UNMARSHALLER_POOL.offer(unmarshaller);
+        } else {
+            POOLED_UNMARSHALLERS.decrementAndGet();
+        }
+    }
+
+    private static XMLReader newXMLReader() throws ParserConfigurationException, SAXException {
+        // SAXParserFactory is not guaranteed to be thread-safe, creating parsers is cheap compared to the lookup
+        synchronized (SAX_PARSER_FACTORY) {
+            return SAX_PARSER_FACTORY.newSAXParser().getXMLReader();
+        }
+    }
+
+    private static SAXParserFactory createSaxParserFactory() {
+        SAXParserFactory spf = SAXParserFactory.newInstance();
+        //spf.setXIncludeAware(true);
+        spf.setNamespaceAware(true);
+        return spf;
+    }
 
-        ClassLoader cl = MarshallUtil.class.getClassLoader();
-        InputStream schemaInputStream = cl.getResourceAsStream("setup_definition-1.0.xsd");
-        if (schemaInputStream == null) {
-            throw new IOException("XSD configuration not found");
+    static Schema getSchema() throws IOException, SAXException {
+        Schema result = schema;
+        if (result == null) {
+            synchronized (MarshallUtil.class) {
+                result = schema;
+                if (result == null) {
+                    ClassLoader cl = MarshallUtil.class.getClassLoader();
+                    try (InputStream schemaInputStream = cl.getResourceAsStream(XSD_RESOURCE)) {
+                        if (schemaInputStream == null) {
+                            throw new IOException("XSD configuration not found");
+                        }
+                        SchemaFactory factory = SchemaFactory.newInstance(XMLConstants.W3C_XML_SCHEMA_NS_URI);
+                        result = factory.newSchema(new StreamSource(schemaInputStream));
+                        schema = result;
+                    }
+                }
+            }
+        }
+        return result;
+    }
+
+    public static boolean validateAgainstXSD(final InputStream xml) throws IOException {
+        Schema compiledSchema;
+        try {
+            compiledSchema = getSchema();
+        } catch (SAXException e) {
+            LOG.error("Cannot compile the setup XSD", e);
+            return false;
         }
 
         try {
-            SchemaFactory factory = SchemaFactory.newInstance(XMLConstants.W3C_XML_SCHEMA_NS_URI);
-            Schema schema = factory.newSchema(new StreamSource(schemaInputStream));
-            Validator validator = schema.newValidator();
+            Validator validator = compiledSchema.newValidator();
             validator.validate(new StreamSource(xml));
 
             return true;
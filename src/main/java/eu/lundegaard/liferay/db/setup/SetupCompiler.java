@@ -0,0 +1,204 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2020 Lundegaard a.s.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package eu.lundegaard.liferay.db.setup;
+
+import com.liferay.portal.kernel.log.Log;
+import com.liferay.portal.kernel.log.LogFactoryUtil;
+import eu.lundegaard.liferay.db.setup.core.util.SetupJournal;
+import eu.lundegaard.liferay.db.setup.domain.Setup;
+import org.xml.sax.SAXException;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InvalidClassException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamClass;
+import java.io.OutputStream;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.security.DigestInputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import javax.xml.bind.JAXBException;
+import javax.xml.parsers.ParserConfigurationException;
+
+/**
+ * Compiles a setup XML into a binary file, which is loaded without XML parsing and schema validation. The setup is
+ * validated when it is compiled. A compiled file is bound to the setup XSD it was compiled against and is ignored once
+ * the XSD changes, so it has to be compiled in the build of the module which ships it.
+ */
+public final class SetupCompiler {
+
+    public static final String COMPILED_SUFFIX = ".bin";
+
+    private static final Log LOG = LogFactoryUtil.getLog(SetupCompiler.class);
+    private static final int MAGIC = 0x4C444253;
+    private static final int FORMAT_VERSION = 1;
+    private static final String DOMAIN_PACKAGE_PREFIX = Setup.class.getPackage().getName() + ".";
+    // value classes of the generated domain model, including the superclasses serialized with them
+    private static final Set<String> ALLOWED_CLASSES = new HashSet<>(Arrays.asList(
+            ArrayList.class.getName(), String.class.getName(), Boolean.class.getName(), Integer.class.getName(),
+            Long.class.getName(), Number.class.getName(), BigInteger.class.getName(), BigDecimal.class.getName()));
+
+    private static volatile String schemaChecksum;
+
+    private SetupCompiler() {
+
+    }
+
+    /**
+     * Compiles a setup file, the compiled file is written next to it unless given.
+     *
+     * @param args setup XML file and optionally the compiled file
+     * @throws IllegalArgumentException if the arguments are not a setup file and an optional compiled file
+     */
+    public static void main(final String[] args) throws Exception {
+        if (args.length < 1 || args.length > 2) {
+            throw new IllegalArgumentException("Usage: SetupCompiler <setup XML file> [<compiled file>]");
+        }
+        File source = new File(args[0]);
+        File target = new File(args.length > 1 ? args[1] : args[0] + COMPILED_SUFFIX);
+        try (InputStream in = new BufferedInputStream(new FileInputStream(source));
+                OutputStream out = new BufferedOutputStream(new FileOutputStream(target))) {
+            compile(in, out);
+        }
+        LOG.info("Compiled " + source + " to " + target);
+    }
+
+    /**
+     * Validates and compiles a setup.
+     *
+     * @param xml setup XML
+     * @param out compiled setup
+     */
+    public static void compile(final InputStream xml, final OutputStream out)
+            throws IOException, JAXBException, ParserConfigurationException, SAXException {
+        DigestInputStream digestingStream = SetupJournal.digesting(xml);
+        Setup setup = MarshallUtil.unmarshall(digestingStream, true);
+        String checksum = SetupJournal.checksum(digestingStream);
+
+        DataOutputStream data = new DataOutputStream(out);
+        data.writeInt(MAGIC);
+        data.writeInt(FORMAT_VERSION);
+        data.writeUTF(getSchemaChecksum());
+        data.writeUTF(checksum);
+        ObjectOutputStream objects = new ObjectOutputStream(data);
+        objects.writeObject(setup);
+        objects.flush();
+    }
+
+    /**
+     * Loads a compiled setup.
+     *
+     * @param compiled compiled setup
+     * @return loaded setup, null if it has been compiled against another setup XSD
+     * @throws IOException if the stream is not a compiled setup or it cannot be read
+     */
+    public static CompiledSetup load(final InputStream compiled) throws IOException {
+        DataInputStream data = new DataInputStream(compiled);
+        if (data.readInt() != MAGIC) {
+            throw new IOException("Not a compiled setup");
+        }
+        if (data.readInt() != FORMAT_VERSION || !getSchemaChecksum().equals(data.readUTF())) {
+            LOG.info("Compiled setup does not match the setup XSD of this version, it has to be compiled again");
+            return null;
+        }
+        String checksum = data.readUTF();
+        try {
+            Setup setup = (Setup) new DomainObjectInputStream(data).readObject();
+            return new CompiledSetup(setup, checksum);
+        } catch (ClassNotFoundException | ClassCastException e) {
+            throw new IOException("Cannot load the compiled setup", e);
+        }
+    }
+
+    private static String getSchemaChecksum() throws IOException {
+        String result = schemaChecksum;
+        if (result == null) {
+            ClassLoader cl = SetupCompiler.class.getClassLoader();
+            try (InputStream xsd = cl.getResourceAsStream(MarshallUtil.XSD_RESOURCE)) {
+                if (xsd == null) {
+                    throw new IOException("XSD configuration not found");
+                }
+                result = SetupJournal.checksum(SetupJournal.digesting(xsd));
+                schemaChecksum = result;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Setup loaded from a compiled file, with the checksum of the setup XML it was compiled from.
+     */
+    public static final class CompiledSetup {
+
+        private final Setup setup;
+        private final String checksum;
+
+        private CompiledSetup(final Setup setup, final String checksum) {
+            this.setup = setup;
+            this.checksum = checksum;
+        }
+
+        public Setup getSetup() {
+            return setup;
+        }
+
+        /**
+         * @return checksum of the setup XML, see {@link SetupJournal#checksum}
+         */
+        public String getChecksum() {
+            return checksum;
+        }
+    }
+
+    /**
+     * Resolves the domain classes by the class loader of this library and refuses any class a setup cannot contain, so
+     * that a tampered compiled file cannot instantiate other serializable classes of the class path.
+     */
+    private static final class DomainObjectInputStream extends ObjectInputStream {
+
+        private DomainObjectInputStream(final InputStream in) throws IOException {
+            super(in);
+        }
+
+        @Override
+        protected Class<?> resolveClass(final ObjectStreamClass desc) throws IOException, ClassNotFoundException {
+            String name = desc.getName();
+            if (name.startsWith(DOMAIN_PACKAGE_PREFIX) || ALLOWED_CLASSES.contains(name)) {
+                return Class.forName(name, false, Setup.class.getClassLoader());
+            }
+            throw new InvalidClassException(name, "Not allowed in a compiled setup");
+        }
+    }
+}
@@ -0,0 +1,134 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2020 Lundegaard a.s.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package eu.lundegaard.liferay.db.setup;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Changes a setup would make to the portal, computed by {@link LiferaySetup#plan} without writing anything. Each step
+ * is a single entity with the action planned for it and the estimated number of service calls needed to apply it.
+ */
+public final class SetupPlan {
+
+    private final List<Step> steps = new ArrayList<>();
+
+    public enum Action {
+        CREATE, UPDATE, DELETE, NO_OP
+    }
+
+    public void add(final String entityType, final String identity, final Action action, final int serviceCalls) {
+        steps.add(new Step(entityType, identity, action, serviceCalls));
+    }
+
+    public List<Step> getSteps() {
+        return Collections.unmodifiableList(steps);
+    }
+
+    /**
+     * @return number of steps with given action
+     */
+    public int count(final Action action) {
+        int count = 0;
+        for (Step step : steps) {
+            if (step.action == action) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    public long getEstimatedServiceCalls() {
+        long calls = 0;
+        for (Step step : steps) {
+            calls += step.serviceCalls;
+        }
+        return calls;
+    }
+
+    /**
+     * @return entity type -> action -> number of steps, in the order the entity types are set up
+     */
+    public Map<String, Map<Action, Integer>> getSummary() {
+        Map<String, Map<Action, Integer>> summary = new LinkedHashMap<>();
+        for (Step step : steps) {
+            summary.computeIfAbsent(step.entityType, type -> new EnumMap<>(Action.class))
+                    .merge(step.action, 1, Integer::sum);
+        }
+        return summary;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("Setup plan, ").append(getEstimatedServiceCalls())
+                .append(" estimated service calls");
+        for (Map.Entry<String, Map<Action, Integer>> entry : getSummary().entrySet()) {
+            sb.append(System.lineSeparator()).append(entry.getKey()).append(": ").append(entry.getValue());
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Planned action on a single entity.
+     */
+    public static final class Step {
+
+        private final String entityType;
+        private final String identity;
+        private final Action action;
+        private final int serviceCalls;
+
+        Step(final String entityType, final String identity, final Action action, final int serviceCalls) {
+            this.entityType = entityType;
+            this.identity = identity;
+            this.action = action;
+            this.serviceCalls = serviceCalls;
+        }
+
+        public String getEntityType() {
+            return entityType;
+        }
+
+        public String getIdentity() {
+            return identity;
+        }
+
+        public Action getAction() {
+            return action;
+        }
+
+        public int getServiceCalls() {
+            return serviceCalls;
+        }
+
+        @Override
+        public String toString() {
+            return action + " " + entityType + " " + identity;
+        }
+    }
+}
@@ -0,0 +1,135 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2020 Lundegaard a.s.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package eu.lundegaard.liferay.db.setup;
+
+import com.liferay.portal.kernel.log.Log;
+import com.liferay.portal.kernel.log.LogFactoryUtil;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.util.Collections;
+import java.util.Map;
+import java.util.function.Consumer;
+import javax.xml.bind.JAXBException;
+import javax.xml.bind.JAXBIntrospector;
+import javax.xml.bind.Unmarshaller;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+/**
+ * Reads a setup XML with StAX and unmarshals only the requested parts of it, so that the whole {@code Setup} tree never
+ * has to be kept in memory. Every read is a separate pass over the source, which is why the source is a {@link URL}
+ * that can be opened repeatedly.
+ */
+final class StreamingSetupReader {
+
+    private static final Log LOG = LogFactoryUtil.getLog(StreamingSetupReader.class);
+    private static final int SECTION_DEPTH = 2;
+    private static final int ELEMENT_DEPTH = 3;
+
+    private final URL source;
+    private final XMLInputFactory inputFactory;
+
+    StreamingSetupReader(final URL source) {
+        this.source = source;
+        this.inputFactory = XMLInputFactory.newInstance();
+        this.inputFactory.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, true);
+        this.inputFactory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        this.inputFactory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+    }
+
+    /**
+     * Unmarshals every top-level section of the setup whose element name is one of the keys of given handlers and
+     * passes it to the matching handler. All the other sections are skipped.
+     *
+     * @param handlers section element name to handler
+     */
+    void readSections(final Map<String, Consumer<Object>> handlers)
+            throws IOException, XMLStreamException, JAXBException {
+        read(SECTION_DEPTH, null, handlers);
+    }
+
+    /**
+     * Unmarshals the child elements of given top-level section one at a time. Each element is released as soon as the
+     * consumer returns.
+     *
+     * @param section top-level section element name, e.g. {@code sites}
+     * @param element child element name, e.g. {@code site}
+     * @param type class of the child elements
+     * @param consumer handler of a single child element
+     */
+    <T> void readElements(final String section, final String element, final Class<T> type, final Consumer<T> consumer)
+            throws IOException, XMLStreamException, JAXBException {
+        Consumer<Object> handler = child -> consumer.accept(type.cast(child));
+        read(ELEMENT_DEPTH, section, Collections.singletonMap(element, handler));
+    }
+
+    private void read(final int depthToUnmarshall, final String section, final Map<String, Consumer<Object>> handlers)
+            throws IOException, XMLStreamException, JAXBException {
+
+        Unmarshaller unmarshaller = MarshallUtil.borrowUnmarshaller();
+        try (InputStream stream = source.openStream()) {
+            XMLStreamReader reader = inputFactory.createXMLStreamReader(stream);
+            try {
+                int depth = 0;
+                boolean inSection = false;
+                int event = reader.getEventType();
+                while (true) {
+                    if (event == XMLStreamConstants.START_ELEMENT) {
+                        depth++;
+                        String name = reader.getLocalName();
+                        if (depth == SECTION_DEPTH) {
+                            inSection = name.equals(section);
+                        }
+                        Consumer<Object> target = null;
+                        if (depth == depthToUnmarshall && (section == null || inSection)) {
+                            target = handlers.get(name);
+                        }
+                        if (target != null) {
+                            // the unmarshaller consumes the whole element including its end tag
+                            Object element = JAXBIntrospector.getValue(unmarshaller.unmarshal(reader));
+                            depth--;
+                            target.accept(element);
+                            event = reader.getEventType();
+                            continue;
+                        }
+                    } else if (event == XMLStreamConstants.END_ELEMENT) {
+                        depth--;
+                    }
+                    if (!reader.hasNext()) {
+                        break;
+                    }
+                    event = reader.next();
+                }
+            } finally {
+                reader.close();
+            }
+        } finally {
+            MarshallUtil.releaseUnmarshaller(unmarshaller);
+        }
+        LOG.debug("Finished streaming pass over " + source);
+    }
+}
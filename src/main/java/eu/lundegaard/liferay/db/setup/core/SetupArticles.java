@@ -44,8 +44,6 @@ import com.liferay.portal.kernel.exception.SystemException;
 import com.liferay.portal.kernel.log.Log;
 import com.liferay.portal.kernel.log.LogFactoryUtil;
 import com.liferay.portal.kernel.model.RoleConstants;
-import com.liferay.portal.kernel.search.Indexer;
-import com.liferay.portal.kernel.search.IndexerRegistryUtil;
 import com.liferay.portal.kernel.security.permission.ActionKeys;
 import com.liferay.portal.kernel.service.ClassNameLocalServiceUtil;
 import com.liferay.portal.kernel.service.ServiceContext;
@@ -53,11 +51,17 @@ import com.liferay.portal.kernel.util.*;
 import com.liferay.portal.kernel.workflow.WorkflowConstants;
 import com.liferay.portlet.display.template.PortletDisplayTemplate;
 import eu.lundegaard.liferay.db.setup.LiferaySetup;
+import eu.lundegaard.liferay.db.setup.core.util.ContentDigestUtil;
+import eu.lundegaard.liferay.db.setup.core.util.IndexerUtil;
+import eu.lundegaard.liferay.db.setup.core.util.ResolutionCache;
 import eu.lundegaard.liferay.db.setup.core.util.ResolverUtil;
 import eu.lundegaard.liferay.db.setup.core.util.ResourcesUtil;
+import eu.lundegaard.liferay.db.setup.core.util.SetupJournal;
 import eu.lundegaard.liferay.db.setup.core.util.StringPool;
 import eu.lundegaard.liferay.db.setup.core.util.TaggingUtil;
+import eu.lundegaard.liferay.db.setup.core.util.TransactionBatchUtil;
 import eu.lundegaard.liferay.db.setup.core.util.FieldMapUtil;
+import eu.lundegaard.liferay.db.setup.core.util.SetupMetrics;
 import eu.lundegaard.liferay.db.setup.core.util.WebFolderUtil;
 import eu.lundegaard.liferay.db.setup.domain.*;
 import java.io.IOException;
@@ -67,6 +71,7 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
+import java.util.stream.Collectors;
 
 /**
  * Created by mapa, guno..
@@ -78,6 +83,7 @@ public final class SetupArticles {
     private static final HashMap<String, List<String>> DEFAULT_DDM_PERMISSIONS;
     private static final int ARTICLE_PUBLISH_YEAR = 2008;
     private static final int MIN_DISPLAY_ROWS = 10;
+    private static final String DIGEST_VERSION_SEPARATOR = "@";
 
     static {
         DEFAULT_PERMISSIONS = new HashMap<String, List<String>>();
@@ -124,6 +130,7 @@ public final class SetupArticles {
         List<Structure> articleStructures = site.getArticleStructure();
 
         if (articleStructures != null) {
+            SetupMetrics.serviceCall("ClassNameLocalService.getClassNameId");
             long classNameId = ClassNameLocalServiceUtil.getClassNameId(JournalArticle.class);
             for (Structure structure : articleStructures) {
                 try {
@@ -139,6 +146,7 @@ public final class SetupArticles {
         List<Structure> ddlStructures = site.getDdlStructure();
 
         if (articleStructures != null) {
+            SetupMetrics.serviceCall("ClassNameLocalService.getClassNameId");
             long classNameId = ClassNameLocalServiceUtil.getClassNameId(DDLRecordSet.class);
             for (Structure structure : ddlStructures) {
                 LOG.info("Adding DDL structure " + structure.getName());
@@ -169,9 +177,18 @@ public final class SetupArticles {
 
         List<Article> articles = site.getArticle();
         if (articles != null) {
-            for (Article article : articles) {
-                addJournalArticle(article, groupId, companyId);
-            }
+            TransactionBatchUtil.forEach(articles, "articles", article -> {
+                String unitKey = SetupJournal.key(groupId, article.getArticleId());
+                if (SetupJournal.isCompleted(SetupJournal.ARTICLE, unitKey)) {
+                    LOG.info("Journal Article " + article.getTitle() + " has been set up by an interrupted run");
+                    return;
+                }
+                // a failed article is not journaled, so that a resumed run tries it again
+                if (addJournalArticle(article, groupId, companyId)
+                        && article.getArticleId() != null && !article.getArticleId().isEmpty()) {
+                    SetupJournal.markCompleted(SetupJournal.ARTICLE, unitKey);
+                }
+            });
         }
         List<Adt> adts = site.getAdt();
         if (adts != null) {
@@ -237,6 +254,7 @@ public final class SetupArticles {
 
         DDMStructure ddmStructure = null;
         try {
+            SetupMetrics.serviceCall("DDMStructureLocalService.fetchStructure");
             ddmStructure = DDMStructureLocalServiceUtil.fetchStructure(groupId, classNameId,
                     structure.getKey());
         } catch (SystemException e) {
@@ -247,6 +265,7 @@ public final class SetupArticles {
             LOG.info("Structure already exists and will be overwritten.");
             if (structure.getParent() != null && !structure.getParent().isEmpty()) {
                 LOG.info("Setting up parent structure: " + structure.getName());
+                SetupMetrics.serviceCall("DDMStructureLocalService.fetchStructure");
                 DDMStructure parentStructure = DDMStructureLocalServiceUtil.fetchStructure(groupId,
                         classNameId, structure.getParent(), true);
                 if (parentStructure != null) {
@@ -256,6 +275,7 @@ public final class SetupArticles {
                 }
             }
 
+            SetupMetrics.serviceCall("DDMStructureLocalService.updateStructure");
             DDMStructure ddmStructureSaved = DDMStructureLocalServiceUtil.updateStructure(LiferaySetup.getRunAsUserId(),
                     ddmStructure.getStructureId(),
                     ddmStructure.getParentStructureId(), nameMap, descMap, ddmForm, ddmFormLayout,
@@ -270,6 +290,7 @@ public final class SetupArticles {
             return;
         }
 
+        SetupMetrics.serviceCall("DDMStructureLocalService.addStructure");
         DDMStructure newStructure = DDMStructureLocalServiceUtil.addStructure(
                 LiferaySetup.getRunAsUserId(), groupId, structure.getParent(), classNameId,
                 structure.getKey(), nameMap, descMap, ddmForm, ddmFormLayout, "json", 0, new ServiceContext());
@@ -277,6 +298,7 @@ public final class SetupArticles {
         SetupPermissions.updatePermission("Structure " + structure.getKey(), groupId, companyId,
                 newStructure.getStructureId(), DDMStructure.class.getName() + "-" + JournalArticle.class.getName(),
                 structure.getRolePermissions(), DEFAULT_DDM_PERMISSIONS);
+        ResolutionCache.invalidate(ResolutionCache.STRUCTURE, groupId, structure.getKey());
         LOG.info("Added Article structure: " + newStructure.getName());
     }
 
@@ -291,7 +313,9 @@ public final class SetupArticles {
             throws SystemException, PortalException, IOException, URISyntaxException {
 
         LOG.info("Adding Article template " + template.getName());
+        SetupMetrics.serviceCall("ClassNameLocalService.getClassNameId");
         long classNameId = ClassNameLocalServiceUtil.getClassNameId(DDMStructure.class);
+        SetupMetrics.serviceCall("ClassNameLocalService.getClassNameId");
         long resourceClassnameId = ClassNameLocalServiceUtil.getClassNameId(JournalArticle.class);
         Map<Locale, String> nameMap = new HashMap<>();
         Locale siteDefaultLocale = PortalUtil.getSiteDefaultLocale(groupId);
@@ -324,6 +348,7 @@ public final class SetupArticles {
 
         DDMTemplate ddmTemplate = null;
         try {
+            SetupMetrics.serviceCall("DDMTemplateLocalService.fetchTemplate");
             ddmTemplate = DDMTemplateLocalServiceUtil.fetchTemplate(groupId, classNameId, template.getKey());
         } catch (SystemException e) {
             LOG.error("Error while trying to find template with key: " + template.getKey(), e);
@@ -337,16 +362,20 @@ public final class SetupArticles {
             ddmTemplate.setClassPK(classPK);
             ddmTemplate.setCacheable(template.isCacheable());
 
+            SetupMetrics.serviceCall("DDMTemplateLocalService.updateDDMTemplate");
             DDMTemplateLocalServiceUtil.updateDDMTemplate(ddmTemplate);
             LOG.info("Template successfully updated: " + ddmTemplate.getName());
             return;
         }
 
+        SetupMetrics.serviceCall("DDMTemplateLocalService.addTemplate");
         DDMTemplate newTemplate = DDMTemplateLocalServiceUtil.addTemplate(
                 LiferaySetup.getRunAsUserId(), groupId, classNameId, classPK, resourceClassnameId, template.getKey(),
                 nameMap, descMap, DDMTemplateConstants.TEMPLATE_TYPE_DISPLAY, null, template.getLanguage(), script,
                 template.isCacheable(), false,
                 null, null, new ServiceContext());
+        // templates are referred by UUID regardless of their site
+        ResolutionCache.invalidateKey(ResolutionCache.TEMPLATE, template.getKey());
         LOG.info("Added Article template: " + newTemplate.getName());
     }
 
@@ -356,6 +385,7 @@ public final class SetupArticles {
         LOG.info("Adding ADT " + template.getName());
         long classNameId = PortalUtil.getClassNameId(template.getClassName());
 
+        SetupMetrics.serviceCall("ClassNameLocalService.getClassNameId");
         long resourceClassnameId = Validator.isBlank(template.getResourceClassName())
                 ? ClassNameLocalServiceUtil.getClassNameId(PortletDisplayTemplate.class)
                 : ClassNameLocalServiceUtil.getClassNameId(template.getResourceClassName());
@@ -374,6 +404,7 @@ public final class SetupArticles {
 
         DDMTemplate ddmTemplate = null;
         try {
+            SetupMetrics.serviceCall("DDMTemplateLocalService.fetchTemplate");
             ddmTemplate = DDMTemplateLocalServiceUtil.fetchTemplate(groupId, classNameId,
                     template.getTemplateKey(), true);
         } catch (SystemException e) {
@@ -391,20 +422,26 @@ public final class SetupArticles {
             ddmTemplate.setCacheable(template.isCacheable());
             ddmTemplate.setScript(script);
 
+            SetupMetrics.serviceCall("DDMTemplateLocalService.updateDDMTemplate");
             DDMTemplateLocalServiceUtil.updateDDMTemplate(ddmTemplate);
             LOG.info("ADT successfully updated: " + ddmTemplate.getName());
             return;
         }
 
+        SetupMetrics.serviceCall("DDMTemplateLocalService.addTemplate");
         DDMTemplate newTemplate = DDMTemplateLocalServiceUtil.addTemplate(
                 LiferaySetup.getRunAsUserId(), groupId, classNameId, 0, resourceClassnameId, template.getTemplateKey(),
                 nameMap, descriptionMap, DDMTemplateConstants.TEMPLATE_TYPE_DISPLAY, null, template.getLanguage(),
                 script, true, false,
                 null, null, new ServiceContext());
+        ResolutionCache.invalidateKey(ResolutionCache.TEMPLATE, template.getTemplateKey());
         LOG.info("Added ADT: " + newTemplate.getName());
     }
 
-    public static void addJournalArticle(final Article article, final long groupId,
+    /**
+     * @return whether the article has been set up or is unchanged, false if its write failed
+     */
+    public static boolean addJournalArticle(final Article article, final long groupId,
             final long companyId) {
         LOG.info("Adding Journal Article " + article.getTitle());
 
@@ -458,6 +495,7 @@ public final class SetupArticles {
             LOG.info("Article " + article.getTitle() + " will have autogenerated ID.");
         } else {
             try {
+                SetupMetrics.serviceCall("JournalArticleLocalService.fetchLatestArticle");
                 journalArticle = JournalArticleLocalServiceUtil.fetchLatestArticle(groupId,
                         article.getArticleId(), WorkflowConstants.STATUS_APPROVED);
             } catch (SystemException e) {
@@ -466,8 +504,19 @@ public final class SetupArticles {
             }
         }
 
+        long[] categoryIds = TaggingUtil.getCategoryIds(groupId, companyId, article);
+        String digest = getArticleDigest(article, content, titleMap, descriptionMap, folderId, categoryIds,
+                groupId, companyId);
+        if (journalArticle != null && isUnchanged(journalArticle, digest)) {
+            LOG.info("Article " + article.getTitle() + " with article ID: " + article.getArticleId()
+                    + " is unchanged, skipping.");
+            return true;
+        }
+
+        boolean indexReadOnly = IndexerUtil.suspendIndexing();
         try {
             if (journalArticle == null) {
+                SetupMetrics.serviceCall("JournalArticleLocalService.addArticle");
                 journalArticle = JournalArticleLocalServiceUtil.addArticle(
                         LiferaySetup.getRunAsUserId(), groupId, folderId, 0, 0,
                         article.getArticleId(), generatedId,
@@ -479,10 +528,6 @@ public final class SetupArticles {
 
                 LOG.info("Added JournalArticle " + journalArticle.getTitle() + " with ID: "
                         + journalArticle.getArticleId());
-                Indexer bi = IndexerRegistryUtil.getIndexer(JournalArticle.class);
-                if (bi != null) {
-                    bi.reindex(journalArticle);
-                }
             } else {
                 LOG.info("Article " + article.getTitle() + " with article ID: "
                         + article.getArticleId() + " already exists. Will be overwritten.");
@@ -490,26 +535,77 @@ public final class SetupArticles {
                 journalArticle.setContent(content);
                 journalArticle.setDescriptionMap(descriptionMap);
 
+                SetupMetrics.serviceCall("JournalArticleLocalService.updateJournalArticle");
                 JournalArticleLocalServiceUtil.updateJournalArticle(journalArticle);
 
                 // if the folder changed, move it...
                 if (journalArticle.getFolderId() != folderId) {
+                    SetupMetrics.serviceCall("JournalArticleLocalService.moveArticle");
                     JournalArticleLocalServiceUtil.moveArticle(groupId,
                             journalArticle.getArticleId(), folderId, serviceContext);
                 }
                 LOG.info("Updated JournalArticle: " + journalArticle.getTitle());
             }
-            TaggingUtil.associateTagsAndCategories(groupId, article, journalArticle);
+            ResolutionCache.invalidate(ResolutionCache.ARTICLE, groupId, journalArticle.getArticleId());
+            TaggingUtil.associateTagsAndCategories(groupId, article, journalArticle, categoryIds);
             processRelatedAssets(article, journalArticle, LiferaySetup.getRunAsUserId(), groupId,
                     companyId);
 
             SetupPermissions.updatePermission("Article " + journalArticle.getArticleId(), groupId,
                     companyId, journalArticle.getResourcePrimKey(), JournalArticle.class,
                     article.getRolePermissions(), DEFAULT_PERMISSIONS);
+            ContentDigestUtil.setDigest(companyId, JournalArticle.class.getName(), journalArticle.getResourcePrimKey(),
+                    digest + DIGEST_VERSION_SEPARATOR + journalArticle.getVersion());
+            IndexerUtil.deferReindex(JournalArticle.class, journalArticle.getId());
+            return true;
         } catch (PortalException | SystemException e) {
             LOG.error("Error while trying to add/update Article with Title: " + article.getTitle(),
                     e);
+            return false;
+        } finally {
+            IndexerUtil.resumeIndexing(indexReadOnly);
+        }
+    }
+
+    /**
+     * Digest of everything the setup writes into the article, its asset entry and its permissions.
+     */
+    private static String getArticleDigest(final Article article, final String content,
+            final Map<Locale, String> titleMap, final Map<Locale, String> descriptionMap, final long folderId,
+            final long[] categoryIds, final long groupId, final long companyId) {
+
+        List<String> relatedAssets = new ArrayList<>();
+        RelatedAssets ras = article.getRelatedAssets();
+        if (ras != null) {
+            relatedAssets.add(Boolean.toString(ras.isClearAllAssets()));
+            for (RelatedAsset r : ras.getRelatedAsset()) {
+                relatedAssets.add(r.getAssetClass());
+                relatedAssets.add(ResolverUtil.lookupAll(LiferaySetup.getRunAsUserId(), groupId, companyId,
+                        r.getAssetClassPrimaryKey(), "Related asset for article " + article.getArticleId()));
+            }
+        }
+        List<Object> permissions = new ArrayList<>();
+        RolePermissions rolePermissions = article.getRolePermissions();
+        if (rolePermissions != null) {
+            permissions.add(Boolean.toString(rolePermissions.isClearPermissions()));
+            for (RolePermission rp : rolePermissions.getRolePermission()) {
+                permissions.add(rp.getRoleName());
+                permissions.add(rp.getPermissionAction().stream().map(PermissionAction::getActionName)
+                        .collect(Collectors.toList()));
+            }
         }
+        return ContentDigestUtil.digest(content, titleMap, descriptionMap, folderId,
+                TaggingUtil.getTagNames(article), categoryIds, relatedAssets, permissions);
+    }
+
+    /**
+     * The stored digest contains the version of the article, so the article is set up again when it has been edited
+     * since the last run.
+     */
+    private static boolean isUnchanged(final JournalArticle journalArticle, final String digest) {
+        String stored = ContentDigestUtil.getDigest(journalArticle.getCompanyId(), JournalArticle.class.getName(),
+                journalArticle.getResourcePrimKey());
+        return (digest + DIGEST_VERSION_SEPARATOR + journalArticle.getVersion()).equals(stored);
     }
 
     private static void addDDLRecordSet(final DdlRecordset recordSet, final long groupId)
@@ -522,6 +618,7 @@ public final class SetupArticles {
         descMap.put(siteDefaultLocale, recordSet.getDescription());
         DDLRecordSet ddlRecordSet = null;
         try {
+            SetupMetrics.serviceCall("DDLRecordSetLocalService.fetchRecordSet");
             ddlRecordSet = DDLRecordSetLocalServiceUtil.fetchRecordSet(groupId, recordSet.getKey());
         } catch (SystemException e) {
             LOG.error("Error while trying to find DDLRecordSet with key: " + recordSet.getKey(), e);
@@ -533,17 +630,20 @@ public final class SetupArticles {
             ddlRecordSet.setDescriptionMap(descMap);
             ddlRecordSet.setDDMStructureId(ResolverUtil
                     .getStructureId(recordSet.getDdlStructureKey(), groupId, DDLRecordSet.class, false));
+            SetupMetrics.serviceCall("DDLRecordSetLocalService.updateDDLRecordSet");
             DDLRecordSetLocalServiceUtil.updateDDLRecordSet(ddlRecordSet);
             LOG.info("DDLRecordSet successfully updated: " + recordSet.getName());
             return;
         }
 
+        SetupMetrics.serviceCall("DDLRecordSetLocalService.addRecordSet");
         DDLRecordSet newDDLRecordSet = DDLRecordSetLocalServiceUtil.addRecordSet(
                 LiferaySetup.getRunAsUserId(), groupId,
                 ResolverUtil.getStructureId(recordSet.getDdlStructureKey(), groupId,
                         DDLRecordSet.class, false),
                 recordSet.getDdlStructureKey(), nameMap, descMap, MIN_DISPLAY_ROWS, 0,
                 new ServiceContext());
+        ResolutionCache.invalidate(ResolutionCache.DDL_RECORD_SET, groupId, recordSet.getKey());
         LOG.info("Added DDLRecordSet: " + newDDLRecordSet.getName());
     }
 
@@ -551,14 +651,19 @@ public final class SetupArticles {
             final long runAsUserId, final long groupId, final long companyId) {
         if (article.getRelatedAssets() != null) {
             RelatedAssets ras = article.getRelatedAssets();
-            AssetEntry ae = null;
+            SetupMetrics.serviceCall("AssetEntryLocalService.fetchEntry");
+            AssetEntry ae = AssetEntryLocalServiceUtil.fetchEntry(JournalArticle.class.getName(),
+                    ja.getResourcePrimKey());
+            if (ae == null) {
+                LOG.error("Asset entry of article " + ja.getArticleId() + " not found, cannot set related assets");
+                return;
+            }
             if (ras.isClearAllAssets()) {
 
                 try {
-                    ae = AssetEntryLocalServiceUtil.getEntry(JournalArticle.class.getName(),
-                            ja.getResourcePrimKey());
+                    SetupMetrics.serviceCall("AssetLinkLocalService.deleteLinks");
                     AssetLinkLocalServiceUtil.deleteLinks(ae.getEntryId());
-                } catch (PortalException | SystemException e) {
+                } catch (SystemException e) {
                     LOG.error("Problem clearing related assets of article " + ja.getArticleId(), e);
                 }
             }
@@ -579,9 +684,16 @@ public final class SetupArticles {
                         LOG.error("Class primary key is not parseable as long value.", ex);
                     }
 
+                    // a failed lookup would mark the transaction of the whole batch for rollback
+                    SetupMetrics.serviceCall("AssetEntryLocalService.fetchEntry");
+                    AssetEntry ae2 = AssetEntryLocalServiceUtil.fetchEntry(clazz, id);
+                    if (ae2 == null) {
+                        LOG.error("Related asset of article " + ja.getArticleId() + " with clazz " + clazz
+                                + " primary key " + clazzPrimKey + " not found");
+                        continue;
+                    }
                     try {
-
-                        AssetEntry ae2 = AssetEntryLocalServiceUtil.getEntry(clazz, id);
+                        SetupMetrics.serviceCall("AssetLinkLocalService.addLink");
                         AssetLinkLocalServiceUtil.addLink(runAsUserId, ae.getEntryId(),
                                 ae2.getEntryId(), AssetLinkConstants.TYPE_RELATED, 1);
                     } catch (PortalException | SystemException e) {
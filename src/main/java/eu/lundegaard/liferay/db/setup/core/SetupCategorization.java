@@ -39,7 +39,10 @@ import com.liferay.portal.kernel.util.ArrayUtil;
 import com.liferay.portal.kernel.util.PortalUtil;
 import com.liferay.portlet.asset.util.AssetVocabularySettingsHelper;
 import eu.lundegaard.liferay.db.setup.LiferaySetup;
+import eu.lundegaard.liferay.db.setup.core.util.CategoryTreeCache;
+import eu.lundegaard.liferay.db.setup.core.util.IndexerUtil;
 import eu.lundegaard.liferay.db.setup.core.util.ResolverUtil;
+import eu.lundegaard.liferay.db.setup.core.util.SetupMetrics;
 import eu.lundegaard.liferay.db.setup.core.util.FieldMapUtil;
 import eu.lundegaard.liferay.db.setup.domain.AssociatedAssetType;
 import eu.lundegaard.liferay.db.setup.domain.Category;
@@ -92,6 +95,7 @@ public final class SetupCategorization {
 
         AssetVocabulary assetVocabulary = null;
         try {
+            SetupMetrics.serviceCall("AssetVocabularyLocalService.getGroupVocabulary");
             assetVocabulary = AssetVocabularyLocalServiceUtil.getGroupVocabulary(groupId, vocabulary.getName());
         } catch (PortalException | SystemException e) {
             LOG.error("Asset vocabulary was not found");
@@ -106,6 +110,7 @@ public final class SetupCategorization {
             assetVocabulary.setSettings(composeVocabularySettings(vocabulary, groupId));
 
             try {
+                SetupMetrics.serviceCall("AssetVocabularyLocalService.updateAssetVocabulary");
                 assetVocabulary = AssetVocabularyLocalServiceUtil
                         .updateAssetVocabulary(assetVocabulary);
                 LOG.debug("Vocabulary successfully updated.");
@@ -124,6 +129,7 @@ public final class SetupCategorization {
             ServiceContext serviceContext = new ServiceContext();
             serviceContext.setCompanyId(PortalUtil.getDefaultCompanyId());
             serviceContext.setScopeGroupId(groupId);
+            SetupMetrics.serviceCall("AssetVocabularyLocalService.addVocabulary");
             assetVocabulary = AssetVocabularyLocalServiceUtil.addVocabulary(
                     LiferaySetup.getRunAsUserId(), groupId, null, titleMap, descMap,
                     composeVocabularySettings(vocabulary, groupId), serviceContext);
@@ -154,6 +160,7 @@ public final class SetupCategorization {
         List<Boolean> requireds = new LinkedList<>();
 
         for (AssociatedAssetType type : types) {
+            SetupMetrics.serviceCall("ClassNameLocalService.fetchClassName");
             ClassName className = ClassNameLocalServiceUtil.fetchClassName(type.getClassName());
             if (className.getValue().isEmpty()) {
                 continue;
@@ -229,17 +236,10 @@ public final class SetupCategorization {
 
         AssetCategory assetCategory = null;
 
-        try {
-            String[] properties = {};
-            List<AssetCategory> existingCategories = AssetCategoryLocalServiceUtil
-                    .getChildCategories(parentCategoryId);
-            for (AssetCategory ac : existingCategories) {
-                if (ac.getName().equals(category.getName())) {
-                    assetCategory = ac;
-                }
-            }
-        } catch (SystemException e) {
-            LOG.error("Error while trying to find category with name: " + category.getName(), e);
+        Long categoryId = CategoryTreeCache.getCategoryId(vocabularyId, parentCategoryId, category.getName());
+        if (categoryId != null) {
+            SetupMetrics.serviceCall("AssetCategoryLocalService.fetchAssetCategory");
+            assetCategory = AssetCategoryLocalServiceUtil.fetchAssetCategory(categoryId);
         }
 
         if (assetCategory != null) {
@@ -249,12 +249,17 @@ public final class SetupCategorization {
             assetCategory.setDescriptionMap(descMap);
             assetCategory.setName(category.getName());
 
+            boolean indexReadOnly = IndexerUtil.suspendIndexing();
             try {
+                SetupMetrics.serviceCall("AssetCategoryLocalService.updateAssetCategory");
                 AssetCategoryLocalServiceUtil.updateAssetCategory(assetCategory);
+                IndexerUtil.deferReindex(AssetCategory.class, assetCategory.getCategoryId());
                 LOG.info("Category successfully updated.");
             } catch (SystemException e) {
                 LOG.error("Error while trying to update category with name: "
                         + assetCategory.getName(), e);
+            } finally {
+                IndexerUtil.resumeIndexing(indexReadOnly);
             }
 
             setupCategories(vocabularyId, groupId, assetCategory.getCategoryId(),
@@ -262,9 +267,14 @@ public final class SetupCategorization {
             return;
         }
 
+        boolean indexReadOnly = IndexerUtil.suspendIndexing();
         try {
+            SetupMetrics.serviceCall("AssetCategoryLocalService.addCategory");
             assetCategory = AssetCategoryLocalServiceUtil.addCategory(LiferaySetup.getRunAsUserId(), groupId,
                     parentCategoryId, titleMap, descMap, vocabularyId, null, serviceContext);
+            IndexerUtil.deferReindex(AssetCategory.class, assetCategory.getCategoryId());
+            CategoryTreeCache.putCategory(vocabularyId, parentCategoryId, assetCategory.getName(),
+                    assetCategory.getCategoryId());
             LOG.info("Category successfully added with title: " + assetCategory.getTitle());
 
             setupCategories(vocabularyId, groupId, assetCategory.getCategoryId(),
@@ -272,6 +282,8 @@ public final class SetupCategorization {
 
         } catch (PortalException | SystemException e) {
             LOG.error("Error in creating category with name: " + category.getName(), e);
+        } finally {
+            IndexerUtil.resumeIndexing(indexReadOnly);
         }
 
     }
@@ -32,6 +32,7 @@ import com.liferay.portal.kernel.exception.SystemException;
 import com.liferay.portal.kernel.log.Log;
 import com.liferay.portal.kernel.log.LogFactoryUtil;
 import com.liferay.portal.kernel.util.*;
+import eu.lundegaard.liferay.db.setup.core.util.SetupMetrics;
 import eu.lundegaard.liferay.db.setup.domain.CustomFields;
 import eu.lundegaard.liferay.db.setup.domain.RolePermission;
 import java.io.Serializable;
@@ -70,10 +71,12 @@ public final class SetupCustomFields {
         for (CustomFields.Field field : customFields) {
             ExpandoTable table;
             try {
+                SetupMetrics.serviceCall("ExpandoTableLocalService.getDefaultTable");
                 table = ExpandoTableLocalServiceUtil.getDefaultTable(COMPANY_ID,
                         field.getClassName());
                 if (table != null && !tables.contains(table.getName())) {
                     tables.add(table.getName());
+                    SetupMetrics.serviceCall("ExpandoColumnLocalService.getColumns");
                     List<ExpandoColumn> columns = ExpandoColumnLocalServiceUtil
                             .getColumns(COMPANY_ID, field.getClassName(), table.getName());
                     all.addAll(columns);
@@ -92,8 +95,10 @@ public final class SetupCustomFields {
         try {
             int fieldTypeKey = getFieldTypeKey(field.getType());
             if (bridge.hasAttribute(name)) {
+                SetupMetrics.serviceCall("ExpandoColumnLocalService.getColumn");
                 ExpandoColumn column = ExpandoColumnLocalServiceUtil.getColumn(COMPANY_ID,
                         bridge.getClassName(), ExpandoTableConstants.DEFAULT_TABLE_NAME, name);
+                SetupMetrics.serviceCall("ExpandoColumnLocalService.updateColumn");
                 ExpandoColumnLocalServiceUtil.updateColumn(column.getColumnId(), name, fieldTypeKey,
                         getAttributeFromString(fieldTypeKey, field.getDefaultData()));
             } else {
@@ -117,6 +122,7 @@ public final class SetupCustomFields {
 
         LOG.info("Set read permissions on  field " + fieldName + " for " + rolePermissions.size()
                 + " rolePermissions");
+        SetupMetrics.serviceCall("ExpandoColumnLocalService.getColumn");
         ExpandoColumn column = ExpandoColumnLocalServiceUtil.getColumn(COMPANY_ID,
                 bridge.getClassName(), ExpandoTableConstants.DEFAULT_TABLE_NAME, fieldName);
         for (RolePermission rolePermission : rolePermissions) {
@@ -164,6 +170,7 @@ public final class SetupCustomFields {
                 for (ExpandoColumn expandoColumn : expandoColumns) {
                     if (!skipFields.contains(expandoColumn.getName())) {
                         try {
+                            SetupMetrics.serviceCall("ExpandoColumnLocalService.deleteColumn");
                             ExpandoColumnLocalServiceUtil.deleteColumn(expandoColumn.getColumnId());
                         } catch (PortalException | SystemException e) {
                             LOG.error("Could not delete CustomField " + expandoColumn.getName(), e);
@@ -174,8 +181,10 @@ public final class SetupCustomFields {
         } else if (deleteMethod.equals("onlyListed")) {
             for (CustomFields.Field field : customFields) {
                 try {
+                    SetupMetrics.serviceCall("ExpandoTableLocalService.getDefaultTable");
                     ExpandoTable table = ExpandoTableLocalServiceUtil.getDefaultTable(COMPANY_ID,
                             field.getClassName());
+                    SetupMetrics.serviceCall("ExpandoColumnLocalService.deleteColumn");
                     ExpandoColumnLocalServiceUtil.deleteColumn(COMPANY_ID, field.getClassName(),
                             table.getName(), field.getName());
                 } catch (PortalException | SystemException e) {
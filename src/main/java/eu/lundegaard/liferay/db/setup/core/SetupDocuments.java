@@ -30,13 +30,23 @@ import com.liferay.portal.kernel.model.RoleConstants;
 import com.liferay.portal.kernel.repository.model.FileEntry;
 import com.liferay.portal.kernel.repository.model.Folder;
 import com.liferay.portal.kernel.security.permission.ActionKeys;
+import com.liferay.portal.kernel.util.FileUtil;
 import eu.lundegaard.liferay.db.setup.LiferaySetup;
+import eu.lundegaard.liferay.db.setup.core.util.ContentDigestUtil;
 import eu.lundegaard.liferay.db.setup.core.util.DocumentUtil;
 import eu.lundegaard.liferay.db.setup.core.util.FolderUtil;
+import eu.lundegaard.liferay.db.setup.core.util.IndexerUtil;
+import eu.lundegaard.liferay.db.setup.core.util.ResolutionCache;
 import eu.lundegaard.liferay.db.setup.core.util.ResourcesUtil;
+import eu.lundegaard.liferay.db.setup.core.util.SetupJournal;
 import eu.lundegaard.liferay.db.setup.domain.Document;
 import eu.lundegaard.liferay.db.setup.domain.Site;
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
@@ -46,6 +56,7 @@ public final class SetupDocuments {
     private static final Log LOG = LogFactoryUtil.getLog(SetupDocuments.class);
     private static final HashMap<String, List<String>> DEFAULT_PERMISSIONS;
     private static final int BUFFER_SIZE = 2048;
+    private static final String DIGEST_VERSION_SEPARATOR = "@";
 
     static {
         DEFAULT_PERMISSIONS = new HashMap<String, List<String>>();
@@ -83,6 +94,11 @@ public final class SetupDocuments {
             String documentTitle = doc.getDocumentTitle();
             String extension = doc.getExtension();
             String filenameInFilesystem = doc.getFileSystemName();
+            String unitKey = SetupJournal.key(groupId, folderPath, documentName);
+            if (SetupJournal.isCompleted(SetupJournal.DOCUMENT, unitKey)) {
+                LOG.info(documentName + " has been set up by an interrupted run, skipping...");
+                continue;
+            }
             long repoId = groupId;
             long userId = LiferaySetup.getRunAsUserId();
             Long folderId = 0L;
@@ -93,27 +109,90 @@ public final class SetupDocuments {
             }
             FileEntry fe = DocumentUtil.findDocument(documentName, folderPath, groupId, company,
                     groupId, userId);
-            byte[] fileBytes = null;
-            try {
-                fileBytes = ResourcesUtil.getFileBytes(filenameInFilesystem);
+            InputStream fileStream = ResourcesUtil.getFileStream(filenameInFilesystem);
+            if (fileStream == null) {
+                LOG.error("Can not read file: " + filenameInFilesystem + ". Skipping file");
+                continue;
+            }
+            String digest;
+            try (InputStream content = fileStream) {
+                digest = ContentDigestUtil.digest(content);
             } catch (IOException e) {
                 LOG.error("Can not read file: " + filenameInFilesystem + ". Skipping file");
                 continue;
             }
-            if (fileBytes != null) {
-                if (fe == null) {
-                    fe = DocumentUtil.createDocument(company, groupId, folderId, documentName,
-                            documentTitle, userId, repoId, fileBytes);
-                    LOG.info(documentName + " is not found! It will be created! ");
-                } else {
-                    LOG.info(documentName + " is found! Content will be updated! ");
-                    DocumentUtil.updateFile(fe, fileBytes, userId,
-                            documentName);
+            if (fe != null && isUnchanged(fe, digest)) {
+                LOG.info(documentName + " has not changed since the last run, skipping upload");
+            } else {
+                File spooled = null;
+                try (InputStream content = ResourcesUtil.getFileStream(filenameInFilesystem)) {
+                    if (content == null) {
+                        throw new IOException("Resource not found: " + filenameInFilesystem);
+                    }
+                    long fileSize = ResourcesUtil.getFileSize(filenameInFilesystem);
+                    if (fileSize < 0) {
+                        spooled = spool(content);
+                        fileSize = spooled.length();
+                    }
+                    FileEntry uploaded;
+                    boolean indexReadOnly = IndexerUtil.suspendIndexing();
+                    try (InputStream sizedContent = spooled == null ? content : new FileInputStream(spooled)) {
+                        if (fe == null) {
+                            fe = DocumentUtil.createDocument(company, groupId, folderId, documentName,
+                                    documentTitle, userId, repoId, sizedContent, fileSize);
+                            uploaded = fe;
+                            LOG.info(documentName + " is not found! It will be created! ");
+                        } else {
+                            LOG.info(documentName + " is found! Content will be updated! ");
+                            uploaded = DocumentUtil.updateFile(fe, sizedContent, fileSize, userId,
+                                    documentName);
+                            // the JSON reference contains the title of the document
+                            ResolutionCache.invalidateSite(ResolutionCache.FILE, groupId);
+                        }
+                    } finally {
+                        IndexerUtil.resumeIndexing(indexReadOnly);
+                    }
+                    if (uploaded == null) {
+                        // the unit is not journaled, so that a resumed run uploads the document again
+                        LOG.error("Can not upload file: " + filenameInFilesystem + ". Skipping file");
+                        continue;
+                    }
+                    ContentDigestUtil.setDigest(company, DLFileEntry.class.getName(),
+                            uploaded.getFileEntryId(), digest + DIGEST_VERSION_SEPARATOR + uploaded.getVersion());
+                    IndexerUtil.deferReindex(DLFileEntry.class, uploaded.getFileEntryId());
+                } catch (IOException e) {
+                    LOG.error("Can not read file: " + filenameInFilesystem + ". Skipping file");
+                    continue;
+                } finally {
+                    if (spooled != null) {
+                        FileUtil.delete(spooled);
+                    }
                 }
-                SetupPermissions.updatePermission("Document " + folderPath + "/" + documentName,
-                        groupId, company, fe.getFileEntryId(), DLFileEntry.class,
-                        doc.getRolePermissions(), DEFAULT_PERMISSIONS);
             }
+            SetupPermissions.updatePermission("Document " + folderPath + "/" + documentName,
+                    groupId, company, fe.getFileEntryId(), DLFileEntry.class,
+                    doc.getRolePermissions(), DEFAULT_PERMISSIONS);
+            SetupJournal.markCompleted(SetupJournal.DOCUMENT, unitKey);
         }
     }
+
+    /**
+     * The store needs the size of the content up front, a content of unknown size, e.g. a resource of an OSGi bundle,
+     * is copied to a temporary file rather than read into memory.
+     */
+    private static File spool(final InputStream content) throws IOException {
+        File file = FileUtil.createTempFile();
+        Files.copy(content, file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        return file;
+    }
+
+    /**
+     * The stored digest contains the version of the file entry, so the document is uploaded again when it has been
+     * edited since the last run.
+     */
+    private static boolean isUnchanged(final FileEntry fileEntry, final String digest) {
+        String stored = ContentDigestUtil.getDigest(fileEntry.getCompanyId(), DLFileEntry.class.getName(),
+                fileEntry.getFileEntryId());
+        return (digest + DIGEST_VERSION_SEPARATOR + fileEntry.getVersion()).equals(stored);
+    }
 }
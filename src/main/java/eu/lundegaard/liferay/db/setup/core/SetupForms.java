@@ -35,6 +35,7 @@ import com.liferay.portal.kernel.log.Log;
 import com.liferay.portal.kernel.log.LogFactoryUtil;
 import com.liferay.portal.kernel.service.ClassNameLocalServiceUtil;
 import com.liferay.portal.kernel.service.ServiceContext;
+import eu.lundegaard.liferay.db.setup.core.util.SetupMetrics;
 import eu.lundegaard.liferay.db.setup.domain.Form;
 import java.util.List;
 import java.util.Locale;
@@ -56,9 +57,11 @@ public final class SetupForms {
             LOG.info("Executing " + setupAction + " on form " + getDefaultFormName(form));
 
             String defaultFormName = getDefaultFormName(form);
+            SetupMetrics.serviceCall("ClassNameLocalService.getClassNameId");
             long structureClassNameId = ClassNameLocalServiceUtil.getClassNameId(DDMFormInstance.class);
 
             try {
+                SetupMetrics.serviceCall("DDMStructureLocalService.getStructure");
                 DDMStructure retrievedStructure =
                         DDMStructureLocalServiceUtil.getStructure(groupId, structureClassNameId, form.getFormDbKey());
 
@@ -110,6 +113,7 @@ public final class SetupForms {
             String structureKey = form.getFormDbKey();
             String structureLayoutKey = structureKey + "_LAYOUT";
 
+            SetupMetrics.serviceCall("DDMStructureLocalService.addStructure");
             DDMStructure ddmStructure = DDMStructureLocalServiceUtil.addStructure(
                     userId,
                     groupId,
@@ -122,6 +126,7 @@ public final class SetupForms {
                     "json",
                     serviceContext);
 
+            SetupMetrics.serviceCall("DDMFormInstanceLocalService.addFormInstance");
             DDMFormInstanceLocalServiceUtil.addFormInstance(
                     userId,
                     groupId,
@@ -131,6 +136,7 @@ public final class SetupForms {
                     form.getFormSettings(),
                     serviceContext);
 
+            SetupMetrics.serviceCall("DDMStructureLayoutLocalService.addStructureLayout");
             DDMStructureLayoutLocalServiceUtil.addStructureLayout(
                     userId,
                     groupId,
@@ -154,6 +160,7 @@ public final class SetupForms {
             Map<Locale, String> descriptionMap = descriptionsListToMap(form.getFormDescription().getDescription());
             ServiceContext serviceContext = new ServiceContext();
 
+            SetupMetrics.serviceCall("DDMStructureLocalService.updateStructure");
             DDMStructure ddmStructure = DDMStructureLocalServiceUtil.updateStructure(
                     userId,
                     oldStructureId,
@@ -164,8 +171,10 @@ public final class SetupForms {
                     serviceContext);
 
             String oldStructureLayoutKey = form.getFormDbKey() + "_LAYOUT";
+            SetupMetrics.serviceCall("DDMStructureLayoutLocalService.getStructureLayout");
             long oldStructureLayoutId = DDMStructureLayoutLocalServiceUtil
                     .getStructureLayout(groupId, 0, oldStructureLayoutKey).getStructureLayoutId();
+            SetupMetrics.serviceCall("DDMStructureLayoutLocalService.updateStructureLayout");
             DDMStructureLayoutLocalServiceUtil.updateStructureLayout(
                     oldStructureLayoutId,
                     ddmStructure.getStructureVersion().getStructureVersionId(),
@@ -174,9 +183,11 @@ public final class SetupForms {
                     form.getFormLayout(),
                     serviceContext);
 
+            SetupMetrics.serviceCall("DDMFormInstanceLocalService.getFormInstances");
             long oldFormInstanceId = DDMFormInstanceLocalServiceUtil.getFormInstances(groupId).stream()
                     .filter(ddmFormInstance -> ddmFormInstance.getStructureId() == oldStructureId).findFirst()
                     .orElseThrow(IllegalStateException::new).getFormInstanceId();
+            SetupMetrics.serviceCall("DDMFormInstanceLocalService.updateFormInstance");
             DDMFormInstanceLocalServiceUtil.updateFormInstance(
                     oldFormInstanceId,
                     ddmStructure.getStructureId(),
@@ -193,16 +204,21 @@ public final class SetupForms {
 
     private static void deleteForm(long groupId, Form form, long structureId) {
         try {
+            SetupMetrics.serviceCall("DDMFormInstanceLocalService.getFormInstances");
             long formInstanceId = DDMFormInstanceLocalServiceUtil.getFormInstances(groupId).stream()
                     .filter(ddmFormInstance -> ddmFormInstance.getStructureId() == structureId).findFirst()
                     .orElseThrow(IllegalStateException::new).getFormInstanceId();
 
             String structureLayoutKey = form.getFormDbKey() + "_LAYOUT";
+            SetupMetrics.serviceCall("DDMStructureLayoutLocalService.getStructureLayout");
             long oldStructureLayoutId = DDMStructureLayoutLocalServiceUtil
                     .getStructureLayout(groupId, 0, structureLayoutKey).getStructureLayoutId();
 
+            SetupMetrics.serviceCall("DDMStructureLocalService.deleteDDMStructure");
             DDMStructureLocalServiceUtil.deleteDDMStructure(structureId);
+            SetupMetrics.serviceCall("DDMFormInstanceLocalService.deleteDDMFormInstance");
             DDMFormInstanceLocalServiceUtil.deleteDDMFormInstance(formInstanceId);
+            SetupMetrics.serviceCall("DDMStructureLayoutLocalService.deleteStructureLayout");
             DDMStructureLayoutLocalServiceUtil.deleteStructureLayout(oldStructureLayoutId);
 
             LOG.info("Form deleted successfully");
@@ -31,6 +31,7 @@ import com.liferay.portal.kernel.exception.PortalException;
 import com.liferay.portal.kernel.log.Log;
 import com.liferay.portal.kernel.log.LogFactoryUtil;
 import com.liferay.portal.kernel.service.ServiceContext;
+import eu.lundegaard.liferay.db.setup.core.util.SetupMetrics;
 import eu.lundegaard.liferay.db.setup.domain.Fragment;
 import eu.lundegaard.liferay.db.setup.domain.FragmentCollection;
 import java.util.List;
@@ -79,6 +80,7 @@ public class SetupFragments {
             if (existingCollection.isPresent()) {
                 LOG.info("Fragment collection " + collectionName + " already exists, skipping...");
             } else {
+                SetupMetrics.serviceCall("FragmentCollectionLocalService.addFragmentCollection");
                 com.liferay.fragment.model.FragmentCollection createdCollection =
                         FragmentCollectionLocalServiceUtil.addFragmentCollection(
                                 userId, groupId, collectionName, fragmentCollection.getDescription(),
@@ -115,6 +117,7 @@ public class SetupFragments {
         if (existingCollection.isPresent()) {
             LOG.info("Fragment collection " + collectionName + " found, updating...");
             try {
+                SetupMetrics.serviceCall("FragmentCollectionLocalService.updateFragmentCollection");
                 FragmentCollectionLocalServiceUtil.updateFragmentCollection(
                         existingCollection.get().getFragmentCollectionId(), fragmentCollection.getName(),
                         fragmentCollection.getDescription());
@@ -137,11 +140,13 @@ public class SetupFragments {
             LOG.info("Fragment collection " + collectionName + " found, deleting...");
             try {
                 com.liferay.fragment.model.FragmentCollection collection = existingCollection.get();
+                SetupMetrics.serviceCall("FragmentEntryLocalService.getFragmentEntriesCount");
                 if (FragmentEntryLocalServiceUtil.getFragmentEntriesCount(collection.getFragmentCollectionId()) > 0) {
                     LOG.info("Fragment collection " + collectionName + " has fragments, deleting them first...");
                     deleteChildFragments(collection, groupId);
                 }
 
+                SetupMetrics.serviceCall("FragmentCollectionLocalService.deleteFragmentCollection");
                 FragmentCollectionLocalServiceUtil
                         .deleteFragmentCollection(collection.getFragmentCollectionId());
                 LOG.info("Collection deleted successfully");
@@ -155,6 +160,8 @@ public class SetupFragments {
 
     private static Optional<com.liferay.fragment.model.FragmentCollection> findFragmentCollection(String collectionName,
             long groupId) {
+        SetupMetrics.serviceCall("FragmentCollectionLocalService.getFragmentCollectionsCount");
+        SetupMetrics.serviceCall("FragmentCollectionLocalService.getFragmentCollections");
         return FragmentCollectionLocalServiceUtil
                 .getFragmentCollections(groupId, 0,
                         FragmentCollectionLocalServiceUtil.getFragmentCollectionsCount())
@@ -173,6 +180,7 @@ public class SetupFragments {
                 LOG.warn("Fragment " + fragment.getEntryKey() + " already exists in collection "
                         + createdCollection.getName() + ", skipping...");
             } else {
+                SetupMetrics.serviceCall("FragmentEntryLocalService.addFragmentEntry");
                 FragmentEntryLocalServiceUtil.addFragmentEntry(userId, groupId,
                         createdCollection.getFragmentCollectionId(), fragment.getEntryKey(), fragment.getName(),
                         fragment.getCss(), fragment.getHtml(), fragment.getJs(), fragment.getConfiguration(),
@@ -192,6 +200,7 @@ public class SetupFragments {
         if (existingFragment.isPresent()) {
             LOG.info("Fragment " + fragmentName + " found, updating...");
             try {
+                SetupMetrics.serviceCall("FragmentEntryLocalService.updateFragmentEntry");
                 FragmentEntryLocalServiceUtil.updateFragmentEntry(userId, existingFragment.get().getFragmentEntryId(),
                         fragmentName, fragment.getCss(), fragment.getHtml(), fragment.getJs(),
                         fragment.getConfiguration(), 0);
@@ -214,10 +223,12 @@ public class SetupFragments {
             LOG.info("Fragment " + fragmentName + " found, deleting...");
             try {
                 FragmentEntry fragmentEntry = existingFragment.get();
+                SetupMetrics.serviceCall("FragmentEntryLinkLocalService.getAllFragmentEntryLinksCountByFragmentEntryId");
                 if (FragmentEntryLinkLocalServiceUtil.getAllFragmentEntryLinksCountByFragmentEntryId(groupId,
                         fragmentEntry.getFragmentEntryId()) > 0) {
                     LOG.warn("Fragment " + fragmentName + " has usages, can not be deleted");
                 } else {
+                    SetupMetrics.serviceCall("FragmentEntryLocalService.deleteFragmentEntry");
                     FragmentEntryLocalServiceUtil
                             .deleteFragmentEntry(fragmentEntry.getFragmentEntryId());
                     LOG.info("Fragment deleted successfully");
@@ -232,6 +243,7 @@ public class SetupFragments {
 
     private static Optional<FragmentEntry> findFragment(Fragment fragment,
             com.liferay.fragment.model.FragmentCollection createdCollection, long groupId) {
+        SetupMetrics.serviceCall("FragmentEntryLocalService.getFragmentEntries");
         return FragmentEntryLocalServiceUtil
                 .getFragmentEntries(groupId, createdCollection.getFragmentCollectionId(), 0).stream()
                 .filter(fragmentEntry -> fragmentEntry.getFragmentEntryKey()
@@ -241,12 +253,15 @@ public class SetupFragments {
 
     private static void deleteChildFragments(com.liferay.fragment.model.FragmentCollection collection, long groupId)
             throws PortalException {
+        SetupMetrics.serviceCall("FragmentEntryLocalService.getFragmentEntries");
         for (FragmentEntry fragmentEntry : FragmentEntryLocalServiceUtil
                 .getFragmentEntries(collection.getFragmentCollectionId())) {
+            SetupMetrics.serviceCall("FragmentEntryLinkLocalService.getAllFragmentEntryLinksCountByFragmentEntryId");
             if (FragmentEntryLinkLocalServiceUtil.getAllFragmentEntryLinksCountByFragmentEntryId(groupId,
                     fragmentEntry.getFragmentEntryId()) > 0) {
                 LOG.warn("Fragment " + fragmentEntry.getName() + " has usages, can not be deleted");
             } else {
+                SetupMetrics.serviceCall("FragmentEntryLocalService.deleteFragmentEntry");
                 FragmentEntryLocalServiceUtil
                         .deleteFragmentEntry(fragmentEntry.getFragmentEntryId());
             }
@@ -39,6 +39,9 @@ import com.liferay.portal.kernel.service.UserLocalServiceUtil;
 import com.liferay.portal.kernel.util.PortalUtil;
 import eu.lundegaard.liferay.db.setup.LiferaySetup;
 import eu.lundegaard.liferay.db.setup.core.util.CustomFieldSettingUtil;
+import eu.lundegaard.liferay.db.setup.core.util.PagedDeleteUtil;
+import eu.lundegaard.liferay.db.setup.core.util.SetupMetrics;
+import eu.lundegaard.liferay.db.setup.core.util.SiteGroupIdCache;
 import eu.lundegaard.liferay.db.setup.domain.CustomFieldSetting;
 import eu.lundegaard.liferay.db.setup.domain.Site;
 import java.util.HashMap;
@@ -66,6 +69,7 @@ public final class SetupOrganizations {
                 Group liferayGroup = null;
                 long groupId = -1;
                 try {
+                    SetupMetrics.serviceCall("OrganizationLocalService.getOrganization");
                     Organization org = OrganizationLocalServiceUtil.getOrganization(COMPANY_ID,
                             organization.getName());
                     liferayGroup = org.getGroup();
@@ -82,11 +86,14 @@ public final class SetupOrganizations {
                     LOG.info("Setup: Organization " + organization.getName()
                             + " does not exist in system, creating...");
 
+                    SetupMetrics.serviceCall("UserLocalService.getDefaultUserId");
                     long defaultUserId = UserLocalServiceUtil.getDefaultUserId(COMPANY_ID);
+                    SetupMetrics.serviceCall("OrganizationLocalService.addOrganization");
                     Organization newOrganization = OrganizationLocalServiceUtil.addOrganization(
                             defaultUserId, OrganizationConstants.DEFAULT_PARENT_ORGANIZATION_ID, organization.getName(),
                             "organization", 0, 0, ListTypeConstants.ORGANIZATION_STATUS_DEFAULT,
                             LiferaySetup.DESCRIPTION, false, new ServiceContext());
+                    SetupMetrics.serviceCall("UserLocalService.getUser");
                     addOrganizationUser(newOrganization, UserLocalServiceUtil.getUser(defaultUserId));
                     liferayOrg = newOrganization;
                     liferayGroup = liferayOrg.getGroup();
@@ -98,9 +105,11 @@ public final class SetupOrganizations {
                 if (parentOrg != null && liferayOrg != null
                         && organization.isMaintainOrganizationHierarchy()) {
                     liferayOrg.setParentOrganizationId(parentOrg.getOrganizationId());
+                    SetupMetrics.serviceCall("OrganizationLocalService.updateOrganization");
                     OrganizationLocalServiceUtil.updateOrganization(liferayOrg);
                 } else if (liferayOrg != null && organization.isMaintainOrganizationHierarchy()) {
                     liferayOrg.setParentOrganizationId(0);
+                    SetupMetrics.serviceCall("OrganizationLocalService.updateOrganization");
                     OrganizationLocalServiceUtil.updateOrganization(liferayOrg);
                 }
 
@@ -119,12 +128,15 @@ public final class SetupOrganizations {
                     LOG.info("Setting up site for organization.");
                     liferayGroup.setSite(true);
                     liferayGroup.setName(orgSite.getName());
+                    SetupMetrics.serviceCall("GroupLocalService.updateGroup");
                     GroupLocalServiceUtil.updateGroup(liferayGroup);
+                    SiteGroupIdCache.invalidateGroup(COMPANY_ID, liferayGroup.getGroupId());
                     liferayGroup = liferayOrg.getGroup();
 
                     if (liferayGroup != null && orgSite.getSiteFriendlyUrl() != null
                             && !orgSite.getSiteFriendlyUrl().isEmpty()) {
                         liferayGroup.setFriendlyURL(orgSite.getSiteFriendlyUrl());
+                        SetupMetrics.serviceCall("GroupLocalService.updateGroup");
                         GroupLocalServiceUtil.updateGroup(liferayGroup);
                         liferayGroup = liferayOrg.getGroup();
                     }
@@ -132,9 +144,11 @@ public final class SetupOrganizations {
                     if (parentGroup != null && liferayGroup != null
                             && orgSite.isMaintainSiteHierarchy()) {
                         liferayGroup.setParentGroupId(parentGroup.getGroupId());
+                        SetupMetrics.serviceCall("GroupLocalService.updateGroup");
                         GroupLocalServiceUtil.updateGroup(liferayGroup);
                     } else if (liferayGroup != null && orgSite.isMaintainSiteHierarchy()) {
                         liferayGroup.setParentGroupId(0);
+                        SetupMetrics.serviceCall("GroupLocalService.updateGroup");
                         GroupLocalServiceUtil.updateGroup(liferayGroup);
                     }
 
@@ -200,29 +214,37 @@ public final class SetupOrganizations {
                 Map<String, eu.lundegaard.liferay.db.setup.domain.Organization> toBeDeletedOrganisations =
                         convertOrganisationListToHashMap(
                                 organizations);
-                try {
-                    for (Organization organisation : OrganizationLocalServiceUtil
-                            .getOrganizations(-1, -1)) {
-                        if (!toBeDeletedOrganisations.containsKey(organisation.getName())) {
+                int deletedOrganisations = PagedDeleteUtil.deleteInPages("organisations", lastOrganizationId -> {
+                    SetupMetrics.serviceCall("OrganizationLocalService.dynamicQuery");
+                    return OrganizationLocalServiceUtil.dynamicQuery(PagedDeleteUtil.page(
+                            OrganizationLocalServiceUtil.dynamicQuery(), "organizationId", "name",
+                            toBeDeletedOrganisations.keySet(), lastOrganizationId), 0, PagedDeleteUtil.PAGE_SIZE);
+                },
+                        candidate -> {
+                            String name = (String) candidate[1];
+                            if (toBeDeletedOrganisations.containsKey(name)) {
+                                return false;
+                            }
                             try {
-                                OrganizationLocalServiceUtil
-                                        .deleteOrganization(organisation.getOrganizationId());
-                                LOG.info("Deleting Organisation" + organisation.getName());
+                                SetupMetrics.serviceCall("OrganizationLocalService.deleteOrganization");
+                                OrganizationLocalServiceUtil.deleteOrganization((Long) candidate[0]);
+                                LOG.info("Deleting Organisation" + name);
+                                return true;
                             } catch (Exception e) {
                                 LOG.error("Error by deleting Organisation !", e);
+                                return false;
                             }
-                        }
-                    }
-                } catch (SystemException e) {
-                    LOG.error("Error by retrieving organisations!", e);
-                }
+                        });
+                LOG.info("Deleted " + deletedOrganisations + " organisations not listed in the setup");
                 break;
 
             case "onlyListed":
                 for (eu.lundegaard.liferay.db.setup.domain.Organization organisation : organizations) {
                     String name = organisation.getName();
                     try {
+                        SetupMetrics.serviceCall("OrganizationLocalService.getOrganization");
                         Organization o = OrganizationLocalServiceUtil.getOrganization(COMPANY_ID, name);
+                        SetupMetrics.serviceCall("OrganizationLocalService.deleteOrganization");
                         OrganizationLocalServiceUtil.deleteOrganization(o);
                     } catch (Exception e) {
                         LOG.error("Error by deleting Organisation !", e);
@@ -241,6 +263,7 @@ public final class SetupOrganizations {
     public static void addOrganizationUser(Organization organization, User user) {
         LOG.info("Adding user with screenName: " + user.getScreenName() + "to organization with name: "
                 + organization.getName());
+        SetupMetrics.serviceCall("OrganizationLocalService.addUserOrganization");
         OrganizationLocalServiceUtil.addUserOrganization(user.getUserId(), organization);
     }
 
@@ -25,7 +25,6 @@ package eu.lundegaard.liferay.db.setup.core;
 
 import com.liferay.portal.kernel.dao.orm.DynamicQuery;
 import com.liferay.portal.kernel.dao.orm.PropertyFactoryUtil;
-import com.liferay.portal.kernel.exception.NoSuchLayoutException;
 import com.liferay.portal.kernel.exception.PortalException;
 import com.liferay.portal.kernel.exception.SystemException;
 import com.liferay.portal.kernel.log.Log;
@@ -41,9 +40,13 @@ import com.liferay.portal.kernel.util.UnicodeProperties;
 import com.liferay.portal.kernel.util.Validator;
 import eu.lundegaard.liferay.db.setup.LiferaySetup;
 import eu.lundegaard.liferay.db.setup.core.util.CustomFieldSettingUtil;
+import eu.lundegaard.liferay.db.setup.core.util.ResolutionCache;
 import eu.lundegaard.liferay.db.setup.core.util.ResolverUtil;
+import eu.lundegaard.liferay.db.setup.core.util.SetupJournal;
 import eu.lundegaard.liferay.db.setup.core.util.StringPool;
+import eu.lundegaard.liferay.db.setup.core.util.TransactionBatchUtil;
 import eu.lundegaard.liferay.db.setup.core.util.FieldMapUtil;
+import eu.lundegaard.liferay.db.setup.core.util.SetupMetrics;
 import eu.lundegaard.liferay.db.setup.domain.*;
 import eu.lundegaard.liferay.db.setup.domain.Theme;
 import javax.portlet.ReadOnlyException;
@@ -106,13 +109,13 @@ public final class SetupPages {
                 setupTheme(groupId, publicPages.getTheme(), false);
             }
             if (publicPages.isDeleteExistingPages()) {
-                LOG.info("Setup: Deleting pages from site " + site.getName());
-                deletePages(groupId, false);
+                deletePagesOnce(site, groupId, false);
             }
             addPages(publicPages.getPage(), publicPages.getDefaultLayout(),
                     publicPages.getDefaultLayoutContainedInThemeWithId(),
                     groupId, false, 0, company, userid);
             if (publicPages.getVirtualHost() != null) {
+                SetupMetrics.serviceCall("LayoutSetLocalService.updateVirtualHost");
                 LayoutSetLocalServiceUtil.updateVirtualHost(groupId, false, publicPages.getVirtualHost());
             }
         }
@@ -123,13 +126,13 @@ public final class SetupPages {
                 setupTheme(groupId, privatePages.getTheme(), true);
             }
             if (privatePages.isDeleteExistingPages()) {
-                LOG.info("Setup: Deleting pages from site " + site.getName());
-                deletePages(groupId, true);
+                deletePagesOnce(site, groupId, true);
             }
             addPages(privatePages.getPage(), privatePages.getDefaultLayout(),
                     privatePages.getDefaultLayoutContainedInThemeWithId(),
                     groupId, true, 0, company, userid);
             if (privatePages.getVirtualHost() != null) {
+                SetupMetrics.serviceCall("LayoutSetLocalService.updateVirtualHost");
                 LayoutSetLocalServiceUtil.updateVirtualHost(groupId, true, privatePages.getVirtualHost());
             }
         }
@@ -153,6 +156,7 @@ public final class SetupPages {
                     LayoutPrototype lp;
                     DynamicQuery dq = LayoutPrototypeLocalServiceUtil.dynamicQuery()
                             .add(PropertyFactoryUtil.forName("name").like("%" + name + "%"));
+                    SetupMetrics.serviceCall("LayoutPrototypeLocalService.dynamicQuery");
                     List<LayoutPrototype> listLayoutPrototype = LayoutPrototypeLocalServiceUtil
                             .dynamicQuery(dq);
                     if (listLayoutPrototype != null && listLayoutPrototype.size() > 0) {
@@ -161,6 +165,7 @@ public final class SetupPages {
                         Map<Locale, String> titleMap = FieldMapUtil.getTitleMap(
                                 pageTemplate.getTitleTranslation(), groupId, name,
                                 " Page template  " + name);
+                        SetupMetrics.serviceCall("LayoutPrototypeLocalService.addLayoutPrototype");
                         lp = LayoutPrototypeLocalServiceUtil.addLayoutPrototype(userid, company,
                                 titleMap, FieldMapUtil.getLocalizationMap(name), true, new ServiceContext());
                     }
@@ -186,9 +191,23 @@ public final class SetupPages {
         }
     }
 
+    /**
+     * Deletes the pages unless they have been deleted by an interrupted run, whose pages would be lost otherwise.
+     */
+    private static void deletePagesOnce(final Site site, final long groupId, final boolean privatePages) {
+        String unitKey = SetupJournal.key(groupId, privatePages);
+        if (SetupJournal.isCompleted(SetupJournal.PAGES_DELETED, unitKey)) {
+            return;
+        }
+        LOG.info("Setup: Deleting pages from site " + site.getName());
+        deletePages(groupId, privatePages);
+        SetupJournal.markCompleted(SetupJournal.PAGES_DELETED, unitKey);
+    }
+
     private static void setupTheme(final long groupId, final Theme theme, final boolean isPrivate)
             throws SystemException, PortalException {
 
+        SetupMetrics.serviceCall("GroupLocalService.getGroup");
         Group group = GroupLocalServiceUtil.getGroup(groupId);
         LayoutSet set;
         if (isPrivate) {
@@ -197,6 +216,7 @@ public final class SetupPages {
             set = group.getPublicLayoutSet();
         }
         set.setThemeId(theme.getName());
+        SetupMetrics.serviceCall("LayoutSetLocalService.updateLayoutSet");
         LayoutSetLocalServiceUtil.updateLayoutSet(set);
     }
 
@@ -205,44 +225,70 @@ public final class SetupPages {
             final long groupId, final boolean isPrivate, final long parentLayoutId, final long company,
             final long userId) throws SystemException, PortalException {
 
+        // If the page has not a layout set, set the default one. Otherwise set that layout as the default for the subtree
         for (Page page : pages) {
+            if (page.getLayout() == null) {
+                page.setLayout(defaultLayout);
+                page.setLayoutContainedInThemeWithId(defaultLayoutContainedInThemeWithId);
+            } else {
+                defaultLayout = page.getLayout();
+                defaultLayoutContainedInThemeWithId = page.getLayoutContainedInThemeWithId();
+            }
+        }
+        TransactionBatchUtil.forEach(pages, "pages",
+                page -> addPage(page, groupId, isPrivate, parentLayoutId, company, userId));
+    }
 
-            Layout layout = null;
-            try {
-                layout = LayoutLocalServiceUtil.getFriendlyURLLayout(groupId, isPrivate,
-                        page.getFriendlyURL());
-                LOG.info("Setup: Page " + page.getName() + " already exist, not creating...");
-                if (layout != null && page.isDeleteExistingPages()) {
-                    LayoutLocalServiceUtil.deleteLayout(layout);
-                    if (page.getLinkToURL() == null || page.getLinkToURL().equals("")) {
-                        layout = createPage(groupId, page, parentLayoutId, isPrivate);
-                    } else {
-                        layout = createLinkPage(page, groupId, parentLayoutId, userId);
-                    }
-                } else if (layout != null
-                        && (page.getLinkToURL() != null && !page.getLinkToURL().equals(""))) {
-                    updateLinkPage(page, groupId);
-                }
-            } catch (NoSuchLayoutException e) {
+    private static void addPage(final Page page, final long groupId, final boolean isPrivate,
+            final long parentLayoutId, final long company, final long userId) throws SystemException, PortalException {
+
+        String unitKey = SetupJournal.key(groupId, isPrivate, page.getFriendlyURL());
+        if (SetupJournal.isCompleted(SetupJournal.PAGE, unitKey)) {
+            LOG.info("Setup: Page " + page.getName() + " has been set up by an interrupted run, skipping...");
+            return;
+        }
+        // a failed lookup would mark the transaction of the whole batch for rollback
+        SetupMetrics.serviceCall("LayoutLocalService.fetchLayoutByFriendlyURL");
+        Layout layout = LayoutLocalServiceUtil.fetchLayoutByFriendlyURL(groupId, isPrivate, page.getFriendlyURL());
+        boolean written = true;
+        try {
+            if (layout == null) {
                 if (page.getLinkToURL() == null || page.getLinkToURL().equals("")) {
                     layout = createPage(groupId, page, parentLayoutId, isPrivate);
                 } else {
                     layout = createLinkPage(page, groupId, parentLayoutId, userId);
                 }
                 LOG.info("Setup: Page " + page.getName() + " created...");
-            } catch (Exception ex) {
-                ex.printStackTrace();
-            }
-            // If the page has not a layout set, set the default one. Otherwise set that layout as the default for the subtree
-            if (page.getLayout() == null) {
-                page.setLayout(defaultLayout);
-                page.setLayoutContainedInThemeWithId(defaultLayoutContainedInThemeWithId);
+            } else if (page.isDeleteExistingPages()) {
+                LOG.info("Setup: Page " + page.getName() + " already exist, not creating...");
+                SetupMetrics.serviceCall("LayoutLocalService.deleteLayout");
+                LayoutLocalServiceUtil.deleteLayout(layout);
+                layout = null;
+                ResolutionCache.invalidateSite(ResolutionCache.PAGE, groupId);
+                if (page.getLinkToURL() == null || page.getLinkToURL().equals("")) {
+                    layout = createPage(groupId, page, parentLayoutId, isPrivate);
+                } else {
+                    layout = createLinkPage(page, groupId, parentLayoutId, userId);
+                }
             } else {
-                defaultLayout = page.getLayout();
-                defaultLayoutContainedInThemeWithId = page.getLayoutContainedInThemeWithId();
+                LOG.info("Setup: Page " + page.getName() + " already exist, not creating...");
+                if (page.getLinkToURL() != null && !page.getLinkToURL().equals("")) {
+                    updateLinkPage(page, groupId);
+                }
             }
-            setupLiferayPage(layout, page, defaultLayout, defaultLayoutContainedInThemeWithId, groupId, isPrivate,
-                    company, userId, null);
+        } catch (Exception ex) {
+            LOG.error("Error while setting up page " + page.getFriendlyURL(), ex);
+            written = false;
+        }
+        if (layout == null) {
+            LOG.error("Setup: Page " + page.getName() + " could not be created, skipping its sub-pages and portlets");
+            return;
+        }
+        setupLiferayPage(layout, page, page.getLayout(), page.getLayoutContainedInThemeWithId(), groupId, isPrivate,
+                company, userId, null);
+        // a failed page is not journaled, so that a resumed run tries it again
+        if (written) {
+            SetupJournal.markCompleted(SetupJournal.PAGE, unitKey);
         }
     }
 
@@ -311,6 +357,7 @@ public final class SetupPages {
         // add the layout
         Layout layout = null;
         try {
+            SetupMetrics.serviceCall("LayoutLocalService.addLayout");
             layout = LayoutLocalServiceUtil.addLayout(userId, groupId, false, parentLayoutId, title,
                     title, StringPool.BLANK, layoutType, hidden, friendlyURL, serviceContext);
 
@@ -319,6 +366,7 @@ public final class SetupPages {
             UnicodeProperties props = layout.getTypeSettingsProperties();
             props.put("url", linkToPageUrl);
             layout.setTypeSettingsProperties(props);
+            SetupMetrics.serviceCall("LayoutLocalService.updateLayout");
             LayoutLocalServiceUtil.updateLayout(layout.getGroupId(), layout.isPrivateLayout(),
                     layout.getLayoutId(), layout.getTypeSettings());
         } catch (PortalException | SystemException e) {
@@ -330,9 +378,12 @@ public final class SetupPages {
 
     private static void updateLinkPage(final Page page, final long groupId) {
         try {
-            Layout layout = LayoutLocalServiceUtil.getFriendlyURLLayout(groupId, false,
+            SetupMetrics.serviceCall("LayoutLocalService.fetchLayoutByFriendlyURL");
+            Layout layout = LayoutLocalServiceUtil.fetchLayoutByFriendlyURL(groupId, false,
                     page.getFriendlyURL());
-            if (layout.getLayoutType().getTypeSettingsProperties().get("url") == null) {
+            if (layout == null) {
+                LOG.error("Could not update link page " + page.getFriendlyURL() + " because it does not exist");
+            } else if (layout.getLayoutType().getTypeSettingsProperties().get("url") == null) {
                 LOG.error("Could not update link page " + page.getFriendlyURL()
                         + " with link to url" + " " + page.getLinkToURL()
                         + " because page is not a link type page! "
@@ -343,6 +394,7 @@ public final class SetupPages {
                 props.put("url", page.getLinkToURL());
                 layout.setTypeSettingsProperties(props);
                 layout.setHidden(page.isHidden());
+                SetupMetrics.serviceCall("LayoutLocalService.updateLayout");
                 LayoutLocalServiceUtil.updateLayout(layout.getGroupId(), layout.isPrivateLayout(),
                         layout.getLayoutId(), layout.getTypeSettings());
             }
@@ -367,6 +419,7 @@ public final class SetupPages {
         Map<Locale, String> friendlyURLMap = new HashMap<>();
         friendlyURLMap.put(locale, currentPage.getFriendlyURL());
 
+        SetupMetrics.serviceCall("LayoutLocalService.addLayout");
         return LayoutLocalServiceUtil.addLayout(LiferaySetup.getRunAsUserId(), groupId, isPrivate, parentLayoutId,
                 titleMap, titleMap, null,
                 null, null, currentPage.getType(), StringPool.BLANK, currentPage.isHidden(), friendlyURLMap,
@@ -392,6 +445,7 @@ public final class SetupPages {
         props.put("target", page.getTarget());
         layout.setTypeSettingsProperties(props);
         try {
+            SetupMetrics.serviceCall("LayoutLocalService.updateLayout");
             LayoutLocalServiceUtil.updateLayout(layout.getGroupId(), layout.isPrivateLayout(),
                     layout.getLayoutId(), layout.getTypeSettings());
         } catch (PortalException e) {
@@ -406,6 +460,7 @@ public final class SetupPages {
         if (theme != null) {
             layout.setThemeId(theme.getName());
             try {
+                SetupMetrics.serviceCall("LayoutLocalService.updateLayout");
                 LayoutLocalServiceUtil.updateLayout(layout.getGroupId(), layout.isPrivateLayout(),
                         layout.getLayoutId(), layout.getTypeSettings());
             } catch (PortalException e) {
@@ -444,6 +499,7 @@ public final class SetupPages {
                 LOG.error("Add portlet error ", e);
             }
 
+            SetupMetrics.serviceCall("PortletPreferencesLocalService.getPreferences");
             javax.portlet.PortletPreferences preferences = PortletPreferencesLocalServiceUtil.getPreferences(companyId,
                     ownerId, ownerType, plid, portletIdInc);
             List<PortletPreference> prefsList = portlet.getPortletPreference();
@@ -456,11 +512,13 @@ public final class SetupPages {
                             + "portlet " + portlet.getPortletId() + " caused an excpetion! ");
                 }
             }
+            SetupMetrics.serviceCall("PortletPreferencesLocalService.updatePreferences");
             PortletPreferencesLocalServiceUtil.updatePreferences(ownerId, ownerType, plid, portletIdInc, preferences);
 
             if (Validator.isNotNull(column) && Validator.isNotNull(portletIdInc)) {
                 layoutTypePortlet.movePortletId(runAsUserId, portletIdInc, column, portlet.getColumnPosition());
             }
+            SetupMetrics.serviceCall("LayoutLocalService.updateLayout");
             LayoutLocalServiceUtil.updateLayout(layout.getGroupId(), layout.isPrivateLayout(),
                     layout.getLayoutId(), layout.getTypeSettings());
         }
@@ -519,6 +577,7 @@ public final class SetupPages {
                         && !page.getLayoutContainedInThemeWithId().equals("")) {
                     themeId = page.getLayoutContainedInThemeWithId();
                 }
+                SetupMetrics.serviceCall("LayoutTemplateLocalService.getLayoutTemplate");
                 LayoutTemplate layoutTemplate = LayoutTemplateLocalServiceUtil
                         .getLayoutTemplate(page.getLayout(), false, themeId);
 
@@ -528,9 +587,11 @@ public final class SetupPages {
                     if (themeId != null) {
                         LOG.info("Layout was looked up in theme " + themeId);
                     }
+                    SetupMetrics.serviceCall("UserLocalService.getDefaultUserId");
                     portletLayout.setLayoutTemplateId(
                             UserLocalServiceUtil.getDefaultUserId(layout.getCompanyId()),
                             layoutTemplate.getLayoutTemplateId());
+                    SetupMetrics.serviceCall("LayoutLocalService.updateLayout");
                     LayoutLocalServiceUtil.updateLayout(layout.getGroupId(), layout.isPrivateLayout(),
                             layout.getLayoutId(), layout.getTypeSettings());
                 } else {
@@ -568,15 +629,19 @@ public final class SetupPages {
                         layoutTypePortlet.removePortletId(runasUser, portletId);
                         String rootPortletId = PortletIdCodec.decodePortletName(portletId);
                         LOG.debug("Root portletId: " + rootPortletId);
+                        SetupMetrics.serviceCall("ResourceLocalService.deleteResource");
                         ResourceLocalServiceUtil.deleteResource(layout.getCompanyId(),
                                 rootPortletId, ResourceConstants.SCOPE_INDIVIDUAL,
                                 PortletPermissionUtil.getPrimaryKey(layout.getPlid(), portletId));
+                        SetupMetrics.serviceCall("LayoutLocalService.updateLayout");
                         LayoutLocalServiceUtil.updateLayout(layout.getGroupId(), layout.isPrivateLayout(),
                                 layout.getLayoutId(), layout.getTypeSettings());
+                        SetupMetrics.serviceCall("PortletPreferencesLocalService.getPortletPreferences");
                         List<PortletPreferences> list = PortletPreferencesLocalServiceUtil
                                 .getPortletPreferences(PortletKeys.PREFS_OWNER_TYPE_LAYOUT,
                                         layout.getPlid(), portletId);
                         for (PortletPreferences p : list) {
+                            SetupMetrics.serviceCall("PortletPreferencesLocalService.deletePortletPreferences");
                             PortletPreferencesLocalServiceUtil.deletePortletPreferences(p);
                         }
                     }
@@ -591,7 +656,9 @@ public final class SetupPages {
 
         ServiceContext serviceContext = new ServiceContext();
         try {
+            SetupMetrics.serviceCall("LayoutLocalService.deleteLayouts");
             LayoutLocalServiceUtil.deleteLayouts(groupId, privatePages, serviceContext);
+            ResolutionCache.invalidateSite(ResolutionCache.PAGE, groupId);
             LOG.info("Setup: Pages removed.");
         } catch (PortalException | SystemException e) {
             LOG.error("cannot remove pages: " + e);
@@ -24,17 +24,22 @@
 package eu.lundegaard.liferay.db.setup.core;
 
 import com.liferay.portal.kernel.exception.NestableException;
+import com.liferay.portal.kernel.exception.NoSuchRoleException;
 import com.liferay.portal.kernel.exception.PortalException;
 import com.liferay.portal.kernel.exception.SystemException;
 import com.liferay.portal.kernel.log.Log;
 import com.liferay.portal.kernel.log.LogFactoryUtil;
 import com.liferay.portal.kernel.model.Layout;
+import com.liferay.portal.kernel.model.ResourceAction;
 import com.liferay.portal.kernel.model.ResourceConstants;
 import com.liferay.portal.kernel.model.ResourcePermission;
 import com.liferay.portal.kernel.security.permission.ActionKeys;
+import com.liferay.portal.kernel.service.ResourceActionLocalServiceUtil;
 import com.liferay.portal.kernel.service.ResourcePermissionLocalServiceUtil;
 import com.liferay.portal.kernel.service.RoleLocalServiceUtil;
 import com.liferay.portal.kernel.util.PortalUtil;
+import eu.lundegaard.liferay.db.setup.core.util.ResolutionCache;
+import eu.lundegaard.liferay.db.setup.core.util.SetupMetrics;
 import eu.lundegaard.liferay.db.setup.domain.*;
 import java.util.*;
 
@@ -59,10 +64,11 @@ public final class SetupPermissions {
             Map<String, Set<String>> actionsPerRole = getActionsPerRole(portlet);
             for (String roleName : actionsPerRole.keySet()) {
                 try {
-                    long roleId = RoleLocalServiceUtil.getRole(COMPANY_ID, roleName).getRoleId();
+                    long roleId = getRoleId(roleName);
                     final Set<String> actionStrings = actionsPerRole.get(roleName);
                     final String[] actionIds = actionStrings.toArray(new String[actionStrings.size()]);
 
+                    SetupMetrics.serviceCall("ResourcePermissionLocalService.setResourcePermissions");
                     ResourcePermissionLocalServiceUtil.setResourcePermissions(COMPANY_ID,
                             portlet.getPortletId(), ResourceConstants.SCOPE_COMPANY,
                             String.valueOf(COMPANY_ID), roleId, actionIds);
@@ -112,6 +118,7 @@ public final class SetupPermissions {
 
     public static void removePermission(final long companyId, final String name,
             final String primKey) throws PortalException, SystemException {
+        SetupMetrics.serviceCall("ResourcePermissionLocalService.deleteResourcePermissions");
         ResourcePermissionLocalServiceUtil.deleteResourcePermissions(companyId, name,
                 ResourceConstants.SCOPE_INDIVIDUAL, primKey);
     }
@@ -120,7 +127,8 @@ public final class SetupPermissions {
             String[] permission)
             throws SystemException, PortalException {
         try {
-            long roleId = RoleLocalServiceUtil.getRole(COMPANY_ID, roleName).getRoleId();
+            long roleId = getRoleId(roleName);
+            SetupMetrics.serviceCall("ResourcePermissionLocalService.setResourcePermissions");
             ResourcePermissionLocalServiceUtil
                     .setResourcePermissions(COMPANY_ID, name, scope, primaryKey, roleId, permission);
         } catch (Exception ex) {
@@ -132,7 +140,8 @@ public final class SetupPermissions {
             final String primaryKey, final String[] permission)
             throws SystemException, PortalException {
         try {
-            long roleId = RoleLocalServiceUtil.getRole(COMPANY_ID, roleName).getRoleId();
+            long roleId = getRoleId(roleName);
+            SetupMetrics.serviceCall("ResourcePermissionLocalService.setResourcePermissions");
             ResourcePermissionLocalServiceUtil.setResourcePermissions(COMPANY_ID, className,
                     ResourceConstants.SCOPE_INDIVIDUAL, primaryKey, roleId, permission);
         } catch (Exception ex) {
@@ -144,7 +153,8 @@ public final class SetupPermissions {
             final String primaryKey, final String[] actionKeys)
             throws PortalException, SystemException {
 
-        long roleId = RoleLocalServiceUtil.getRole(COMPANY_ID, role.getName()).getRoleId();
+        long roleId = getRoleId(role.getName());
+        SetupMetrics.serviceCall("ResourcePermissionLocalService.setResourcePermissions");
         ResourcePermissionLocalServiceUtil.setResourcePermissions(COMPANY_ID,
                 Layout.class.getName(), ResourceConstants.SCOPE_INDIVIDUAL,
                 String.valueOf(primaryKey), roleId, actionKeys);
@@ -153,10 +163,12 @@ public final class SetupPermissions {
     private static void deleteAllPortletPermissions(final PortletPermissions.Portlet portlet) {
 
         try {
+            SetupMetrics.serviceCall("ResourcePermissionLocalService.getResourcePermissions");
             List<ResourcePermission> resourcePermissions = ResourcePermissionLocalServiceUtil
                     .getResourcePermissions(COMPANY_ID, portlet.getPortletId(),
                             ResourceConstants.SCOPE_COMPANY, String.valueOf(COMPANY_ID));
             for (ResourcePermission resourcePermission : resourcePermissions) {
+                SetupMetrics.serviceCall("ResourcePermissionLocalService.deleteResourcePermission");
                 ResourcePermissionLocalServiceUtil.deleteResourcePermission(resourcePermission);
             }
         } catch (SystemException e) {
@@ -167,6 +179,7 @@ public final class SetupPermissions {
     public static void clearPagePermissions(final String primaryKey)
             throws PortalException, SystemException {
 
+        SetupMetrics.serviceCall("ResourcePermissionLocalService.deleteResourcePermissions");
         ResourcePermissionLocalServiceUtil.deleteResourcePermissions(COMPANY_ID,
                 Layout.class.getName(), ResourceConstants.SCOPE_INDIVIDUAL,
                 String.valueOf(primaryKey));
@@ -185,67 +198,129 @@ public final class SetupPermissions {
             final long companyId, final long elementId, final String className,
             final RolePermissions rolePermissions,
             final HashMap<String, List<String>> defaultPermissions) {
-        boolean useDefaultPermissions = false;
+        boolean cleared = false;
+        Map<String, List<String>> actionsPerRole = new LinkedHashMap<>();
         if (rolePermissions != null) {
             if (rolePermissions.isClearPermissions()) {
                 try {
                     SetupPermissions.removePermission(companyId, className,
                             Long.toString(elementId));
+                    cleared = true;
                 } catch (PortalException e) {
                     LOG.error("Permissions for " + locationHint + " could not be cleared. ", e);
                 } catch (SystemException e) {
                     LOG.error("Permissions for " + locationHint + " could not be cleared. ", e);
                 }
             }
-            List<String> actions = new ArrayList<String>();
             List<RolePermission> rolePermissionList = rolePermissions.getRolePermission();
             if (rolePermissionList != null) {
                 for (RolePermission rp : rolePermissionList) {
-                    actions.clear();
-                    String roleName = rp.getRoleName();
-                    List<PermissionAction> roleActions = rp.getPermissionAction();
-                    for (PermissionAction pa : roleActions) {
-                        String actionName = pa.getActionName();
-                        actions.add(actionName);
-                    }
-                    try {
-                        SetupPermissions.addPermission(roleName, className,
-                                Long.toString(elementId),
-                                actions.toArray(new String[actions.size()]));
-                    } catch (SystemException e) {
-                        LOG.error("Permissions for " + roleName + " for " + locationHint + " "
-                                + "could not be set. ", e);
-                    } catch (PortalException e) {
-                        LOG.error("Permissions for " + roleName + " for " + locationHint + " "
-                                + "could not be set. ", e);
-                    } catch (NullPointerException e) {
-                        LOG.error("Permissions for " + roleName + " for " + locationHint + " "
-                                + "could not be set. " + "Probably role not found! ", e);
+                    List<String> actions = new ArrayList<String>();
+                    for (PermissionAction pa : rp.getPermissionAction()) {
+                        actions.add(pa.getActionName());
                     }
+                    actionsPerRole.put(rp.getRoleName(), actions);
                 }
             } else {
-                useDefaultPermissions = true;
+                actionsPerRole.putAll(defaultPermissions);
             }
         } else {
-            useDefaultPermissions = true;
+            actionsPerRole.putAll(defaultPermissions);
+        }
+        setPermissions(locationHint, className, Long.toString(elementId), actionsPerRole, cleared);
+    }
+
+    /**
+     * Sets the permissions of all roles on an entity in one write. Roles whose stored actions already match are
+     * skipped, the stored permissions are not read when they have just been cleared.
+     */
+    private static void setPermissions(final String locationHint, final String className, final String primaryKey,
+            final Map<String, List<String>> actionsPerRole, final boolean cleared) {
+        Map<Long, String[]> roleIdsToActionIds = new LinkedHashMap<>();
+        for (Map.Entry<String, List<String>> entry : actionsPerRole.entrySet()) {
+            try {
+                List<String> actions = entry.getValue();
+                roleIdsToActionIds.put(getRoleId(entry.getKey()), actions.toArray(new String[actions.size()]));
+            } catch (PortalException e) {
+                LOG.error("Permissions for " + entry.getKey() + " for " + locationHint + " "
+                        + "could not be set. " + "Probably role not found! ", e);
+            }
+        }
+        if (!cleared && !roleIdsToActionIds.isEmpty()) {
+            removeUnchanged(className, primaryKey, roleIdsToActionIds);
         }
-        if (useDefaultPermissions) {
-            Set<String> roles = defaultPermissions.keySet();
-            List<String> actions;
-            for (String r : roles) {
-                actions = defaultPermissions.get(r);
+        if (roleIdsToActionIds.isEmpty()) {
+            return;
+        }
+        try {
+            SetupMetrics.serviceCall("ResourcePermissionLocalService.setResourcePermissions");
+            // the service removes the applied entries from the map, the fallback needs all of them
+            ResourcePermissionLocalServiceUtil.setResourcePermissions(COMPANY_ID, className,
+                    ResourceConstants.SCOPE_INDIVIDUAL, primaryKey, new LinkedHashMap<>(roleIdsToActionIds));
+        } catch (PortalException | SystemException e) {
+            LOG.warn("Permissions for " + locationHint + " could not be set at once, setting them role by role: " + e);
+            for (Map.Entry<Long, String[]> entry : roleIdsToActionIds.entrySet()) {
                 try {
-                    SetupPermissions.addPermission(r, className, Long.toString(elementId),
-                            actions.toArray(new String[actions.size()]));
-                } catch (SystemException e) {
-                    LOG.error("Permissions for " + r + " for " + locationHint + " could not be "
-                            + "set. ", e);
-                } catch (PortalException e) {
-                    LOG.error("Permissions for " + r + " for " + locationHint + " could not be "
-                            + "set. ", e);
+                    SetupMetrics.serviceCall("ResourcePermissionLocalService.setResourcePermissions");
+                    ResourcePermissionLocalServiceUtil.setResourcePermissions(COMPANY_ID, className,
+                            ResourceConstants.SCOPE_INDIVIDUAL, primaryKey, entry.getKey(), entry.getValue());
+                } catch (PortalException | SystemException roleException) {
+                    LOG.error("Permissions for role " + entry.getKey() + " for " + locationHint + " "
+                            + "could not be set. ", roleException);
                 }
             }
         }
     }
 
+    private static void removeUnchanged(final String className, final String primaryKey,
+            final Map<Long, String[]> roleIdsToActionIds) {
+        SetupMetrics.serviceCall("ResourcePermissionLocalService.getResourcePermissions");
+        List<ResourcePermission> storedPermissions = ResourcePermissionLocalServiceUtil.getResourcePermissions(
+                COMPANY_ID, className, ResourceConstants.SCOPE_INDIVIDUAL, primaryKey);
+        for (ResourcePermission stored : storedPermissions) {
+            String[] actionIds = roleIdsToActionIds.get(stored.getRoleId());
+            if (actionIds != null && getActionBitmask(className, actionIds) == stored.getActionIds()) {
+                roleIdsToActionIds.remove(stored.getRoleId());
+            }
+        }
+    }
+
+    /**
+     * @return bitwise value of the actions, -1 if some of them is not registered for the resource
+     */
+    private static long getActionBitmask(final String className, final String[] actionIds) {
+        long bitmask = 0;
+        for (String actionId : actionIds) {
+            // resource actions are cached by Liferay
+            SetupMetrics.serviceCall("ResourceActionLocalService.fetchResourceAction");
+            ResourceAction resourceAction = ResourceActionLocalServiceUtil.fetchResourceAction(className, actionId);
+            if (resourceAction == null) {
+                return -1;
+            }
+            bitmask |= resourceAction.getBitwiseValue();
+        }
+        return bitmask;
+    }
+
+    /**
+     * @return ID of the role, cached for the setup run
+     */
+    static long getRoleId(final String roleName) throws PortalException {
+        try {
+            return Long.parseLong(ResolutionCache.get(ResolutionCache.ROLE, "ROLE_ID", 0, roleName, () -> {
+                SetupMetrics.serviceCall("RoleLocalService.fetchRole");
+                com.liferay.portal.kernel.model.Role role = RoleLocalServiceUtil.fetchRole(COMPANY_ID, roleName);
+                if (role == null) {
+                    throw new NoSuchRoleException("No role " + roleName + " in company " + COMPANY_ID);
+                }
+                return String.valueOf(role.getRoleId());
+            }));
+        } catch (PortalException | RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            // the lookup throws nothing else
+            throw new IllegalStateException(e);
+        }
+    }
+
 }
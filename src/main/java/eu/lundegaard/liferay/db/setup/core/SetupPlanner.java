@@ -0,0 +1,523 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2020 Lundegaard a.s.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package eu.lundegaard.liferay.db.setup.core;
+
+import com.liferay.asset.kernel.service.AssetVocabularyLocalServiceUtil;
+import com.liferay.document.library.kernel.service.DLFileEntryLocalServiceUtil;
+import com.liferay.expando.kernel.model.ExpandoTableConstants;
+import com.liferay.expando.kernel.service.ExpandoColumnLocalServiceUtil;
+import com.liferay.expando.kernel.service.ExpandoTableLocalServiceUtil;
+import com.liferay.journal.service.JournalArticleLocalServiceUtil;
+import com.liferay.portal.kernel.dao.orm.ProjectionFactoryUtil;
+import com.liferay.portal.kernel.dao.orm.PropertyFactoryUtil;
+import com.liferay.portal.kernel.log.Log;
+import com.liferay.portal.kernel.log.LogFactoryUtil;
+import com.liferay.portal.kernel.model.Group;
+import com.liferay.portal.kernel.model.GroupConstants;
+import com.liferay.portal.kernel.service.GroupLocalServiceUtil;
+import com.liferay.portal.kernel.service.LayoutLocalServiceUtil;
+import com.liferay.portal.kernel.service.OrganizationLocalServiceUtil;
+import com.liferay.portal.kernel.service.RoleLocalServiceUtil;
+import com.liferay.portal.kernel.service.UserGroupLocalServiceUtil;
+import com.liferay.portal.kernel.service.UserLocalServiceUtil;
+import com.liferay.portal.kernel.util.PortalUtil;
+import eu.lundegaard.liferay.db.setup.SetupPlan;
+import eu.lundegaard.liferay.db.setup.SetupPlan.Action;
+import eu.lundegaard.liferay.db.setup.core.util.BatchQueryUtil;
+import eu.lundegaard.liferay.db.setup.domain.*;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Function;
+
+/**
+ * Computes the {@link SetupPlan} of a setup. Nothing is written, the existing entities are looked up with one IN
+ * query per entity type and site, reading only their keys. The plan is an estimate: entities found by their key are
+ * planned to be updated even if the update would not change them, documents are matched by their title in the whole
+ * site and the content of staged sites is compared with the live site.
+ */
+public final class SetupPlanner {
+
+    private static final Log LOG = LogFactoryUtil.getLog(SetupPlanner.class);
+    private static final String EXCLUDE_LISTED = "excludeListed";
+    private static final String ONLY_LISTED = "onlyListed";
+    // a lookup followed by a write
+    private static final int WRITE_CALLS = 2;
+    private static final int LOOKUP_CALLS = 1;
+
+    private SetupPlanner() {
+
+    }
+
+    public static SetupPlan plan(final Setup setup, final long companyId) {
+        long start = System.nanoTime();
+        SetupPlan plan = new SetupPlan();
+        if (setup.getDeleteLiferayObjects() != null) {
+            for (ObjectsToBeDeleted objects : setup.getDeleteLiferayObjects().getObjectsToBeDeleted()) {
+                planDeletes(plan, objects, companyId);
+            }
+        }
+        if (setup.getCustomFields() != null) {
+            planCustomFields(plan, setup.getCustomFields().getField(), companyId);
+        }
+        if (setup.getRoles() != null) {
+            planRoles(plan, setup.getRoles().getRole(), companyId);
+        }
+        if (setup.getUsers() != null) {
+            planUsers(plan, setup.getUsers().getUser(), companyId);
+        }
+        if (setup.getOrganizations() != null) {
+            planOrganizations(plan, setup.getOrganizations().getOrganization(), companyId);
+        }
+        if (setup.getUserGroups() != null) {
+            planUserGroups(plan, setup.getUserGroups().getUserGroup(), companyId);
+        }
+        if (setup.getPortletPermissions() != null) {
+            for (PortletPermissions.Portlet portlet : setup.getPortletPermissions().getPortlet()) {
+                plan.add("portlet permissions", portlet.getName(), Action.UPDATE, WRITE_CALLS);
+            }
+        }
+        for (FragmentCollection collection : setup.getFragmentCollection()) {
+            plan.add("fragment collection", collection.getName(), Action.UPDATE,
+                    WRITE_CALLS + collection.getFragment().size());
+        }
+        if (setup.getSites() != null) {
+            planSites(plan, setup.getSites().getSite(), companyId);
+        }
+        if (setup.getPageTemplates() != null) {
+            for (PageTemplate pageTemplate : setup.getPageTemplates().getPageTemplate()) {
+                plan.add("page template", pageTemplate.getName(), Action.UPDATE, WRITE_CALLS);
+            }
+        }
+        for (Form form : setup.getForm()) {
+            plan.add("form", form.getFormDbKey(), Action.UPDATE, WRITE_CALLS);
+        }
+        LOG.info("Planned " + plan.getSteps().size() + " steps in " + (System.nanoTime() - start) / 1_000_000 + " ms");
+        return plan;
+    }
+
+    private static void planDeletes(final SetupPlan plan, final ObjectsToBeDeleted objects, final long companyId) {
+        String method = objects.getDeleteMethod();
+        if (objects.getRoles() != null) {
+            Set<String> listed = new HashSet<>();
+            objects.getRoles().getRole().forEach(role -> listed.add(role.getName()));
+            Set<String> existing = new HashSet<>();
+            if (EXCLUDE_LISTED.equals(method)) {
+                List<String> names = RoleLocalServiceUtil.dynamicQuery(RoleLocalServiceUtil.dynamicQuery()
+                        .add(PropertyFactoryUtil.forName("companyId").eq(companyId))
+                        .setProjection(ProjectionFactoryUtil.property("name")));
+                existing.addAll(names);
+                // system roles are never deleted
+                existing.removeIf(PortalUtil::isSystemRole);
+            } else {
+                existing.addAll(queryRoleNames(listed, companyId));
+            }
+            planDeletes(plan, "role", method, listed, existing);
+        }
+        if (objects.getUsers() != null) {
+            Set<String> listed = new HashSet<>();
+            objects.getUsers().getUser().forEach(user -> listed.add(user.getEmailAddress()));
+            Set<String> existing = new HashSet<>();
+            if (EXCLUDE_LISTED.equals(method)) {
+                List<Object[]> users = UserLocalServiceUtil.dynamicQuery(UserLocalServiceUtil.dynamicQuery()
+                        .add(PropertyFactoryUtil.forName("companyId").eq(companyId))
+                        .add(PropertyFactoryUtil.forName("defaultUser").eq(false))
+                        .setProjection(ProjectionFactoryUtil.projectionList()
+                                .add(ProjectionFactoryUtil.property("userId"))
+                                .add(ProjectionFactoryUtil.property("emailAddress"))));
+                for (Object[] user : users) {
+                    // omniadmins are never deleted
+                    if (!PortalUtil.isOmniadmin((Long) user[0])) {
+                        existing.add((String) user[1]);
+                    }
+                }
+            } else {
+                existing.addAll(queryUserEmails(listed, companyId));
+            }
+            planDeletes(plan, "user", method, listed, existing);
+        }
+        if (objects.getOrganizations() != null) {
+            Set<String> listed = new HashSet<>();
+            objects.getOrganizations().getOrganization().forEach(organization -> listed.add(organization.getName()));
+            Set<String> existing = new HashSet<>();
+            if (EXCLUDE_LISTED.equals(method)) {
+                List<String> names = OrganizationLocalServiceUtil.dynamicQuery(
+                        OrganizationLocalServiceUtil.dynamicQuery()
+                                .add(PropertyFactoryUtil.forName("companyId").eq(companyId))
+                                .setProjection(ProjectionFactoryUtil.property("name")));
+                existing.addAll(names);
+            } else {
+                existing.addAll(queryOrganizationGroupIds(listed, companyId).keySet());
+            }
+            planDeletes(plan, "organization", method, listed, existing);
+        }
+        if (objects.getCustomFields() != null) {
+            Set<String> listed = new HashSet<>();
+            objects.getCustomFields().getField().forEach(field -> listed.add(customFieldKey(field)));
+            Set<String> existing = queryCustomFieldKeys(objects.getCustomFields().getField(), companyId);
+            if (ONLY_LISTED.equals(method)) {
+                existing.retainAll(listed);
+            }
+            planDeletes(plan, "custom field", method, listed, existing);
+        }
+    }
+
+    private static void planDeletes(final SetupPlan plan, final String entityType, final String method,
+            final Set<String> listed, final Set<String> existing) {
+
+        if (EXCLUDE_LISTED.equals(method)) {
+            for (String key : existing) {
+                if (!listed.contains(key)) {
+                    plan.add(entityType, key, Action.DELETE, LOOKUP_CALLS);
+                }
+            }
+        } else if (ONLY_LISTED.equals(method)) {
+            for (String key : listed) {
+                if (existing.contains(key)) {
+                    plan.add(entityType, key, Action.DELETE, WRITE_CALLS);
+                } else {
+                    plan.add(entityType, key, Action.NO_OP, LOOKUP_CALLS);
+                }
+            }
+        }
+    }
+
+    private static void planCustomFields(final SetupPlan plan, final List<CustomFields.Field> fields,
+            final long companyId) {
+
+        Set<String> existing = queryCustomFieldKeys(fields, companyId);
+        for (CustomFields.Field field : fields) {
+            String key = customFieldKey(field);
+            plan.add("custom field", key, existing.contains(key) ? Action.UPDATE : Action.CREATE,
+                    WRITE_CALLS + field.getRolePermission().size());
+        }
+    }
+
+    private static void planRoles(final SetupPlan plan, final List<Role> roles, final long companyId) {
+        Set<String> names = new LinkedHashSet<>();
+        roles.forEach(role -> names.add(role.getName()));
+        Set<String> existing = queryRoleNames(names, companyId);
+        for (Role role : roles) {
+            int permissions = role.getDefinePermissions() == null ? 0
+                    : role.getDefinePermissions().getDefinePermission().size();
+            plan.add("role", role.getName(), existing.contains(role.getName()) ? Action.UPDATE : Action.CREATE,
+                    WRITE_CALLS + permissions);
+        }
+    }
+
+    private static void planUsers(final SetupPlan plan, final List<User> users, final long companyId) {
+        Set<String> emails = new LinkedHashSet<>();
+        users.forEach(user -> emails.add(user.getEmailAddress()));
+        Set<String> existing = queryUserEmails(emails, companyId);
+        for (User user : users) {
+            int calls = WRITE_CALLS + user.getRole().size() + user.getOrganization().size()
+                    + user.getCustomFieldSetting().size();
+            plan.add("user", user.getEmailAddress(),
+                    existing.contains(user.getEmailAddress()) ? Action.UPDATE : Action.CREATE, calls);
+        }
+    }
+
+    private static void planOrganizations(final SetupPlan plan, final List<Organization> organizations,
+            final long companyId) {
+
+        Set<String> names = new LinkedHashSet<>();
+        collectOrganizationNames(organizations, names);
+        Map<String, Long> groupIds = queryOrganizationGroupIds(names, companyId);
+        planOrganizations(plan, organizations, groupIds, companyId);
+    }
+
+    private static void planOrganizations(final SetupPlan plan, final List<Organization> organizations,
+            final Map<String, Long> groupIds, final long companyId) {
+
+        for (Organization organization : organizations) {
+            Long groupId = groupIds.get(organization.getName());
+            plan.add("organization", organization.getName(), groupId == null ? Action.CREATE : Action.UPDATE,
+                    WRITE_CALLS + organization.getCustomFieldSetting().size());
+            if (organization.getSite() != null) {
+                planSiteContent(plan, organization.getSite(), groupId == null ? 0 : groupId);
+            }
+            planOrganizations(plan, organization.getOrganization(), groupIds, companyId);
+        }
+    }
+
+    private static void collectOrganizationNames(final List<Organization> organizations, final Set<String> names) {
+        for (Organization organization : organizations) {
+            names.add(organization.getName());
+            collectOrganizationNames(organization.getOrganization(), names);
+        }
+    }
+
+    private static void planUserGroups(final SetupPlan plan, final List<UserGroup> userGroups, final long companyId) {
+        Set<String> names = new LinkedHashSet<>();
+        userGroups.forEach(userGroup -> names.add(userGroup.getName()));
+        Set<String> existing = queryKeys(names, chunk -> UserGroupLocalServiceUtil.dynamicQuery(
+                UserGroupLocalServiceUtil.dynamicQuery()
+                        .add(PropertyFactoryUtil.forName("companyId").eq(companyId))
+                        .add(PropertyFactoryUtil.forName("name").in(chunk))
+                        .setProjection(ProjectionFactoryUtil.property("name"))));
+        for (UserGroup userGroup : userGroups) {
+            plan.add("user group", userGroup.getName(),
+                    existing.contains(userGroup.getName()) ? Action.UPDATE : Action.CREATE,
+                    WRITE_CALLS + userGroup.getRole().size() + userGroup.getUserAsMember().size());
+        }
+    }
+
+    private static void planSites(final SetupPlan plan, final List<Site> sites, final long companyId) {
+        Set<String> names = new LinkedHashSet<>();
+        for (Site site : sites) {
+            if (!site.isDefault() && site.getName() != null) {
+                names.add(site.getName());
+            }
+        }
+        Map<String, Long> groupIds = new HashMap<>();
+        if (!names.isEmpty()) {
+            List<Object[]> groups = BatchQueryUtil.queryInChunks(names, chunk -> GroupLocalServiceUtil.dynamicQuery(
+                    GroupLocalServiceUtil.dynamicQuery()
+                            .add(PropertyFactoryUtil.forName("companyId").eq(companyId))
+                            .add(PropertyFactoryUtil.forName("groupKey").in(chunk))
+                            .setProjection(ProjectionFactoryUtil.projectionList()
+                                    .add(ProjectionFactoryUtil.property("groupKey"))
+                                    .add(ProjectionFactoryUtil.property("groupId")))));
+            for (Object[] group : groups) {
+                groupIds.put((String) group[0], (Long) group[1]);
+            }
+        }
+        for (Site site : sites) {
+            long groupId;
+            if (site.isDefault()) {
+                Group group = GroupLocalServiceUtil.fetchGroup(companyId, GroupConstants.GUEST);
+                groupId = group == null ? 0 : group.getGroupId();
+            } else if (site.getName() == null) {
+                Group group = GroupLocalServiceUtil.fetchCompanyGroup(companyId);
+                groupId = group == null ? 0 : group.getGroupId();
+            } else {
+                groupId = groupIds.getOrDefault(site.getName(), 0L);
+            }
+            plan.add("site", SetupSites.getSiteKey(site), groupId == 0 ? Action.CREATE : Action.UPDATE,
+                    WRITE_CALLS);
+            planSiteContent(plan, site, groupId);
+            planSites(plan, site.getSite(), companyId);
+        }
+    }
+
+    /**
+     * @param groupId group of the site, 0 if the site does not exist yet
+     */
+    private static void planSiteContent(final SetupPlan plan, final Site site, final long groupId) {
+        if (site.getPublicPages() != null) {
+            planPages(plan, site.getPublicPages().getPage(), site.getPublicPages().isDeleteExistingPages(), groupId,
+                    false);
+        }
+        if (site.getPrivatePages() != null) {
+            planPages(plan, site.getPrivatePages().getPage(), site.getPrivatePages().isDeleteExistingPages(), groupId,
+                    true);
+        }
+
+        Set<String> titles = new LinkedHashSet<>();
+        site.getDocument().forEach(document -> titles.add(document.getDocumentFilename()));
+        Set<String> existingDocuments = groupId == 0 ? new HashSet<>() : queryKeys(titles,
+                chunk -> DLFileEntryLocalServiceUtil.dynamicQuery(DLFileEntryLocalServiceUtil.dynamicQuery()
+                        .add(PropertyFactoryUtil.forName("groupId").eq(groupId))
+                        .add(PropertyFactoryUtil.forName("title").in(chunk))
+                        .setProjection(ProjectionFactoryUtil.property("title"))));
+        for (Document document : site.getDocument()) {
+            String title = document.getDocumentFilename();
+            plan.add("document", document.getDocumentFolderName() + "/" + title,
+                    existingDocuments.contains(title) ? Action.UPDATE : Action.CREATE, WRITE_CALLS + 1);
+        }
+
+        Set<String> vocabularyNames = new LinkedHashSet<>();
+        site.getVocabulary().forEach(vocabulary -> vocabularyNames.add(vocabulary.getName()));
+        Set<String> existingVocabularies = groupId == 0 ? new HashSet<>() : queryKeys(vocabularyNames,
+                chunk -> AssetVocabularyLocalServiceUtil.dynamicQuery(AssetVocabularyLocalServiceUtil.dynamicQuery()
+                        .add(PropertyFactoryUtil.forName("groupId").eq(groupId))
+                        .add(PropertyFactoryUtil.forName("name").in(chunk))
+                        .setProjection(ProjectionFactoryUtil.property("name"))));
+        for (Vocabulary vocabulary : site.getVocabulary()) {
+            plan.add("vocabulary", vocabulary.getName(),
+                    existingVocabularies.contains(vocabulary.getName()) ? Action.UPDATE : Action.CREATE,
+                    WRITE_CALLS + countCategories(vocabulary.getCategory()));
+        }
+
+        Set<String> articleIds = new LinkedHashSet<>();
+        for (Article article : site.getArticle()) {
+            if (article.getArticleId() != null && !article.getArticleId().isEmpty()) {
+                articleIds.add(article.getArticleId());
+            }
+        }
+        Set<String> existingArticles = groupId == 0 ? new HashSet<>() : queryKeys(articleIds,
+                chunk -> JournalArticleLocalServiceUtil.dynamicQuery(JournalArticleLocalServiceUtil.dynamicQuery()
+                        .add(PropertyFactoryUtil.forName("groupId").eq(groupId))
+                        .add(PropertyFactoryUtil.forName("articleId").in(chunk))
+                        .setProjection(ProjectionFactoryUtil.distinct(ProjectionFactoryUtil.property("articleId")))));
+        for (Article article : site.getArticle()) {
+            // articles without an ID get a generated one, they are always created
+            String identity = article.getArticleId() == null || article.getArticleId().isEmpty()
+                    ? article.getTitle() : article.getArticleId();
+            plan.add("article", identity, existingArticles.contains(article.getArticleId()) ? Action.UPDATE
+                    : Action.CREATE, WRITE_CALLS + article.getTag().size() + article.getCategory().size() + 1);
+        }
+    }
+
+    private static void planPages(final SetupPlan plan, final List<Page> pages, final boolean deleteExisting,
+            final long groupId, final boolean privateLayout) {
+
+        Set<String> existing = new HashSet<>();
+        if (groupId != 0 && deleteExisting) {
+            List<String> layouts = LayoutLocalServiceUtil.dynamicQuery(LayoutLocalServiceUtil.dynamicQuery()
+                    .add(PropertyFactoryUtil.forName("groupId").eq(groupId))
+                    .add(PropertyFactoryUtil.forName("privateLayout").eq(privateLayout))
+                    .setProjection(ProjectionFactoryUtil.property("friendlyURL")));
+            for (String friendlyURL : layouts) {
+                plan.add("page", friendlyURL, Action.DELETE, LOOKUP_CALLS);
+            }
+        } else if (groupId != 0) {
+            Set<String> friendlyURLs = new LinkedHashSet<>();
+            collectFriendlyURLs(pages, friendlyURLs);
+            existing = queryKeys(friendlyURLs, chunk -> LayoutLocalServiceUtil.dynamicQuery(
+                    LayoutLocalServiceUtil.dynamicQuery()
+                            .add(PropertyFactoryUtil.forName("groupId").eq(groupId))
+                            .add(PropertyFactoryUtil.forName("privateLayout").eq(privateLayout))
+                            .add(PropertyFactoryUtil.forName("friendlyURL").in(chunk))
+                            .setProjection(ProjectionFactoryUtil.property("friendlyURL"))));
+        }
+        planPages(plan, pages, existing);
+    }
+
+    private static void planPages(final SetupPlan plan, final List<Page> pages, final Set<String> existing) {
+        for (Page page : pages) {
+            Action action = existing.contains(page.getFriendlyURL()) ? Action.UPDATE : Action.CREATE;
+            if (action == Action.UPDATE && page.isDeleteExistingPages()) {
+                plan.add("page", page.getFriendlyURL(), Action.DELETE, LOOKUP_CALLS);
+                action = Action.CREATE;
+            }
+            // the layout, its permissions and each portlet with its preferences
+            plan.add("page", page.getFriendlyURL(), action, WRITE_CALLS + 1 + 2 * page.getPageportlet().size());
+            planPages(plan, page.getPage(), existing);
+        }
+    }
+
+    private static void collectFriendlyURLs(final List<Page> pages, final Set<String> friendlyURLs) {
+        for (Page page : pages) {
+            if (page.getFriendlyURL() != null) {
+                friendlyURLs.add(page.getFriendlyURL());
+            }
+            collectFriendlyURLs(page.getPage(), friendlyURLs);
+        }
+    }
+
+    private static int countCategories(final List<Category> categories) {
+        int count = 0;
+        for (Category category : categories) {
+            count += 1 + countCategories(category.getCategory());
+        }
+        return count;
+    }
+
+    private static Set<String> queryRoleNames(final Collection<String> names, final long companyId) {
+        return queryKeys(names, chunk -> RoleLocalServiceUtil.dynamicQuery(RoleLocalServiceUtil.dynamicQuery()
+                .add(PropertyFactoryUtil.forName("companyId").eq(companyId))
+                .add(PropertyFactoryUtil.forName("name").in(chunk))
+                .setProjection(ProjectionFactoryUtil.property("name"))));
+    }
+
+    private static Set<String> queryUserEmails(final Collection<String> emails, final long companyId) {
+        return queryKeys(emails, chunk -> UserLocalServiceUtil.dynamicQuery(UserLocalServiceUtil.dynamicQuery()
+                .add(PropertyFactoryUtil.forName("companyId").eq(companyId))
+                .add(PropertyFactoryUtil.forName("emailAddress").in(chunk))
+                .setProjection(ProjectionFactoryUtil.property("emailAddress"))));
+    }
+
+    private static Map<String, Long> queryOrganizationGroupIds(final Collection<String> names, final long companyId) {
+        Map<String, Long> groupIds = new HashMap<>();
+        if (names.isEmpty()) {
+            return groupIds;
+        }
+        List<Object[]> organizations = BatchQueryUtil.queryInChunks(names,
+                chunk -> OrganizationLocalServiceUtil.dynamicQuery(OrganizationLocalServiceUtil.dynamicQuery()
+                        .add(PropertyFactoryUtil.forName("companyId").eq(companyId))
+                        .add(PropertyFactoryUtil.forName("name").in(chunk))
+                        .setProjection(ProjectionFactoryUtil.projectionList()
+                                .add(ProjectionFactoryUtil.property("name"))
+                                .add(ProjectionFactoryUtil.property("groupId")))));
+        for (Object[] organization : organizations) {
+            groupIds.put((String) organization[0], (Long) organization[1]);
+        }
+        return groupIds;
+    }
+
+    /**
+     * @return class name and name of the existing custom fields of the classes of given fields
+     */
+    private static Set<String> queryCustomFieldKeys(final List<CustomFields.Field> fields, final long companyId) {
+        Map<Long, String> classNames = new HashMap<>();
+        for (CustomFields.Field field : fields) {
+            classNames.put(PortalUtil.getClassNameId(field.getClassName()), field.getClassName());
+        }
+        Set<String> keys = new HashSet<>();
+        if (classNames.isEmpty()) {
+            return keys;
+        }
+        List<Object[]> tables = ExpandoTableLocalServiceUtil.dynamicQuery(ExpandoTableLocalServiceUtil.dynamicQuery()
+                .add(PropertyFactoryUtil.forName("companyId").eq(companyId))
+                .add(PropertyFactoryUtil.forName("name").eq(ExpandoTableConstants.DEFAULT_TABLE_NAME))
+                .add(PropertyFactoryUtil.forName("classNameId").in(classNames.keySet()))
+                .setProjection(ProjectionFactoryUtil.projectionList()
+                        .add(ProjectionFactoryUtil.property("tableId"))
+                        .add(ProjectionFactoryUtil.property("classNameId"))));
+        Map<Long, String> tableClassNames = new HashMap<>();
+        for (Object[] table : tables) {
+            tableClassNames.put((Long) table[0], classNames.get((Long) table[1]));
+        }
+        if (tableClassNames.isEmpty()) {
+            return keys;
+        }
+        List<Object[]> columns = ExpandoColumnLocalServiceUtil.dynamicQuery(ExpandoColumnLocalServiceUtil.dynamicQuery()
+                .add(PropertyFactoryUtil.forName("tableId").in(tableClassNames.keySet()))
+                .setProjection(ProjectionFactoryUtil.projectionList()
+                        .add(ProjectionFactoryUtil.property("tableId"))
+                        .add(ProjectionFactoryUtil.property("name"))));
+        for (Object[] column : columns) {
+            keys.add(tableClassNames.get((Long) column[0]) + "#" + column[1]);
+        }
+        return keys;
+    }
+
+    private static String customFieldKey(final CustomFields.Field field) {
+        return field.getClassName() + "#" + field.getName();
+    }
+
+    private static Set<String> queryKeys(final Collection<String> keys,
+            final Function<List<String>, List<String>> query) {
+
+        if (keys.isEmpty()) {
+            return new HashSet<>();
+        }
+        return new HashSet<>(BatchQueryUtil.queryInChunks(keys, query));
+    }
+}
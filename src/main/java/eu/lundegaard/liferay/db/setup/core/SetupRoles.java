@@ -23,8 +23,8 @@
  */
 package eu.lundegaard.liferay.db.setup.core;
 
-import com.liferay.portal.kernel.dao.orm.ObjectNotFoundException;
-import com.liferay.portal.kernel.exception.NoSuchRoleException;
+import com.liferay.portal.kernel.dao.orm.DynamicQuery;
+import com.liferay.portal.kernel.dao.orm.PropertyFactoryUtil;
 import com.liferay.portal.kernel.exception.PortalException;
 import com.liferay.portal.kernel.exception.RequiredRoleException;
 import com.liferay.portal.kernel.exception.SystemException;
@@ -36,7 +36,12 @@ import com.liferay.portal.kernel.model.RoleConstants;
 import com.liferay.portal.kernel.service.RoleLocalServiceUtil;
 import com.liferay.portal.kernel.service.UserLocalServiceUtil;
 import com.liferay.portal.kernel.util.PortalUtil;
+import eu.lundegaard.liferay.db.setup.core.util.PagedDeleteUtil;
+import eu.lundegaard.liferay.db.setup.core.util.ResolutionCache;
 import eu.lundegaard.liferay.db.setup.core.util.ResolverUtil;
+import eu.lundegaard.liferay.db.setup.core.util.SetupJournal;
+import eu.lundegaard.liferay.db.setup.core.util.SetupMetrics;
+import eu.lundegaard.liferay.db.setup.core.util.TransactionBatchUtil;
 import eu.lundegaard.liferay.db.setup.domain.DefinePermission;
 import eu.lundegaard.liferay.db.setup.domain.DefinePermissions;
 import eu.lundegaard.liferay.db.setup.domain.PermissionAction;
@@ -59,21 +64,32 @@ public final class SetupRoles {
     public static void setupRoles(final List<eu.lundegaard.liferay.db.setup.domain.Role> roles, long runAsUserId,
             long groupId, long company) {
 
-        for (eu.lundegaard.liferay.db.setup.domain.Role role : roles) {
-            try {
-                RoleLocalServiceUtil.getRole(COMPANY_ID, role.getName());
-                LOG.info("Setup: Role " + role.getName() + " already exist, not creating...");
-            } catch (NoSuchRoleException | ObjectNotFoundException e) {
-                addRole(role);
+        TransactionBatchUtil.forEach(roles, "roles", role -> setupRole(role, runAsUserId, groupId, company));
+    }
 
-            } catch (SystemException | PortalException e) {
-                LOG.error("error while setting up roles", e);
-            }
-            addRolePermissions(role, runAsUserId, groupId, company);
+    private static void setupRole(final eu.lundegaard.liferay.db.setup.domain.Role role, final long runAsUserId,
+            final long groupId, final long company) {
+
+        if (SetupJournal.isCompleted(SetupJournal.ROLE, role.getName())) {
+            LOG.info("Setup: Role " + role.getName() + " has been set up by an interrupted run, skipping...");
+            return;
         }
+        // a failed lookup would mark the transaction of the whole batch for rollback
+        SetupMetrics.serviceCall("RoleLocalService.fetchRole");
+        if (RoleLocalServiceUtil.fetchRole(COMPANY_ID, role.getName()) != null) {
+            LOG.info("Setup: Role " + role.getName() + " already exist, not creating...");
+        } else if (!addRole(role)) {
+            // a failed role is not journaled, so that a resumed run tries it again
+            return;
+        }
+        addRolePermissions(role, runAsUserId, groupId, company);
+        SetupJournal.markCompleted(SetupJournal.ROLE, role.getName());
     }
 
-    private static void addRole(final eu.lundegaard.liferay.db.setup.domain.Role role) {
+    /**
+     * @return whether the role has been added
+     */
+    private static boolean addRole(final eu.lundegaard.liferay.db.setup.domain.Role role) {
 
         Map<Locale, String> localeTitleMap = new HashMap<>();
         localeTitleMap.put(Locale.ENGLISH, role.getName());
@@ -88,14 +104,17 @@ public final class SetupRoles {
                 }
             }
 
+            SetupMetrics.serviceCall("UserLocalService.getDefaultUserId");
             long defaultUserId = UserLocalServiceUtil.getDefaultUserId(COMPANY_ID);
+            SetupMetrics.serviceCall("RoleLocalService.addRole");
             RoleLocalServiceUtil.addRole(defaultUserId, null, 0, role.getName(), localeTitleMap,
                     null, roleType, null, null);
 
             LOG.info("Setup: Role " + role.getName() + " does not exist, adding...");
-
+            return true;
         } catch (PortalException | SystemException e) {
             LOG.error("error while adding up roles", e);
+            return false;
         }
 
     }
@@ -107,29 +126,37 @@ public final class SetupRoles {
             case "excludeListed":
                 Map<String, eu.lundegaard.liferay.db.setup.domain.Role> toBeDeletedRoles = convertRoleListToHashMap(
                         roles);
-                try {
-                    for (Role role : RoleLocalServiceUtil.getRoles(-1, -1)) {
-                        String name = role.getName();
-                        if (!toBeDeletedRoles.containsKey(name)) {
-                            try {
-                                RoleLocalServiceUtil
-                                        .deleteRole(RoleLocalServiceUtil.getRole(COMPANY_ID, name));
-                                LOG.info("Deleting Role " + name);
-
-                            } catch (Exception e) {
-                                LOG.info("Skipping deletion fo system role " + name);
-                            }
-                        }
+                int deletedRoles = PagedDeleteUtil.deleteInPages("roles", lastRoleId -> {
+                    // roles of other portal instances are not managed by the setup
+                    DynamicQuery query = RoleLocalServiceUtil.dynamicQuery()
+                            .add(PropertyFactoryUtil.forName("companyId").eq(COMPANY_ID));
+                    SetupMetrics.serviceCall("RoleLocalService.dynamicQuery");
+                    return RoleLocalServiceUtil.dynamicQuery(PagedDeleteUtil.page(query, "roleId", "name",
+                            toBeDeletedRoles.keySet(), lastRoleId), 0, PagedDeleteUtil.PAGE_SIZE);
+                }, candidate -> {
+                    String name = (String) candidate[1];
+                    if (toBeDeletedRoles.containsKey(name)) {
+                        return false;
                     }
-                } catch (SystemException e) {
-                    LOG.error("problem with deleting roles", e);
-                }
+                    try {
+                        SetupMetrics.serviceCall("RoleLocalService.deleteRole");
+                        RoleLocalServiceUtil.deleteRole((Long) candidate[0]);
+                        LOG.info("Deleting Role " + name);
+                        return true;
+                    } catch (Exception e) {
+                        LOG.info("Skipping deletion fo system role " + name);
+                        return false;
+                    }
+                });
+                LOG.info("Deleted " + deletedRoles + " roles not listed in the setup");
                 break;
 
             case "onlyListed":
                 for (eu.lundegaard.liferay.db.setup.domain.Role role : roles) {
                     String name = role.getName();
                     try {
+                        SetupMetrics.serviceCall("RoleLocalService.deleteRole");
+                        SetupMetrics.serviceCall("RoleLocalService.getRole");
                         RoleLocalServiceUtil.deleteRole(RoleLocalServiceUtil.getRole(COMPANY_ID, name));
                         LOG.info("Deleting Role " + name);
 
@@ -146,7 +173,8 @@ public final class SetupRoles {
                 LOG.error("Unknown delete method : " + deleteMethod);
                 break;
         }
-
+        // role IDs cached by permission handlers
+        ResolutionCache.invalidateAll(ResolutionCache.ROLE);
     }
 
     private static void addRolePermissions(eu.lundegaard.liferay.db.setup.domain.Role role, long runAsUserId,
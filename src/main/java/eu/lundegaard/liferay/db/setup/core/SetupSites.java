@@ -37,14 +37,22 @@ import com.liferay.portal.kernel.security.auth.CompanyThreadLocal;
 import com.liferay.portal.kernel.service.*;
 import com.liferay.portal.kernel.util.PortalUtil;
 import eu.lundegaard.liferay.db.setup.LiferaySetup;
+import eu.lundegaard.liferay.db.setup.core.util.ConcurrencyUtil;
 import eu.lundegaard.liferay.db.setup.core.util.CustomFieldSettingUtil;
 import eu.lundegaard.liferay.db.setup.core.util.PortletConstants;
 import eu.lundegaard.liferay.db.setup.core.util.FieldMapUtil;
+import eu.lundegaard.liferay.db.setup.core.util.SetupJournal;
+import eu.lundegaard.liferay.db.setup.core.util.SetupMetrics;
+import eu.lundegaard.liferay.db.setup.core.util.SetupThreadContext;
+import eu.lundegaard.liferay.db.setup.core.util.SiteGroupIdCache;
 import eu.lundegaard.liferay.db.setup.domain.*;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
 
 /**
  * Created by gustavnovotny on 28.08.17.
@@ -53,6 +61,8 @@ public class SetupSites {
 
     private static final Log LOG = LogFactoryUtil.getLog(SetupSites.class);
     private static final String DEFAULT_GROUP_NAME = "Guest";
+    private static final String DEFAULT_SITE_KEY = "default";
+    private static final String GLOBAL_SITE_KEY = "global";
     private static final long COMPANY_ID = PortalUtil.getDefaultCompanyId();
 
     private SetupSites() {
@@ -62,102 +72,204 @@ public class SetupSites {
     public static void setupSites(final List<eu.lundegaard.liferay.db.setup.domain.Site> groups,
             final Group parentGroup) {
 
+        setupSites(groups, parentGroup, 1);
+    }
+
+    /**
+     * Sets up the sites. With parallelism greater than one, sibling sites are set up concurrently, each worker runs
+     * with the company, principal and permission context of the calling thread. Child sites are set up one after
+     * another by the worker of their parent site. A failure of one site does not affect the other ones.
+     *
+     * @param groups sites to set up
+     * @param parentGroup parent group of the sites, may be null
+     * @param parallelism maximum number of sites set up at once
+     */
+    public static void setupSites(final List<eu.lundegaard.liferay.db.setup.domain.Site> groups,
+            final Group parentGroup, final int parallelism) {
+
         CompanyThreadLocal.setCompanyId(COMPANY_ID);
+        if (parallelism <= 1 || groups.size() <= 1) {
+            for (eu.lundegaard.liferay.db.setup.domain.Site site : groups) {
+                setupSite(site, parentGroup);
+            }
+            return;
+        }
+
+        LOG.info("Setting up " + groups.size() + " sites with " + parallelism + " threads");
+        SetupThreadContext context = SetupThreadContext.capture();
+        List<Callable<Void>> tasks = new ArrayList<>();
         for (eu.lundegaard.liferay.db.setup.domain.Site site : groups) {
-            try {
-                Group liferayGroup = null;
-                long groupId = -1;
-                if (site.isDefault()) {
-                    liferayGroup = GroupLocalServiceUtil.getGroup(COMPANY_ID, DEFAULT_GROUP_NAME);
-                    LOG.info("Setup: default site. Group ID: " + groupId);
-                } else if (site.getName() == null) {
-                    liferayGroup = GroupLocalServiceUtil.getCompanyGroup(COMPANY_ID);
-                    LOG.info("Setup: global site. Group ID: " + groupId);
-                } else {
-                    try {
-                        liferayGroup = GroupLocalServiceUtil.getGroup(COMPANY_ID, site.getName());
-                        LOG.info("Setup: Site " + site.getName()
-                                + " already exists in system, not creating...");
+            tasks.add(context.wrap(() -> {
+                setupSite(site, parentGroup);
+                return null;
+            }));
+        }
+        try {
+            ConcurrencyUtil.invokeAll(tasks, parallelism, "setup-site");
+        } catch (ExecutionException e) {
+            LOG.error("Error by setting up sites", e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            LOG.error("Interrupted while setting up sites", e);
+        }
+    }
 
-                    } catch (PortalException | SystemException e) {
-                        LOG.debug("Site does not exist.", e);
-                    }
-                }
-                long defaultUserId = UserLocalServiceUtil.getDefaultUserId(COMPANY_ID);
-                ServiceContext serviceContext = new ServiceContext();
+    private static void setupSite(final eu.lundegaard.liferay.db.setup.domain.Site site, final Group parentGroup) {
+        String siteKey = getSiteKey(site);
+        if (SetupJournal.isCompleted(SetupJournal.SITE, siteKey)) {
+            LOG.info("Setup: Site " + siteKey + " has been set up by an interrupted run, skipping...");
+            return;
+        }
+        try {
+            Group liferayGroup = null;
+            long groupId = -1;
+            if (site.isDefault()) {
+                SetupMetrics.serviceCall("GroupLocalService.getGroup");
+                liferayGroup = GroupLocalServiceUtil.getGroup(COMPANY_ID, DEFAULT_GROUP_NAME);
+                LOG.info("Setup: default site. Group ID: " + groupId);
+            } else if (site.getName() == null) {
+                SetupMetrics.serviceCall("GroupLocalService.getCompanyGroup");
+                liferayGroup = GroupLocalServiceUtil.getCompanyGroup(COMPANY_ID);
+                LOG.info("Setup: global site. Group ID: " + groupId);
+            } else {
+                try {
+                    SetupMetrics.serviceCall("GroupLocalService.getGroup");
+                    liferayGroup = GroupLocalServiceUtil.getGroup(COMPANY_ID, site.getName());
+                    LOG.info("Setup: Site " + site.getName()
+                            + " already exists in system, not creating...");
 
-                if (liferayGroup == null) {
-                    LOG.info("Setup: Group (Site) " + site.getName()
-                            + " does not exist in system, creating...");
-
-                    liferayGroup = GroupLocalServiceUtil.addGroup(
-                            defaultUserId, GroupConstants.DEFAULT_PARENT_GROUP_ID, Group.class.getName(),
-                            0, 0, FieldMapUtil.getLocalizationMap(site.getName()), null,
-                            GroupConstants.TYPE_SITE_RESTRICTED, true, GroupConstants.DEFAULT_MEMBERSHIP_RESTRICTION,
-                            site.getSiteFriendlyUrl(), true, true, serviceContext);
-                    LOG.info("New Organization created. Group ID: " + groupId);
-                } else {
-                    LOG.info("Setup: Updating " + site.getName());
-                    GroupLocalServiceUtil.updateFriendlyURL(liferayGroup.getGroupId(), site.getSiteFriendlyUrl());
-                }
-                groupId = liferayGroup.getGroupId();
-
-                if (parentGroup != null && liferayGroup != null
-                        && site.isMaintainSiteHierarchy()) {
-                    liferayGroup.setParentGroupId(parentGroup.getGroupId());
-                    GroupLocalServiceUtil.updateGroup(liferayGroup);
-                } else if (liferayGroup != null && site.isMaintainSiteHierarchy()) {
-                    liferayGroup.setParentGroupId(0);
-                    GroupLocalServiceUtil.updateGroup(liferayGroup);
+                } catch (PortalException | SystemException e) {
+                    LOG.debug("Site does not exist.", e);
                 }
+            }
+            SetupMetrics.serviceCall("UserLocalService.getDefaultUserId");
+            long defaultUserId = UserLocalServiceUtil.getDefaultUserId(COMPANY_ID);
+            ServiceContext serviceContext = new ServiceContext();
+
+            if (liferayGroup == null) {
+                LOG.info("Setup: Group (Site) " + site.getName()
+                        + " does not exist in system, creating...");
+
+                SetupMetrics.serviceCall("GroupLocalService.addGroup");
+                liferayGroup = GroupLocalServiceUtil.addGroup(
+                        defaultUserId, GroupConstants.DEFAULT_PARENT_GROUP_ID, Group.class.getName(),
+                        0, 0, FieldMapUtil.getLocalizationMap(site.getName()), null,
+                        GroupConstants.TYPE_SITE_RESTRICTED, true, GroupConstants.DEFAULT_MEMBERSHIP_RESTRICTION,
+                        site.getSiteFriendlyUrl(), true, true, serviceContext);
+                SiteGroupIdCache.invalidate(COMPANY_ID, site.getName());
+                LOG.info("New Organization created. Group ID: " + groupId);
+            } else {
+                LOG.info("Setup: Updating " + site.getName());
+                SetupMetrics.serviceCall("GroupLocalService.updateFriendlyURL");
+                GroupLocalServiceUtil.updateFriendlyURL(liferayGroup.getGroupId(), site.getSiteFriendlyUrl());
+            }
+            groupId = liferayGroup.getGroupId();
+
+            if (parentGroup != null && liferayGroup != null
+                    && site.isMaintainSiteHierarchy()) {
+                liferayGroup.setParentGroupId(parentGroup.getGroupId());
+                SetupMetrics.serviceCall("GroupLocalService.updateGroup");
+                GroupLocalServiceUtil.updateGroup(liferayGroup);
+            } else if (liferayGroup != null && site.isMaintainSiteHierarchy()) {
+                liferayGroup.setParentGroupId(0);
+                SetupMetrics.serviceCall("GroupLocalService.updateGroup");
+                GroupLocalServiceUtil.updateGroup(liferayGroup);
+            }
 
-                LOG.info("Setting site content...");
+            LOG.info("Setting site content...");
 
-                long userId = LiferaySetup.getRunAsUserId();
+            long userId = LiferaySetup.getRunAsUserId();
 
-                setStaging(userId, liferayGroup, site.getStaging());
+            setStaging(userId, liferayGroup, site.getStaging());
 
-                // If staging group exists for present Group, add all content to staging group
-                Group stagingGroup = liferayGroup.getStagingGroup();
-                if (Objects.nonNull(stagingGroup)) {
-                    groupId = stagingGroup.getGroupId();
-                }
+            // If staging group exists for present Group, add all content to staging group
+            Group stagingGroup = liferayGroup.getStagingGroup();
+            if (Objects.nonNull(stagingGroup)) {
+                groupId = stagingGroup.getGroupId();
+            }
 
+            try (SetupMetrics.Section section = SetupMetrics.section("site structures and templates",
+                    site.getArticleStructure().size() + site.getArticleTemplate().size())) {
                 SetupArticles.setupSiteStructuresAndTemplates(site, groupId, COMPANY_ID);
-                LOG.info("Site DDM structures and templates setting finished.");
+            }
+            LOG.info("Site DDM structures and templates setting finished.");
 
+            try (SetupMetrics.Section section = SetupMetrics.section("site document folders",
+                    site.getDocumentFolder().size())) {
                 SetupDocumentFolders.setupDocumentFolders(site, groupId, COMPANY_ID);
-                LOG.info("Document Folders setting finished.");
+            }
+            LOG.info("Document Folders setting finished.");
 
+            try (SetupMetrics.Section section = SetupMetrics.section("site documents", site.getDocument().size())) {
                 SetupDocuments.setupSiteDocuments(site, groupId, COMPANY_ID);
-                LOG.info("Documents setting finished.");
+            }
+            LOG.info("Documents setting finished.");
 
+            try (SetupMetrics.Section section = SetupMetrics.section("site pages", countPages(site))) {
                 SetupPages.setupSitePages(site, groupId, COMPANY_ID, userId);
-                LOG.info("Site Pages setting finished.");
+            }
+            LOG.info("Site Pages setting finished.");
 
+            try (SetupMetrics.Section section = SetupMetrics.section("site web folders",
+                    site.getArticleFolder().size())) {
                 SetupWebFolders.setupWebFolders(site, groupId, COMPANY_ID);
-                LOG.info("Web folders setting finished.");
+            }
+            LOG.info("Web folders setting finished.");
 
+            try (SetupMetrics.Section section = SetupMetrics.section("site vocabularies",
+                    site.getVocabulary().size())) {
                 SetupCategorization.setupVocabularies(site, groupId);
-                LOG.info("Site Categories setting finished.");
+            }
+            LOG.info("Site Categories setting finished.");
 
+            try (SetupMetrics.Section section = SetupMetrics.section("site articles", site.getArticle().size())) {
                 SetupArticles.setupSiteArticles(site, groupId, COMPANY_ID);
-                LOG.info("Site Articles setting finished.");
+            }
+            LOG.info("Site Articles setting finished.");
 
-                setCustomFields(userId, groupId, COMPANY_ID, site);
-                LOG.info("Site custom fields set up.");
+            setCustomFields(userId, groupId, COMPANY_ID, site);
+            LOG.info("Site custom fields set up.");
 
-                // Users and Groups should be referenced to live Group
-                setMembership(site.getMembership(), COMPANY_ID, liferayGroup.getGroupId());
+            // Users and Groups should be referenced to live Group
+            setMembership(site.getMembership(), COMPANY_ID, liferayGroup.getGroupId());
 
-                List<eu.lundegaard.liferay.db.setup.domain.Site> sites = site
-                        .getSite();
-                setupSites(sites, liferayGroup);
+            List<eu.lundegaard.liferay.db.setup.domain.Site> sites = site
+                    .getSite();
+            setupSites(sites, liferayGroup);
+            SetupJournal.markCompleted(SetupJournal.SITE, siteKey);
 
-            } catch (Exception e) {
-                LOG.error("Error by setting up site " + site.getName(), e);
-            }
+        } catch (Exception e) {
+            LOG.error("Error by setting up site " + site.getName(), e);
+        }
+    }
+
+    private static int countPages(final eu.lundegaard.liferay.db.setup.domain.Site site) {
+        int pages = 0;
+        if (site.getPublicPages() != null) {
+            pages += countPages(site.getPublicPages().getPage());
+        }
+        if (site.getPrivatePages() != null) {
+            pages += countPages(site.getPrivatePages().getPage());
+        }
+        return pages;
+    }
+
+    private static int countPages(final List<Page> pages) {
+        int count = pages.size();
+        for (Page page : pages) {
+            count += countPages(page.getPage());
+        }
+        return count;
+    }
+
+    /**
+     * @return identity of the site within the setup
+     */
+    static String getSiteKey(final eu.lundegaard.liferay.db.setup.domain.Site site) {
+        if (site.isDefault()) {
+            return DEFAULT_SITE_KEY;
         }
+        return site.getName() == null ? GLOBAL_SITE_KEY : site.getName();
     }
 
     private static void setMembership(Membership membership, long companyId, long groupId) {
@@ -179,6 +291,7 @@ public class SetupSites {
         }
 
         for (UserAsMember memberUser : memberUsers) {
+            SetupMetrics.serviceCall("UserLocalService.fetchUserByScreenName");
             User user = UserLocalServiceUtil.fetchUserByScreenName(companyId, memberUser.getScreenName());
             if (Objects.isNull(user)) {
                 LOG.error("User with screenName " + memberUser.getScreenName()
@@ -187,7 +300,9 @@ public class SetupSites {
             }
 
             try {
+                SetupMetrics.serviceCall("GroupLocalService.getGroup");
                 Group liferayGroup = GroupLocalServiceUtil.getGroup(groupId);
+                SetupMetrics.serviceCall("GroupLocalService.addUserGroup");
                 GroupLocalServiceUtil.addUserGroup(user.getUserId(), liferayGroup.getGroupId());
                 LOG.info("User " + user.getScreenName() + " was assigned as member of site "
                         + liferayGroup.getDescriptiveName());
@@ -209,8 +324,10 @@ public class SetupSites {
 
         for (Role membershipRole : membershipRoles) {
             try {
+                SetupMetrics.serviceCall("RoleLocalService.getRole");
                 com.liferay.portal.kernel.model.Role liferayRole =
                         RoleLocalServiceUtil.getRole(companyId, membershipRole.getName());
+                SetupMetrics.serviceCall("UserGroupRoleLocalService.addUserGroupRoles");
                 UserGroupRoleLocalServiceUtil.addUserGroupRoles(liferayUser.getUserId(), liferayGroup.getGroupId(),
                         new long[] {liferayRole.getRoleId()});
                 StringBuilder sb = new StringBuilder("Role ")
@@ -236,9 +353,12 @@ public class SetupSites {
 
         for (UsergroupAsMember memberGroup : memberGroups) {
             try {
+                SetupMetrics.serviceCall("UserGroupLocalService.getUserGroup");
                 UserGroup liferayUserGroup =
                         UserGroupLocalServiceUtil.getUserGroup(companyId, memberGroup.getUsergroupName());
+                SetupMetrics.serviceCall("GroupLocalService.getGroup");
                 Group liferayGroup = GroupLocalServiceUtil.getGroup(groupId);
+                SetupMetrics.serviceCall("GroupLocalService.addUserGroupGroup");
                 GroupLocalServiceUtil.addUserGroupGroup(liferayUserGroup.getUserGroupId(), liferayGroup);
                 LOG.info("UserGroup " + liferayUserGroup.getName() + " was assigned as site member to "
                         + liferayGroup.getDescriptiveName());
@@ -260,8 +380,10 @@ public class SetupSites {
 
         for (Role membershipRole : membershipRoles) {
             try {
+                SetupMetrics.serviceCall("RoleLocalService.getRole");
                 com.liferay.portal.kernel.model.Role liferayRole =
                         RoleLocalServiceUtil.getRole(companyId, membershipRole.getName());
+                SetupMetrics.serviceCall("UserGroupGroupRoleLocalService.addUserGroupGroupRoles");
                 UserGroupGroupRoleLocalServiceUtil.addUserGroupGroupRoles(liferayUserGroup.getUserGroupId(),
                         liferayGroup.getGroupId(), new long[] {liferayRole.getRoleId()});
                 StringBuilder sb = new StringBuilder("Role ")
@@ -312,6 +434,7 @@ public class SetupSites {
                         serviceContext);
                 setStagingParam(staging.isStageWiki(), PortletConstants.STAGING_PORTLET_ID_WIKI, serviceContext);
 
+                SetupMetrics.serviceCall("StagingLocalService.enableLocalStaging");
                 StagingLocalServiceUtil.enableLocalStaging(userId, liveGroup, staging.isBranchingPublic(),
                         staging.isBranchingPrivate(), serviceContext);
                 LOG.info("Local staging switched on.");
@@ -323,6 +446,7 @@ public class SetupSites {
                 ServiceContext serviceContext = new ServiceContext();
                 serviceContext.setUserId(userId);
                 serviceContext.setAttribute("forceDisable", true);
+                SetupMetrics.serviceCall("StagingLocalService.disableStaging");
                 StagingLocalServiceUtil.disableStaging(liveGroup, serviceContext);
                 LOG.info("Staging switched off.");
             }
@@ -364,6 +488,7 @@ public class SetupSites {
                 Map<String, Site> toBeDeletedOrganisations = convertSiteListToHashMap(
                         sites);
                 try {
+                    SetupMetrics.serviceCall("GroupLocalService.getGroups");
                     for (com.liferay.portal.kernel.model.Group siteGroup : GroupLocalServiceUtil
                             .getGroups(QueryUtil.ALL_POS, QueryUtil.ALL_POS)) {
                         if (!toBeDeletedOrganisations.containsKey(siteGroup.getName())) {
@@ -379,8 +504,11 @@ public class SetupSites {
                 for (eu.lundegaard.liferay.db.setup.domain.Site site : sites) {
                     String name = site.getName();
                     try {
+                        SetupMetrics.serviceCall("GroupLocalService.getGroup");
                         com.liferay.portal.kernel.model.Group o = GroupLocalServiceUtil.getGroup(COMPANY_ID, name);
+                        SetupMetrics.serviceCall("GroupLocalService.deleteGroup");
                         GroupLocalServiceUtil.deleteGroup(o);
+                        SiteGroupIdCache.invalidateGroup(COMPANY_ID, o.getGroupId());
                     } catch (Exception e) {
                         LOG.error("Error by deleting Site !", e);
                     }
@@ -397,7 +525,9 @@ public class SetupSites {
 
     private static void deleteLiferayGroup(Group siteGroup) {
         try {
+            SetupMetrics.serviceCall("GroupLocalService.deleteGroup");
             GroupLocalServiceUtil.deleteGroup(siteGroup.getGroupId());
+            SiteGroupIdCache.invalidateGroup(COMPANY_ID, siteGroup.getGroupId());
             LOG.info("Deleting Site" + siteGroup.getName());
         } catch (Exception e) {
             LOG.error("Error by deleting Site !", e);
@@ -406,6 +536,7 @@ public class SetupSites {
 
     public static void addSiteUser(com.liferay.portal.kernel.model.Group group, User user) {
         LOG.info("Adding user with screenName: " + user.getScreenName() + "to group with name: " + group.getName());
+        SetupMetrics.serviceCall("GroupLocalService.addUserGroup");
         GroupLocalServiceUtil.addUserGroup(user.getUserId(), group);
     }
 
@@ -36,6 +36,7 @@ import com.liferay.portal.kernel.service.UserLocalServiceUtil;
 import com.liferay.portal.kernel.util.PortalUtil;
 import eu.lundegaard.liferay.db.setup.LiferaySetup;
 import eu.lundegaard.liferay.db.setup.core.util.CustomFieldSettingUtil;
+import eu.lundegaard.liferay.db.setup.core.util.SetupMetrics;
 import eu.lundegaard.liferay.db.setup.domain.CustomFieldSetting;
 import eu.lundegaard.liferay.db.setup.domain.Role;
 import eu.lundegaard.liferay.db.setup.domain.UserAsMember;
@@ -59,6 +60,7 @@ public class SetupUserGroups {
             com.liferay.portal.kernel.model.UserGroup liferayUserGroup = null;
             long liferayUserGroupId = -1;
             try {
+                SetupMetrics.serviceCall("UserGroupLocalService.getUserGroup");
                 liferayUserGroup = UserGroupLocalServiceUtil.getUserGroup(COMPANY_ID, userGroup.getName());
                 liferayUserGroupId = liferayUserGroup.getUserGroupId();
             } catch (PortalException e) {
@@ -66,6 +68,7 @@ public class SetupUserGroups {
             }
             if (liferayUserGroupId == -1) {
                 try {
+                    SetupMetrics.serviceCall("UserGroupLocalService.addUserGroup");
                     liferayUserGroup = UserGroupLocalServiceUtil.addUserGroup(userId, COMPANY_ID, userGroup.getName(),
                             userGroup.getDescription(), new ServiceContext());
                 } catch (PortalException e) {
@@ -95,6 +98,7 @@ public class SetupUserGroups {
             com.liferay.portal.kernel.model.UserGroup liferayUserGroup) {
 
         for (UserAsMember member : usersAsMember) {
+            SetupMetrics.serviceCall("UserLocalService.fetchUserByScreenName");
             User user = UserLocalServiceUtil.fetchUserByScreenName(COMPANY_ID, member.getScreenName());
             if (Objects.isNull(user)) {
                 LOG.error("Can not set user " + member.getScreenName()
@@ -102,6 +106,7 @@ public class SetupUserGroups {
                 continue;
             }
 
+            SetupMetrics.serviceCall("UserGroupLocalService.addUserUserGroup");
             UserGroupLocalServiceUtil.addUserUserGroup(user.getUserId(), liferayUserGroup.getUserGroupId());
             LOG.info("User " + user.getScreenName() + " successfully added as a member to UserGroup "
                     + liferayUserGroup.getName());
@@ -132,11 +137,13 @@ public class SetupUserGroups {
             final com.liferay.portal.kernel.model.UserGroup liferayUserGroup) {
         try {
             for (Role role : userGroup.getRole()) {
+                SetupMetrics.serviceCall("RoleLocalService.getRole");
                 com.liferay.portal.kernel.model.Role liferayRole =
                         RoleLocalServiceUtil.getRole(COMPANY_ID, role.getName());
                 String roleType = role.getType();
                 switch (roleType) {
                     case "portal":
+                        SetupMetrics.serviceCall("GroupLocalService.addRoleGroup");
                         GroupLocalServiceUtil.addRoleGroup(liferayRole.getRoleId(), liferayUserGroup.getGroupId());
                         LOG.info("Adding role " + liferayRole.getDescriptiveName() + " to userGroup "
                                 + liferayUserGroup.getName());
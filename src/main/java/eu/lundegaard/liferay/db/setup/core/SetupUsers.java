@@ -46,19 +46,31 @@ package eu.lundegaard.liferay.db.setup.core;
  * SOFTWARE.
  */
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Calendar;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
-import com.liferay.portal.kernel.exception.NoSuchUserException;
+import java.util.function.Function;
+import com.liferay.portal.kernel.dao.orm.DynamicQuery;
+import com.liferay.portal.kernel.dao.orm.PropertyFactoryUtil;
 import com.liferay.portal.kernel.model.Group;
 import com.liferay.portal.kernel.model.Organization;
 import com.liferay.portal.kernel.model.Role;
 import com.liferay.portal.kernel.model.User;
 import com.liferay.portal.kernel.service.*;
 import com.liferay.portal.kernel.util.PortalUtil;
+import com.liferay.portal.kernel.util.StringUtil;
+import eu.lundegaard.liferay.db.setup.core.util.BatchQueryUtil;
 import eu.lundegaard.liferay.db.setup.core.util.CustomFieldSettingUtil;
+import eu.lundegaard.liferay.db.setup.core.util.PagedDeleteUtil;
+import eu.lundegaard.liferay.db.setup.core.util.SetupJournal;
+import eu.lundegaard.liferay.db.setup.core.util.SetupMetrics;
+import eu.lundegaard.liferay.db.setup.core.util.TransactionBatchUtil;
 import eu.lundegaard.liferay.db.setup.core.util.StringPool;
 import eu.lundegaard.liferay.db.setup.domain.CustomFieldSetting;
 import com.liferay.portal.kernel.exception.PortalException;
@@ -71,6 +83,7 @@ public final class SetupUsers {
     private static final Log LOG = LogFactoryUtil.getLog(SetupUsers.class);
     private static final long COMPANY_ID = PortalUtil.getDefaultCompanyId();
     private static final int DEFAULT_BIRTHDAY_YEAR = 1970;
+    private static final int CHUNK_SIZE = BatchQueryUtil.MAX_IN_LIST_SIZE;
 
     private SetupUsers() {
 
@@ -79,31 +92,219 @@ public final class SetupUsers {
     public static void setupUsers(final List<eu.lundegaard.liferay.db.setup.domain.User> users,
             final long runAsUser, final long groupId) {
 
-        for (eu.lundegaard.liferay.db.setup.domain.User user : users) {
-            User liferayUser = null;
-            try {
-                liferayUser = UserLocalServiceUtil.getUserByEmailAddress(COMPANY_ID,
-                        user.getEmailAddress());
-                LOG.info("User " + liferayUser.getEmailAddress()
-                        + " already exist, not creating...");
+        for (int from = 0; from < users.size(); from += CHUNK_SIZE) {
+            setupUserChunk(users.subList(from, Math.min(from + CHUNK_SIZE, users.size())), runAsUser, groupId);
+        }
+    }
+
+    /**
+     * Sets up a chunk of users. The existing users are loaded with one query, the organizations, roles and sites are
+     * resolved once and the memberships are added with one call per organization, role or site role for all users.
+     */
+    private static void setupUserChunk(final List<eu.lundegaard.liferay.db.setup.domain.User> chunk,
+            final long runAsUser, final long groupId) {
 
-            } catch (NoSuchUserException e) {
+        // the first entry of an email address creates the user, the others only add memberships and custom fields
+        Map<String, eu.lundegaard.liferay.db.setup.domain.User> pending = new LinkedHashMap<>();
+        List<eu.lundegaard.liferay.db.setup.domain.User> duplicates = new ArrayList<>();
+        for (eu.lundegaard.liferay.db.setup.domain.User user : chunk) {
+            if (SetupJournal.isCompleted(SetupJournal.USER, user.getEmailAddress())) {
+                LOG.info("User " + user.getEmailAddress() + " has been set up by an interrupted run, skipping...");
+            } else if (pending.putIfAbsent(getLogin(user), user) != null) {
+                duplicates.add(user);
+            }
+        }
+        if (pending.isEmpty()) {
+            return;
+        }
+        Map<String, User> existingUsers = findUsersByLogin(pending.keySet());
+
+        Map<String, User> liferayUsers = new HashMap<>();
+        TransactionBatchUtil.forEach(new ArrayList<>(pending.values()), "users", user -> {
+            String login = getLogin(user);
+            User liferayUser = existingUsers.get(login);
+            if (liferayUser != null) {
+                LOG.info("User " + liferayUser.getEmailAddress() + " already exist, not creating...");
+            } else {
                 liferayUser = addUser(user);
+            }
+            // a unit of a rolled back batch is set up again, so its previous result is replaced
+            if (liferayUser == null) {
+                liferayUsers.remove(login);
+                LOG.warn("Could not create user with screenName '" + user.getScreenName() + "'");
+                return;
+            }
+            liferayUsers.put(login, liferayUser);
+            if (user.getCustomFieldSetting() != null && !user.getCustomFieldSetting().isEmpty()) {
+                setCustomFields(runAsUser, groupId, COMPANY_ID, liferayUser, user);
+            }
+        });
+        for (eu.lundegaard.liferay.db.setup.domain.User user : duplicates) {
+            User liferayUser = liferayUsers.get(getLogin(user));
+            if (liferayUser != null && !user.getCustomFieldSetting().isEmpty()) {
+                setCustomFields(runAsUser, groupId, COMPANY_ID, liferayUser, user);
+            }
+        }
 
-            } catch (Exception e) {
-                LOG.error("Error by retrieving user " + user.getEmailAddress());
+        List<eu.lundegaard.liferay.db.setup.domain.User> setupUsers = new ArrayList<>(pending.values());
+        setupUsers.addAll(duplicates);
+        addMemberships(setupUsers, liferayUsers);
+
+        for (eu.lundegaard.liferay.db.setup.domain.User user : setupUsers) {
+            if (liferayUsers.containsKey(getLogin(user))) {
+                SetupJournal.markCompleted(SetupJournal.USER, user.getEmailAddress());
             }
+        }
+    }
+
+    /**
+     * Liferay stores email addresses trimmed and in lower case.
+     */
+    private static String getLogin(final eu.lundegaard.liferay.db.setup.domain.User user) {
+        return StringUtil.toLowerCase(StringUtil.trim(user.getEmailAddress()));
+    }
+
+    private static Map<String, User> findUsersByLogin(final Collection<String> logins) {
+        Map<String, User> users = new HashMap<>();
+        List<User> found = BatchQueryUtil.queryInChunks(logins, chunk -> {
+            SetupMetrics.serviceCall("UserLocalService.dynamicQuery");
+            return UserLocalServiceUtil.dynamicQuery(UserLocalServiceUtil.dynamicQuery()
+                    .add(PropertyFactoryUtil.forName("companyId").eq(COMPANY_ID))
+                    .add(PropertyFactoryUtil.forName("emailAddress").in(chunk)));
+        });
+        for (User user : found) {
+            users.put(user.getEmailAddress(), user);
+        }
+        return users;
+    }
+
+    private static void addMemberships(final List<eu.lundegaard.liferay.db.setup.domain.User> setupUsers,
+            final Map<String, User> liferayUsers) {
+
+        Map<String, Long> organizationIds = new HashMap<>();
+        Map<String, Long> roleIds = new HashMap<>();
+        Map<String, Long> groupIds = new HashMap<>();
+        Map<Long, List<Long>> organizationUsers = new LinkedHashMap<>();
+        Map<Long, List<Long>> roleUsers = new LinkedHashMap<>();
+        Map<List<Long>, List<Long>> groupRoleUsers = new LinkedHashMap<>();
 
-            if (null != liferayUser) {
-                addUserToOrganizations(user, liferayUser);
-                addRolesToUser(user, liferayUser);
-                if (user.getCustomFieldSetting() != null && !user.getCustomFieldSetting().isEmpty()) {
-                    setCustomFields(runAsUser, groupId, COMPANY_ID, liferayUser, user);
+        for (eu.lundegaard.liferay.db.setup.domain.User setupUser : setupUsers) {
+            User liferayUser = liferayUsers.get(getLogin(setupUser));
+            if (liferayUser == null) {
+                continue;
+            }
+            for (eu.lundegaard.liferay.db.setup.domain.Organization organization : setupUser.getOrganization()) {
+                Long organizationId = resolve(organizationIds, organization.getName(), SetupUsers::findOrganizationId);
+                if (organizationId != null) {
+                    organizationUsers.computeIfAbsent(organizationId, id -> new ArrayList<>())
+                            .add(liferayUser.getUserId());
                 }
-            } else {
-                LOG.warn("Could not create user with screenName '" + user.getScreenName() + "'");
             }
+            for (eu.lundegaard.liferay.db.setup.domain.Role userRole : setupUser.getRole()) {
+                Long roleId = resolve(roleIds, userRole.getName(), SetupUsers::findRoleId);
+                if (roleId == null) {
+                    continue;
+                }
+                String roleType = userRole.getType();
+                switch (roleType) {
+                    case "portal":
+                        roleUsers.computeIfAbsent(roleId, id -> new ArrayList<>()).add(liferayUser.getUserId());
+                        break;
+
+                    case "site":
+                    case "organization":
+                        Long roleGroupId = resolve(groupIds, userRole.getSite(), SetupUsers::findGroupId);
+                        if (roleGroupId != null) {
+                            groupRoleUsers.computeIfAbsent(Arrays.asList(roleGroupId, roleId), id -> new ArrayList<>())
+                                    .add(liferayUser.getUserId());
+                        }
+                        break;
+
+                    default:
+                        LOG.error("unknown role type " + roleType);
+                        break;
+                }
+            }
+        }
+
+        for (Map.Entry<Long, List<Long>> entry : organizationUsers.entrySet()) {
+            try {
+                SetupMetrics.serviceCall("UserLocalService.addOrganizationUsers");
+                UserLocalServiceUtil.addOrganizationUsers(entry.getKey(), toArray(entry.getValue()));
+                LOG.info("Adding " + entry.getValue().size() + " users to Organization " + entry.getKey());
+            } catch (PortalException | SystemException e) {
+                LOG.error("cannot add users to Organization " + entry.getKey(), e);
+            }
+        }
+        for (Map.Entry<Long, List<Long>> entry : roleUsers.entrySet()) {
+            try {
+                SetupMetrics.serviceCall("UserLocalService.addRoleUsers");
+                UserLocalServiceUtil.addRoleUsers(entry.getKey(), toArray(entry.getValue()));
+                LOG.info("Adding regular role " + entry.getKey() + " to " + entry.getValue().size() + " users");
+            } catch (PortalException | SystemException e) {
+                LOG.error("Error in adding role " + entry.getKey() + " to users", e);
+            }
+        }
+        for (Map.Entry<List<Long>, List<Long>> entry : groupRoleUsers.entrySet()) {
+            long roleGroupId = entry.getKey().get(0);
+            long roleId = entry.getKey().get(1);
+            try {
+                SetupMetrics.serviceCall("UserGroupRoleLocalService.addUserGroupRoles");
+                UserGroupRoleLocalServiceUtil.addUserGroupRoles(toArray(entry.getValue()), roleGroupId, roleId);
+                LOG.info("Adding role " + roleId + " in group " + roleGroupId + " to " + entry.getValue().size()
+                        + " users");
+            } catch (PortalException | SystemException e) {
+                LOG.error("Error in adding role " + roleId + " in group " + roleGroupId + " to users", e);
+            }
+        }
+    }
+
+    /**
+     * Resolves a name once per chunk, names which cannot be resolved are remembered as null.
+     */
+    private static Long resolve(final Map<String, Long> resolved, final String name,
+            final Function<String, Long> lookup) {
+        if (!resolved.containsKey(name)) {
+            resolved.put(name, lookup.apply(name));
         }
+        return resolved.get(name);
+    }
+
+    private static Long findOrganizationId(final String name) {
+        SetupMetrics.serviceCall("OrganizationLocalService.fetchOrganization");
+        Organization organization = OrganizationLocalServiceUtil.fetchOrganization(COMPANY_ID, name);
+        if (organization == null) {
+            LOG.error("Organization " + name + " not found, cannot add users");
+            return null;
+        }
+        return organization.getOrganizationId();
+    }
+
+    private static Long findRoleId(final String name) {
+        try {
+            return SetupPermissions.getRoleId(name);
+        } catch (PortalException e) {
+            LOG.error("Role " + name + " not found, cannot add it to users", e);
+            return null;
+        }
+    }
+
+    private static Long findGroupId(final String name) {
+        SetupMetrics.serviceCall("GroupLocalService.fetchGroup");
+        Group group = GroupLocalServiceUtil.fetchGroup(COMPANY_ID, name);
+        if (group == null) {
+            LOG.error("Site " + name + " not found, cannot add its roles to users");
+            return null;
+        }
+        return group.getGroupId();
+    }
+
+    private static long[] toArray(final List<Long> values) {
+        long[] array = new long[values.size()];
+        for (int i = 0; i < array.length; i++) {
+            array[i] = values.get(i);
+        }
+        return array;
     }
 
     private static void setCustomFields(final long runAsUser, final long groupId,
@@ -149,6 +350,7 @@ public final class SetupUsers {
         ServiceContext serviceContext = new ServiceContext();
 
         try {
+            SetupMetrics.serviceCall("UserLocalService.addUser");
             liferayUser = UserLocalServiceUtil.addUser(creatorUserId, COMPANY_ID, autoPassword,
                     password1, password2, autoScreenName, setupUser.getScreenName(), emailAddress,
                     facebookId, openId, locale, setupUser.getFirstName(), middleName,
@@ -164,61 +366,6 @@ public final class SetupUsers {
         return liferayUser;
     }
 
-    private static void addUserToOrganizations(
-            final eu.lundegaard.liferay.db.setup.domain.User setupUser, final User liferayUser) {
-
-        try {
-            for (eu.lundegaard.liferay.db.setup.domain.Organization organization : setupUser
-                    .getOrganization()) {
-                Organization liferayOrganization = OrganizationLocalServiceUtil
-                        .getOrganization(COMPANY_ID, organization.getName());
-                UserLocalServiceUtil.addOrganizationUsers(liferayOrganization.getOrganizationId(),
-                        new long[] {liferayUser.getUserId()});
-                LOG.info("Adding user" + setupUser.getEmailAddress() + " to Organization "
-                        + liferayOrganization.getName());
-            }
-        } catch (PortalException | SystemException e) {
-            LOG.error("cannot add users");
-        }
-
-    }
-
-    private static void addRolesToUser(final eu.lundegaard.liferay.db.setup.domain.User setupUser,
-            final User liferayUser) {
-
-        try {
-            for (eu.lundegaard.liferay.db.setup.domain.Role userRole : setupUser.getRole()) {
-
-                Role role = RoleLocalServiceUtil.getRole(COMPANY_ID, userRole.getName());
-                long[] roleIds = {role.getRoleId()};
-                String roleType = userRole.getType();
-                switch (roleType) {
-                    case "portal":
-                        RoleLocalServiceUtil.addUserRoles(liferayUser.getUserId(), roleIds);
-                        LOG.info("Adding regular role " + userRole.getName() + " to user "
-                                + liferayUser.getEmailAddress());
-                        break;
-
-                    case "site":
-                    case "organization":
-                        Group group = GroupLocalServiceUtil.getGroup(COMPANY_ID, userRole.getSite());
-                        UserGroupRoleLocalServiceUtil.addUserGroupRoles(liferayUser.getUserId(),
-                                group.getGroupId(), roleIds);
-
-                        LOG.info("Adding " + roleType + " role " + userRole.getName() + " to user "
-                                + liferayUser.getEmailAddress());
-                        break;
-
-                    default:
-                        LOG.error("unknown role type " + roleType);
-                        break;
-                }
-            }
-        } catch (PortalException | SystemException e) {
-            LOG.error("Error in adding roles to user " + setupUser.getEmailAddress(), e);
-        }
-    }
-
     /**
      * by this method, all users will be deleted from liferay, excluding those
      * listed in the setup.xml. from security reasons, no administrators, or default
@@ -235,33 +382,42 @@ public final class SetupUsers {
 
                 Map<String, eu.lundegaard.liferay.db.setup.domain.User> usersMap = convertUserListToHashMap(
                         users);
-                try {
-                    List<User> allUsers = UserLocalServiceUtil.getUsers(-1, -1);
-                    for (User user : allUsers) {
-                        if (!usersMap.containsKey(user.getEmailAddress())) {
-                            if (user.isDefaultUser() || PortalUtil.isOmniadmin(user.getUserId())) {
-                                LOG.info("Skipping deletion of system user " + user.getEmailAddress());
-                            } else {
-                                try {
-                                    UserLocalServiceUtil.deleteUser(user.getUserId());
-                                } catch (PortalException | SystemException e) {
-                                    LOG.error("Unable to delete user.", e);
-                                }
-                                LOG.info("Deleting User " + user.getEmailAddress());
-                            }
-                        }
+                int deletedUsers = PagedDeleteUtil.deleteInPages("users", lastUserId -> {
+                    DynamicQuery query = UserLocalServiceUtil.dynamicQuery()
+                            .add(PropertyFactoryUtil.forName("defaultUser").eq(false));
+                    SetupMetrics.serviceCall("UserLocalService.dynamicQuery");
+                    return UserLocalServiceUtil.dynamicQuery(PagedDeleteUtil.page(query, "userId", "emailAddress",
+                            usersMap.keySet(), lastUserId), 0, PagedDeleteUtil.PAGE_SIZE);
+                }, candidate -> {
+                    long userId = (Long) candidate[0];
+                    String emailAddress = (String) candidate[1];
+                    if (usersMap.containsKey(emailAddress)) {
+                        return false;
                     }
-
-                } catch (SystemException e) {
-                    LOG.error("Unable to get user", e);
-                }
+                    if (PortalUtil.isOmniadmin(userId)) {
+                        LOG.info("Skipping deletion of system user " + emailAddress);
+                        return false;
+                    }
+                    try {
+                        SetupMetrics.serviceCall("UserLocalService.deleteUser");
+                        UserLocalServiceUtil.deleteUser(userId);
+                    } catch (PortalException | SystemException e) {
+                        LOG.error("Unable to delete user.", e);
+                        return false;
+                    }
+                    LOG.info("Deleting User " + emailAddress);
+                    return true;
+                });
+                LOG.info("Deleted " + deletedUsers + " users not listed in the setup");
                 break;
 
             case "onlyListed":
                 for (eu.lundegaard.liferay.db.setup.domain.User user : users) {
                     try {
                         String email = user.getEmailAddress();
+                        SetupMetrics.serviceCall("UserLocalService.getUserByEmailAddress");
                         User u = UserLocalServiceUtil.getUserByEmailAddress(COMPANY_ID, email);
+                        SetupMetrics.serviceCall("UserLocalService.deleteUser");
                         UserLocalServiceUtil.deleteUser(u);
 
                         LOG.info("Deleting User " + email);
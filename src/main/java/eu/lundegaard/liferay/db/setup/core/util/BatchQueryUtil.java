@@ -0,0 +1,65 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2020 Lundegaard a.s.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package eu.lundegaard.liferay.db.setup.core.util;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.function.Function;
+
+/**
+ * Helpers for set-based queries. Databases limit the number of values in an IN list (e.g. 1000 in Oracle), so the
+ * values are queried in chunks.
+ */
+public final class BatchQueryUtil {
+
+    public static final int MAX_IN_LIST_SIZE = 1000;
+
+    private BatchQueryUtil() {
+
+    }
+
+    /**
+     * Runs the query once for every chunk of at most {@link #MAX_IN_LIST_SIZE} values and returns all results.
+     *
+     * @param values values of the IN list
+     * @param query query of a single chunk
+     * @return results of all chunks
+     */
+    public static <V, T> List<T> queryInChunks(final Collection<V> values, final Function<List<V>, List<T>> query) {
+        List<T> results = new ArrayList<>();
+        List<V> chunk = new ArrayList<>(Math.min(values.size(), MAX_IN_LIST_SIZE));
+        for (V value : values) {
+            chunk.add(value);
+            if (chunk.size() == MAX_IN_LIST_SIZE) {
+                results.addAll(query.apply(chunk));
+                chunk = new ArrayList<>(MAX_IN_LIST_SIZE);
+            }
+        }
+        if (!chunk.isEmpty()) {
+            results.addAll(query.apply(chunk));
+        }
+        return results;
+    }
+}
@@ -0,0 +1,107 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2020 Lundegaard a.s.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package eu.lundegaard.liferay.db.setup.core.util;
+
+import com.liferay.asset.kernel.service.AssetCategoryLocalServiceUtil;
+import com.liferay.portal.kernel.dao.orm.ProjectionFactoryUtil;
+import com.liferay.portal.kernel.dao.orm.PropertyFactoryUtil;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Category trees of the vocabularies used during a setup run. The tree of a vocabulary is loaded with one query the
+ * first time it is needed and kept as a map from parent category ID and name to category ID, so a category path is
+ * resolved with one lookup per segment. Categories added by the setup are put into the tree as they are created.
+ */
+public final class CategoryTreeCache {
+
+    private static final char SEPARATOR = '/';
+
+    private static final Map<Long, Map<String, Long>> TREES = new ConcurrentHashMap<>();
+
+    private CategoryTreeCache() {
+
+    }
+
+    /**
+     * @param parentCategoryId ID of the parent category, 0 for the top level categories of the vocabulary
+     * @return ID of the category, or null if the parent has no category of the name
+     */
+    public static Long getCategoryId(final long vocabularyId, final long parentCategoryId, final String name) {
+        return getTree(vocabularyId).get(key(parentCategoryId, name));
+    }
+
+    /**
+     * @param path category names from the top level category down, e.g. "category/sub category"
+     * @return ID of the category, or null if a category of the path does not exist
+     */
+    public static Long getCategoryId(final long vocabularyId, final String path) {
+        Map<String, Long> tree = getTree(vocabularyId);
+        Long categoryId = 0L;
+        for (String name : path.split(String.valueOf(SEPARATOR))) {
+            categoryId = tree.get(key(categoryId, name));
+            if (categoryId == null) {
+                return null;
+            }
+        }
+        return categoryId;
+    }
+
+    public static void putCategory(final long vocabularyId, final long parentCategoryId, final String name,
+            final long categoryId) {
+        getTree(vocabularyId).put(key(parentCategoryId, name), categoryId);
+    }
+
+    /**
+     * Removes all entries, at the start and the end of a setup run and after a rollback.
+     */
+    public static void clear() {
+        TREES.clear();
+    }
+
+    private static Map<String, Long> getTree(final long vocabularyId) {
+        return TREES.computeIfAbsent(vocabularyId, CategoryTreeCache::loadTree);
+    }
+
+    private static Map<String, Long> loadTree(final long vocabularyId) {
+        SetupMetrics.serviceCall("AssetCategoryLocalService.dynamicQuery");
+        List<Object[]> categories = AssetCategoryLocalServiceUtil.dynamicQuery(AssetCategoryLocalServiceUtil
+                .dynamicQuery()
+                .add(PropertyFactoryUtil.forName("vocabularyId").eq(vocabularyId))
+                .setProjection(ProjectionFactoryUtil.projectionList()
+                        .add(ProjectionFactoryUtil.property("categoryId"))
+                        .add(ProjectionFactoryUtil.property("parentCategoryId"))
+                        .add(ProjectionFactoryUtil.property("name"))));
+        Map<String, Long> tree = new ConcurrentHashMap<>();
+        for (Object[] category : categories) {
+            tree.put(key((Long) category[1], (String) category[2]), (Long) category[0]);
+        }
+        return tree;
+    }
+
+    private static String key(final long parentCategoryId, final String name) {
+        return parentCategoryId + String.valueOf(SEPARATOR) + name;
+    }
+}
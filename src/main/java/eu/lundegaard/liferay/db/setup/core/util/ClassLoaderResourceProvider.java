@@ -0,0 +1,77 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2020 Lundegaard a.s.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package eu.lundegaard.liferay.db.setup.core.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.JarURLConnection;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.net.URLConnection;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.jar.JarEntry;
+
+/**
+ * Reads resources from a class loader, by default the one of this library.
+ */
+public class ClassLoaderResourceProvider implements ResourceProvider {
+
+    private final ClassLoader classLoader;
+
+    public ClassLoaderResourceProvider() {
+        this(ClassLoaderResourceProvider.class.getClassLoader());
+    }
+
+    public ClassLoaderResourceProvider(final ClassLoader classLoader) {
+        this.classLoader = classLoader;
+    }
+
+    @Override
+    public InputStream getStream(final String path) {
+        return classLoader.getResourceAsStream(path);
+    }
+
+    @Override
+    public long getSize(final String path) throws IOException {
+        URL url = classLoader.getResource(path);
+        if (url == null) {
+            return -1;
+        }
+        if ("file".equals(url.getProtocol())) {
+            try {
+                return Files.size(Paths.get(url.toURI()));
+            } catch (URISyntaxException e) {
+                return -1;
+            }
+        }
+        URLConnection connection = url.openConnection();
+        if (connection instanceof JarURLConnection) {
+            // the entry size is read from the central directory of the JAR file the class loader keeps open
+            JarEntry entry = ((JarURLConnection) connection).getJarEntry();
+            return entry == null ? -1 : entry.getSize();
+        }
+        return -1;
+    }
+}
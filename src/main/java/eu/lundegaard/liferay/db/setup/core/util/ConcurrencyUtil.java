@@ -0,0 +1,101 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2020 Lundegaard a.s.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package eu.lundegaard.liferay.db.setup.core.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs setup tasks on short-lived bounded thread pools.
+ */
+public final class ConcurrencyUtil {
+
+    private ConcurrencyUtil() {
+
+    }
+
+    /**
+     * Runs all tasks with at most given number of threads and waits for all of them to finish. With parallelism of
+     * one or less the tasks run one after another on the calling thread.
+     *
+     * @param tasks tasks to run
+     * @param parallelism maximum number of threads
+     * @param threadNamePrefix prefix of the worker thread names
+     * @return modifiable list of the task results in the order of the tasks
+     * @throws ExecutionException failure of the first failed task in the order of the tasks
+     * @throws InterruptedException if the calling thread was interrupted while waiting
+     */
+    public static <T> List<T> invokeAll(final List<? extends Callable<T>> tasks, final int parallelism,
+            final String threadNamePrefix) throws ExecutionException, InterruptedException {
+
+        List<T> results = new ArrayList<>(tasks.size());
+        if (parallelism <= 1 || tasks.size() <= 1) {
+            for (Callable<T> task : tasks) {
+                try {
+                    results.add(task.call());
+                } catch (Exception e) {
+                    throw new ExecutionException(e);
+                }
+            }
+            return results;
+        }
+
+        ExecutorService executor = newFixedThreadPool(Math.min(parallelism, tasks.size()), threadNamePrefix);
+        try {
+            for (Future<T> future : executor.invokeAll(tasks)) {
+                results.add(future.get());
+            }
+            return results;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Creates a fixed thread pool of daemon threads, which use the context class loader of the calling thread. The
+     * caller is responsible for shutting it down.
+     *
+     * @param threads number of threads
+     * @param threadNamePrefix prefix of the worker thread names
+     * @return executor service
+     */
+    public static ExecutorService newFixedThreadPool(final int threads, final String threadNamePrefix) {
+        ClassLoader contextClassLoader = Thread.currentThread().getContextClassLoader();
+        AtomicInteger counter = new AtomicInteger();
+        ThreadFactory threadFactory = runnable -> {
+            Thread thread = new Thread(runnable, threadNamePrefix + "-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            thread.setContextClassLoader(contextClassLoader);
+            return thread;
+        };
+        return Executors.newFixedThreadPool(threads, threadFactory);
+    }
+}
@@ -0,0 +1,179 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2020 Lundegaard a.s.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package eu.lundegaard.liferay.db.setup.core.util;
+
+import com.liferay.expando.kernel.model.ExpandoColumnConstants;
+import com.liferay.expando.kernel.model.ExpandoTable;
+import com.liferay.expando.kernel.service.ExpandoColumnLocalServiceUtil;
+import com.liferay.expando.kernel.service.ExpandoTableLocalServiceUtil;
+import com.liferay.expando.kernel.service.ExpandoValueLocalServiceUtil;
+import com.liferay.portal.kernel.exception.PortalException;
+import com.liferay.portal.kernel.log.Log;
+import com.liferay.portal.kernel.log.LogFactoryUtil;
+import com.liferay.portal.kernel.service.ClassNameLocalServiceUtil;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collection;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Digests of the data the setup writes into an entity, used to skip entities which have not changed since the last
+ * run. The digest of an entity is stored in a column of a dedicated expando table, which is not shown among the
+ * custom fields of the entity.
+ */
+public final class ContentDigestUtil {
+
+    private static final Log LOG = LogFactoryUtil.getLog(ContentDigestUtil.class);
+    private static final String DIGEST_TABLE = "DB_SETUP";
+    private static final String DIGEST_COLUMN = "digest";
+    private static final String DIGEST_ALGORITHM = "SHA-256";
+    private static final int BUFFER_SIZE = 8192;
+
+    private ContentDigestUtil() {
+
+    }
+
+    /**
+     * Computes a digest of the values. Maps are digested in the order of their keys, so the order of translations
+     * does not matter. Arrays and collections are digested in their order.
+     *
+     * @param values strings, numbers, maps, collections or arrays of those, may contain nulls
+     * @return Base64 encoded SHA-256 digest
+     */
+    public static String digest(final Object... values) {
+        MessageDigest digest = newDigest();
+        update(digest, Arrays.asList(values));
+        return Base64.getEncoder().encodeToString(digest.digest());
+    }
+
+    /**
+     * Computes a digest of the stream content, reads the stream to its end.
+     *
+     * @return Base64 encoded SHA-256 digest
+     */
+    public static String digest(final InputStream stream) throws IOException {
+        MessageDigest digest = newDigest();
+        byte[] buffer = new byte[BUFFER_SIZE];
+        int read;
+        while ((read = stream.read(buffer)) != -1) {
+            digest.update(buffer, 0, read);
+        }
+        return Base64.getEncoder().encodeToString(digest.digest());
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance(DIGEST_ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            // every Java platform is required to support SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static void update(final MessageDigest digest, final Object value) {
+        if (value instanceof Map) {
+            Map<String, Object> sorted = new TreeMap<>();
+            for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+                sorted.put(String.valueOf(entry.getKey()), entry.getValue());
+            }
+            digest.update((byte) '{');
+            for (Map.Entry<String, Object> entry : sorted.entrySet()) {
+                update(digest, entry.getKey());
+                update(digest, entry.getValue());
+            }
+            digest.update((byte) '}');
+        } else if (value instanceof Collection) {
+            digest.update((byte) '[');
+            for (Object item : (Collection<?>) value) {
+                update(digest, item);
+            }
+            digest.update((byte) ']');
+        } else if (value instanceof Object[]) {
+            update(digest, Arrays.asList((Object[]) value));
+        } else if (value instanceof long[]) {
+            update(digest, Arrays.toString((long[]) value));
+        } else if (value == null) {
+            digest.update((byte) 'N');
+        } else {
+            // the length prefix keeps adjacent values apart
+            byte[] bytes = String.valueOf(value).getBytes(StandardCharsets.UTF_8);
+            digest.update((byte) 'S');
+            digest.update(Integer.toString(bytes.length).getBytes(StandardCharsets.US_ASCII));
+            digest.update((byte) ':');
+            digest.update(bytes);
+        }
+    }
+
+    /**
+     * @return digest stored for the entity, or null if there is none
+     */
+    public static String getDigest(final long companyId, final String className, final long classPK) {
+        try {
+            SetupMetrics.serviceCall("ExpandoValueLocalService.getData");
+            String digest = ExpandoValueLocalServiceUtil.getData(companyId, className, DIGEST_TABLE, DIGEST_COLUMN,
+                    classPK, (String) null);
+            return digest == null || digest.isEmpty() ? null : digest;
+        } catch (PortalException e) {
+            LOG.debug("No digest stored for " + className + " " + classPK, e);
+            return null;
+        }
+    }
+
+    /**
+     * Stores the digest of the entity, the expando table is created when the first digest of the class is stored.
+     */
+    public static void setDigest(final long companyId, final String className, final long classPK,
+            final String digest) {
+        try {
+            ensureDigestColumn(companyId, className);
+            SetupMetrics.serviceCall("ExpandoValueLocalService.addValue");
+            ExpandoValueLocalServiceUtil.addValue(companyId, className, DIGEST_TABLE, DIGEST_COLUMN, classPK, digest);
+        } catch (PortalException e) {
+            LOG.error("Could not store digest of " + className + " " + classPK, e);
+        }
+    }
+
+    private static synchronized void ensureDigestColumn(final long companyId, final String className)
+            throws PortalException {
+        SetupMetrics.serviceCall("ClassNameLocalService.getClassNameId");
+        long classNameId = ClassNameLocalServiceUtil.getClassNameId(className);
+        SetupMetrics.serviceCall("ExpandoTableLocalService.fetchTable");
+        ExpandoTable table = ExpandoTableLocalServiceUtil.fetchTable(companyId, classNameId, DIGEST_TABLE);
+        if (table == null) {
+            SetupMetrics.serviceCall("ExpandoTableLocalService.addTable");
+            table = ExpandoTableLocalServiceUtil.addTable(companyId, classNameId, DIGEST_TABLE);
+        }
+        SetupMetrics.serviceCall("ExpandoColumnLocalService.getColumn");
+        if (ExpandoColumnLocalServiceUtil.getColumn(table.getTableId(), DIGEST_COLUMN) == null) {
+            SetupMetrics.serviceCall("ExpandoColumnLocalService.addColumn");
+            ExpandoColumnLocalServiceUtil.addColumn(table.getTableId(), DIGEST_COLUMN, ExpandoColumnConstants.STRING);
+        }
+    }
+}
@@ -66,26 +66,36 @@ public final class CustomFieldSettingUtil {
         String valueCopy = value;
         try {
 
+            SetupMetrics.serviceCall("ExpandoValueLocalService.getValue");
             ExpandoValue ev = ExpandoValueLocalServiceUtil.getValue(company, clazz.getName(),
                     "CUSTOM_FIELDS", key, id);
             // resolve any values to be substituted
             valueCopy = ResolverUtil.lookupAll(runAsUserId, groupId, company, valueCopy,
                     resolverHint);
             if (ev == null) {
+                SetupMetrics.serviceCall("ClassNameLocalService.getClassNameId");
                 long classNameId = ClassNameLocalServiceUtil.getClassNameId(clazz.getName());
 
-                ExpandoTable expandoTable = ExpandoTableLocalServiceUtil.getTable(company,
+                SetupMetrics.serviceCall("ExpandoTableLocalService.fetchTable");
+                ExpandoTable expandoTable = ExpandoTableLocalServiceUtil.fetchTable(company,
                         classNameId, "CUSTOM_FIELDS");
+                if (expandoTable == null) {
+                    LOG.error("Expando (custom field) table not found for class " + clazz.getName());
+                    return;
+                }
+                SetupMetrics.serviceCall("ExpandoColumnLocalService.getColumn");
                 ExpandoColumn expandoColumn = ExpandoColumnLocalServiceUtil.getColumn(company,
                         classNameId, expandoTable.getName(), key);
 
                 // In this we are adding MyUserColumnData for the column
                 // MyUserColumn. See the
                 // above line
+                SetupMetrics.serviceCall("ExpandoValueLocalService.addValue");
                 ev = ExpandoValueLocalServiceUtil.addValue(classNameId, expandoTable.getTableId(),
                         expandoColumn.getColumnId(), id, valueCopy);
             } else {
                 ev.setData(valueCopy);
+                SetupMetrics.serviceCall("ExpandoValueLocalService.updateExpandoValue");
                 ExpandoValueLocalServiceUtil.updateExpandoValue(ev);
             }
         } catch (Exception ex) {
@@ -33,6 +33,8 @@ import com.liferay.portal.kernel.log.LogFactoryUtil;
 import com.liferay.portal.kernel.repository.model.FileEntry;
 import com.liferay.portal.kernel.repository.model.Folder;
 import com.liferay.portal.kernel.service.ServiceContext;
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
 
 /**
  * This utility allows to manage documents of the documents and media library.
@@ -65,6 +67,7 @@ public final class DocumentUtil {
         FileEntry entry = null;
         if (folder != null) {
             try {
+                SetupMetrics.serviceCall("DLAppLocalService.getFileEntry");
                 entry = DLAppLocalServiceUtil.getFileEntry(groupId, folder.getFolderId(),
                         documentName);
             } catch (NoSuchFileEntryException e) {
@@ -99,6 +102,7 @@ public final class DocumentUtil {
         FileEntry entry = null;
         if (folder != null) {
             try {
+                SetupMetrics.serviceCall("DLAppLocalService.getFileEntry");
                 entry = DLAppLocalServiceUtil.getFileEntry(groupId, folder.getFolderId(), title);
             } catch (PortalException e) {
                 e.printStackTrace();
@@ -120,13 +124,30 @@ public final class DocumentUtil {
      */
     public static void updateFile(final FileEntry fe, final byte[] content, final long userId,
             final String sourceFileName) {
+        updateFile(fe, new ByteArrayInputStream(content), content.length, userId, sourceFileName);
+    }
+
+    /**
+     * Updates a given file entry with a content streamed to the store.
+     *
+     * @param fe The file entry to be updated with a given content.
+     * @param content The content to be updated, not closed by this method.
+     * @param size The size of the content in bytes.
+     * @param userId The user id of the updating user.
+     * @param sourceFileName The filename of the file.
+     * @return The updated file entry, null if it could not be updated.
+     */
+    public static FileEntry updateFile(final FileEntry fe, final InputStream content, final long size,
+            final long userId, final String sourceFileName) {
         try {
-            DLAppLocalServiceUtil.updateFileEntry(userId, fe.getFileEntryId(), sourceFileName,
+            SetupMetrics.serviceCall("DLAppLocalService.updateFileEntry");
+            return DLAppLocalServiceUtil.updateFileEntry(userId, fe.getFileEntryId(), sourceFileName,
                     fe.getMimeType(), fe.getTitle(), fe.getDescription(), "update content",
                     DLVersionNumberIncrease.MINOR,
-                    content, new ServiceContext());
+                    content, size, new ServiceContext());
         } catch (Exception e) {
             LOG.error("Can not update Liferay Document entry with ID:" + fe.getFileEntryId(), e);
+            return null;
         }
     }
 
@@ -139,6 +160,7 @@ public final class DocumentUtil {
      */
     public static void moveFile(final FileEntry fe, final long folderId, final long userId) {
         try {
+            SetupMetrics.serviceCall("DLAppLocalService.moveFileEntry");
             DLAppLocalServiceUtil.moveFileEntry(userId, fe.getFolderId(), folderId,
                     new ServiceContext());
         } catch (PortalException e) {
@@ -164,11 +186,27 @@ public final class DocumentUtil {
     public static FileEntry createDocument(final long companyId, final long groupId,
             final long folderId, final String fileName, final String title, final long userId,
             final long repoId, final byte[] content) {
+        return createDocument(companyId, groupId, folderId, fileName, title, userId, repoId,
+                new ByteArrayInputStream(content), content.length);
+    }
+
+    /**
+     * Creates a document with a content streamed to the store, see
+     * {@link #createDocument(long, long, long, String, String, long, long, byte[])}.
+     *
+     * @param content the content of the file, not closed by this method.
+     * @param size the size of the content in bytes.
+     * @return returns the file entry of the created file.
+     */
+    public static FileEntry createDocument(final long companyId, final long groupId,
+            final long folderId, final String fileName, final String title, final long userId,
+            final long repoId, final InputStream content, final long size) {
         String fname = FilePathUtil.getFileName(fileName);
         String extension = FilePathUtil.getExtension(fname);
         String mtype = MimeTypeMapper.getInstance().getMimeType(extension);
         FileEntry fileEntry = null;
         try {
+            SetupMetrics.serviceCall("DLAppLocalService.getFileEntry");
             fileEntry = DLAppLocalServiceUtil.getFileEntry(groupId, folderId, title);
         } catch (NoSuchFileEntryException nsfee) {
             LOG.info("Document not found: " + title);
@@ -179,8 +217,9 @@ public final class DocumentUtil {
         }
         if (fileEntry == null) {
             try {
+                SetupMetrics.serviceCall("DLAppLocalService.addFileEntry");
                 fileEntry = DLAppLocalServiceUtil.addFileEntry(userId, repoId, folderId, fname,
-                        mtype, title, title, "Mimacom import", content, new ServiceContext());
+                        mtype, title, title, "Mimacom import", content, size, new ServiceContext());
             } catch (PortalException e) {
                 LOG.error("Error while trying to add file entry: " + title, e);
             } catch (SystemException e) {
@@ -0,0 +1,95 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2020 Lundegaard a.s.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package eu.lundegaard.liferay.db.setup.core.util;
+
+import com.liferay.journal.model.JournalFolder;
+import com.liferay.portal.kernel.repository.model.Folder;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Documents and Media folders and journal folders found or created during a setup run, by group and folder path. Each
+ * prefix of a path is cached, so a lookup only queries the segments below the deepest folder already known. Folders
+ * which do not exist are not cached, as they may be created later in the run.
+ */
+public final class FolderPathCache {
+
+    private static final char SEPARATOR = '/';
+
+    private static final Map<String, Folder> FOLDERS = new ConcurrentHashMap<>();
+    private static final Map<String, JournalFolder> WEB_FOLDERS = new ConcurrentHashMap<>();
+
+    private FolderPathCache() {
+
+    }
+
+    /**
+     * @return path with empty segments removed, e.g. "/a/b" for "a//b/", empty for the root folder
+     */
+    public static String normalize(final String path) {
+        StringBuilder normalized = new StringBuilder(path.length() + 1);
+        for (String segment : path.split(String.valueOf(SEPARATOR))) {
+            if (!segment.isEmpty()) {
+                normalized.append(SEPARATOR).append(segment);
+            }
+        }
+        return normalized.toString();
+    }
+
+    /**
+     * @param path normalized folder path
+     * @return cached folder, or null if it is not cached
+     */
+    public static Folder getFolder(final long groupId, final String path) {
+        return FOLDERS.get(key(groupId, path));
+    }
+
+    public static void putFolder(final long groupId, final String path, final Folder folder) {
+        FOLDERS.put(key(groupId, path), folder);
+    }
+
+    /**
+     * @param path normalized folder path
+     * @return cached journal folder, or null if it is not cached
+     */
+    public static JournalFolder getWebFolder(final long groupId, final String path) {
+        return WEB_FOLDERS.get(key(groupId, path));
+    }
+
+    public static void putWebFolder(final long groupId, final String path, final JournalFolder folder) {
+        WEB_FOLDERS.put(key(groupId, path), folder);
+    }
+
+    /**
+     * Removes all entries, at the start and the end of a setup run and after a rollback.
+     */
+    public static void clear() {
+        FOLDERS.clear();
+        WEB_FOLDERS.clear();
+    }
+
+    private static String key(final long groupId, final String path) {
+        return groupId + path;
+    }
+}
@@ -45,13 +45,21 @@ public final class FolderUtil {
 
     public static Folder findFolder(final long company, final long groupId, final long repoId,
             final long userId, final String name, final boolean createIfNotExists) {
-        String[] folderPath = name.split("/");
-        Folder foundFolder = null;
-        int count = 0;
+        String normalizedPath = FolderPathCache.normalize(name);
+        Folder foundFolder = FolderPathCache.getFolder(groupId, normalizedPath);
+        if (foundFolder != null) {
+            return foundFolder;
+        }
+        String[] folderPath = normalizedPath.split("/");
+        StringBuilder path = new StringBuilder();
         Long parentId = 0L;
-        while (count < folderPath.length) {
+        // the first segment of the normalized path is empty
+        for (int count = 1; count < folderPath.length; count++) {
             String folder = folderPath[count];
-            if (!folder.equals("")) {
+            path.append('/').append(folder);
+            String currentPath = path.toString();
+            foundFolder = FolderPathCache.getFolder(groupId, currentPath);
+            if (foundFolder == null) {
                 foundFolder = findFolder(groupId, parentId, folder);
 
                 if (foundFolder == null && createIfNotExists) {
@@ -66,9 +74,9 @@ public final class FolderUtil {
                 if (foundFolder == null) {
                     break;
                 }
-                parentId = foundFolder.getFolderId();
+                FolderPathCache.putFolder(groupId, currentPath, foundFolder);
             }
-            count++;
+            parentId = foundFolder.getFolderId();
         }
         return foundFolder;
     }
@@ -77,6 +85,7 @@ public final class FolderUtil {
             final String name) {
         Folder dir = null;
         try {
+            SetupMetrics.serviceCall("DLAppLocalService.getFolder");
             dir = DLAppLocalServiceUtil.getFolder(groupId, parentFolderId, name);
         } catch (NoSuchFolderException nsfe) {
             LOG.info("Folder not found: " + name);
@@ -100,6 +109,7 @@ public final class FolderUtil {
             try {
                 folder = findFolder(groupId, pFolderId, folderName);
                 if (folder == null) {
+                    SetupMetrics.serviceCall("DLAppLocalService.addFolder");
                     folder = DLAppLocalServiceUtil.addFolder(userId, repoId, pFolderId, folderName,
                             folderName, new ServiceContext());
 
@@ -23,12 +23,38 @@
  */
 package eu.lundegaard.liferay.db.setup.core.util;
 
+import com.liferay.portal.kernel.exception.PortalException;
+import com.liferay.portal.kernel.log.Log;
+import com.liferay.portal.kernel.log.LogFactoryUtil;
+import com.liferay.portal.kernel.model.PersistedModel;
+import com.liferay.portal.kernel.search.IndexStatusManagerThreadLocal;
 import com.liferay.portal.kernel.search.Indexer;
 import com.liferay.portal.kernel.search.IndexerRegistryUtil;
 import com.liferay.portal.kernel.search.SearchException;
+import com.liferay.portal.kernel.service.PersistedModelLocalService;
+import com.liferay.portal.kernel.service.PersistedModelLocalServiceRegistryUtil;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
+/**
+ * Reindexing of entities. In the deferred indexing mode service calls between {@link #suspendIndexing()} and
+ * {@link #resumeIndexing(boolean)} do not index the entities they change. The entities are recorded by
+ * {@link #deferReindex(Class, long)} instead and reindexed in batches by {@link #flushDeferredIndexing()} at the end
+ * of the setup. The recorded entities are also written to the {@link SetupJournal}, so a resumed run reindexes the
+ * entities changed by the interrupted run, which it skips as completed or unchanged.
+ */
 public final class IndexerUtil {
 
+    private static final Log LOG = LogFactoryUtil.getLog(IndexerUtil.class);
+    private static final int REINDEX_BATCH_SIZE = 500;
+
+    // model class name -> primary keys of the entities to reindex
+    private static final Map<String, Set<Long>> DEFERRED = new ConcurrentHashMap<>();
+    private static volatile boolean deferred;
+
     private IndexerUtil() {
 
     }
@@ -43,4 +69,130 @@ public final class IndexerUtil {
             e.printStackTrace();
         }
     }
+
+    /**
+     * Starts deferring the indexing of entities changed by the setup.
+     */
+    public static void startDeferredIndexing() {
+        DEFERRED.clear();
+        deferred = true;
+    }
+
+    public static boolean isIndexingDeferred() {
+        return deferred;
+    }
+
+    /**
+     * Stops indexing in the calling thread if the indexing is deferred. The entities changed until
+     * {@link #resumeIndexing(boolean)} is called have to be passed to {@link #deferReindex(Class, long)}.
+     *
+     * @return previous state, to be passed to {@link #resumeIndexing(boolean)}
+     */
+    public static boolean suspendIndexing() {
+        boolean indexReadOnly = IndexStatusManagerThreadLocal.isIndexReadOnly();
+        if (deferred) {
+            IndexStatusManagerThreadLocal.setIndexReadOnly(true);
+        }
+        return indexReadOnly;
+    }
+
+    public static void resumeIndexing(final boolean indexReadOnly) {
+        IndexStatusManagerThreadLocal.setIndexReadOnly(indexReadOnly);
+    }
+
+    /**
+     * Records an entity to be reindexed at the end of the setup, does nothing if the indexing is not deferred.
+     *
+     * @param modelClass model interface of the entity, e.g. JournalArticle
+     * @param primaryKey primary key of the entity
+     */
+    public static void deferReindex(final Class<?> modelClass, final long primaryKey) {
+        if (deferred) {
+            DEFERRED.computeIfAbsent(modelClass.getName(), className -> ConcurrentHashMap.newKeySet()).add(primaryKey);
+            // an interrupted run skips the entity when resumed, so it has to be reindexed by the resumed run
+            SetupJournal.markCompleted(SetupJournal.REINDEX, SetupJournal.key(modelClass.getName(), primaryKey));
+        }
+    }
+
+    /**
+     * Records the entities whose reindexing has been deferred by an interrupted run of the setup, does nothing if the
+     * indexing is not deferred.
+     */
+    public static void restoreDeferredReindex() {
+        if (!deferred) {
+            return;
+        }
+        int restored = 0;
+        for (String key : SetupJournal.getCompleted(SetupJournal.REINDEX)) {
+            String[] parts = key.split("\t");
+            try {
+                DEFERRED.computeIfAbsent(parts[0], className -> ConcurrentHashMap.newKeySet())
+                        .add(Long.parseLong(parts[1]));
+                restored++;
+            } catch (ArrayIndexOutOfBoundsException | NumberFormatException e) {
+                LOG.warn("Ignoring invalid journaled reindex entry " + key);
+            }
+        }
+        if (restored > 0) {
+            LOG.info(restored + " entities changed by the interrupted run will be reindexed");
+        }
+    }
+
+    /**
+     * Stops deferring and reindexes the recorded entities, in batches of entities of the same class.
+     */
+    public static void flushDeferredIndexing() {
+        if (!deferred) {
+            return;
+        }
+        deferred = false;
+        long start = System.nanoTime();
+        int reindexed = 0;
+        for (Map.Entry<String, Set<Long>> entry : DEFERRED.entrySet()) {
+            reindexed += reindex(entry.getKey(), entry.getValue());
+        }
+        DEFERRED.clear();
+        LOG.info("Reindexed " + reindexed + " entities in " + (System.nanoTime() - start) / 1_000_000 + " ms");
+    }
+
+    @SuppressWarnings("unchecked")
+    private static int reindex(final String className, final Set<Long> primaryKeys) {
+        Indexer<Object> indexer = (Indexer<Object>) IndexerRegistryUtil.getIndexer(className);
+        PersistedModelLocalService service =
+                PersistedModelLocalServiceRegistryUtil.getPersistedModelLocalService(className);
+        if (indexer == null || service == null) {
+            LOG.warn("Cannot reindex " + primaryKeys.size() + " entities of " + className + ", no indexer found");
+            return 0;
+        }
+        int reindexed = 0;
+        List<Object> batch = new ArrayList<>(REINDEX_BATCH_SIZE);
+        for (Long primaryKey : primaryKeys) {
+            try {
+                SetupMetrics.serviceCall("PersistedModelLocalService.getPersistedModel");
+                PersistedModel model = service.getPersistedModel(primaryKey);
+                batch.add(model);
+            } catch (PortalException e) {
+                // deleted later in the setup
+                LOG.debug("Cannot load " + className + " " + primaryKey + " to reindex it", e);
+            }
+            if (batch.size() == REINDEX_BATCH_SIZE) {
+                reindexed += reindex(indexer, className, batch);
+                batch = new ArrayList<>(REINDEX_BATCH_SIZE);
+            }
+        }
+        if (!batch.isEmpty()) {
+            reindexed += reindex(indexer, className, batch);
+        }
+        return reindexed;
+    }
+
+    private static int reindex(final Indexer<Object> indexer, final String className, final List<Object> batch) {
+        try {
+            indexer.reindex(batch);
+            return batch.size();
+        } catch (Exception e) {
+            LOG.error("Cannot reindex " + batch.size() + " entities of " + className, e);
+            return 0;
+        }
+    }
 }
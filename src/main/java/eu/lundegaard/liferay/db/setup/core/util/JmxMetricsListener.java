@@ -0,0 +1,149 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2020 Lundegaard a.s.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package eu.lundegaard.liferay.db.setup.core.util;
+
+import com.liferay.portal.kernel.log.Log;
+import com.liferay.portal.kernel.log.LogFactoryUtil;
+import java.lang.management.ManagementFactory;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Exposes the metrics of the last setup run as the {@value #OBJECT_NAME} MBean of the platform MBean server, e.g. to
+ * compare the runs of different releases in JConsole or a monitoring system.
+ */
+public final class JmxMetricsListener implements SetupMetricsListener, SetupMetricsMXBean {
+
+    public static final String OBJECT_NAME = "eu.lundegaard.liferay.db.setup:type=SetupMetrics";
+
+    private static final Log LOG = LogFactoryUtil.getLog(JmxMetricsListener.class);
+    private static JmxMetricsListener registered;
+
+    private final AtomicLong runCount = new AtomicLong();
+    private volatile SetupMetricsReport lastReport;
+
+    private JmxMetricsListener() {
+
+    }
+
+    /**
+     * Registers the MBean and adds it to the setup metrics listeners, does nothing if it is already registered.
+     */
+    public static synchronized void register() {
+        if (registered != null) {
+            return;
+        }
+        JmxMetricsListener listener = new JmxMetricsListener();
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            if (server.isRegistered(name)) {
+                // registered by another class loader, e.g. before a redeploy
+                server.unregisterMBean(name);
+            }
+            server.registerMBean(listener, name);
+        } catch (JMException e) {
+            LOG.warn("Cannot register setup metrics MBean", e);
+            return;
+        }
+        SetupMetrics.addListener(listener);
+        registered = listener;
+    }
+
+    public static synchronized void unregister() {
+        if (registered == null) {
+            return;
+        }
+        SetupMetrics.removeListener(registered);
+        registered = null;
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(new ObjectName(OBJECT_NAME));
+        } catch (JMException e) {
+            LOG.warn("Cannot unregister setup metrics MBean", e);
+        }
+    }
+
+    @Override
+    public void runFinished(final SetupMetricsReport report) {
+        lastReport = report;
+        runCount.incrementAndGet();
+    }
+
+    @Override
+    public long getRunCount() {
+        return runCount.get();
+    }
+
+    @Override
+    public long getLastWallTimeMillis() {
+        SetupMetricsReport report = lastReport;
+        return report == null ? 0 : report.getWallTimeMillis();
+    }
+
+    @Override
+    public Map<String, Long> getLastSectionWallTimeMillis() {
+        SetupMetricsReport report = lastReport;
+        return report == null ? Collections.emptyMap() : report.getSectionWallTimeMillis();
+    }
+
+    @Override
+    public Map<String, Long> getLastSectionEntities() {
+        SetupMetricsReport report = lastReport;
+        return report == null ? Collections.emptyMap() : report.getSectionEntities();
+    }
+
+    @Override
+    public Map<String, Long> getLastServiceCalls() {
+        SetupMetricsReport report = lastReport;
+        return report == null ? Collections.emptyMap() : report.getServiceCalls();
+    }
+
+    @Override
+    public long getLastTotalServiceCalls() {
+        SetupMetricsReport report = lastReport;
+        return report == null ? 0 : report.getTotalServiceCalls();
+    }
+
+    @Override
+    public Map<String, Long> getLastResolverCalls() {
+        SetupMetricsReport report = lastReport;
+        return report == null ? Collections.emptyMap() : report.getResolverCalls();
+    }
+
+    @Override
+    public double getLastResolutionCacheHitRate() {
+        SetupMetricsReport report = lastReport;
+        return report == null ? 0 : report.getResolutionCacheHitRate();
+    }
+
+    @Override
+    public double getLastSiteGroupIdCacheHitRate() {
+        SetupMetricsReport report = lastReport;
+        return report == null ? 0 : report.getSiteGroupIdCacheHitRate();
+    }
+}
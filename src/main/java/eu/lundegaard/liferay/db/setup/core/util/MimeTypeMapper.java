@@ -53,7 +53,7 @@ public final class MimeTypeMapper {
      *
      * @return -
      */
-    public static MimeTypeMapper getInstance() {
+    public static synchronized MimeTypeMapper getInstance() {
 
         if (instance == null) {
             instance = new MimeTypeMapper();
@@ -0,0 +1,134 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2020 Lundegaard a.s.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package eu.lundegaard.liferay.db.setup.core.util;
+
+import com.liferay.portal.kernel.dao.orm.DynamicQuery;
+import com.liferay.portal.kernel.dao.orm.OrderFactoryUtil;
+import com.liferay.portal.kernel.dao.orm.ProjectionFactoryUtil;
+import com.liferay.portal.kernel.dao.orm.PropertyFactoryUtil;
+import com.liferay.portal.kernel.log.Log;
+import com.liferay.portal.kernel.log.LogFactoryUtil;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.function.Function;
+import java.util.function.Predicate;
+
+/**
+ * Deletes entities which are not listed in a setup without loading all of them. Candidates are read in pages of
+ * primary key and name ordered by the primary key, so deleting a page does not shift the next one. The deletions of a
+ * page run in parallel.
+ */
+public final class PagedDeleteUtil {
+
+    public static final int PAGE_SIZE = 500;
+
+    private static final Log LOG = LogFactoryUtil.getLog(PagedDeleteUtil.class);
+    private static volatile int parallelism = 1;
+
+    private PagedDeleteUtil() {
+
+    }
+
+    /**
+     * @param threads number of entities deleted concurrently, 1 deletes them one after another
+     */
+    public static void setParallelism(final int threads) {
+        parallelism = Math.max(1, threads);
+    }
+
+    /**
+     * Restricts the query to the page of candidates following given primary key. The candidates are projected as
+     * [primary key, name]. Listed names are excluded in the database if they fit into a single IN list, the caller
+     * has to skip them in any case.
+     *
+     * @param query query of the entities
+     * @param primaryKeyProperty name of the primary key property
+     * @param nameProperty name of the property the setup lists the entities by
+     * @param listedNames names listed in the setup
+     * @param lastPrimaryKey primary key of the last candidate of the previous page
+     * @return the query
+     */
+    public static DynamicQuery page(final DynamicQuery query, final String primaryKeyProperty,
+            final String nameProperty, final Collection<String> listedNames, final long lastPrimaryKey) {
+        query.add(PropertyFactoryUtil.forName(primaryKeyProperty).gt(lastPrimaryKey));
+        if (!listedNames.isEmpty() && listedNames.size() <= BatchQueryUtil.MAX_IN_LIST_SIZE) {
+            query.add(PropertyFactoryUtil.forName(nameProperty).notIn(listedNames));
+        }
+        query.setProjection(ProjectionFactoryUtil.projectionList()
+                .add(ProjectionFactoryUtil.property(primaryKeyProperty))
+                .add(ProjectionFactoryUtil.property(nameProperty)));
+        query.addOrder(OrderFactoryUtil.asc(primaryKeyProperty));
+        return query;
+    }
+
+    /**
+     * Deletes the candidates page by page and logs the progress.
+     *
+     * @param description plural name of the entities, for logging
+     * @param pageQuery returns at most {@link #PAGE_SIZE} candidates following given primary key, see
+     *        {@link #page(DynamicQuery, String, String, Collection, long)}
+     * @param delete deletes a candidate, returns whether it has been deleted
+     * @return number of deleted entities
+     */
+    public static int deleteInPages(final String description, final Function<Long, List<Object[]>> pageQuery,
+            final Predicate<Object[]> delete) {
+        int threads = parallelism;
+        SetupThreadContext context = SetupThreadContext.capture();
+        long lastPrimaryKey = Long.MIN_VALUE;
+        int deleted = 0;
+        while (true) {
+            List<Object[]> page = pageQuery.apply(lastPrimaryKey);
+            if (page.isEmpty()) {
+                break;
+            }
+            lastPrimaryKey = ((Number) page.get(page.size() - 1)[0]).longValue();
+            List<Callable<Boolean>> deletions = new ArrayList<>(page.size());
+            for (Object[] candidate : page) {
+                Callable<Boolean> deletion = () -> delete.test(candidate);
+                deletions.add(threads > 1 ? context.wrap(deletion) : deletion);
+            }
+            try {
+                for (Boolean result : ConcurrencyUtil.invokeAll(deletions, threads, "setup-delete")) {
+                    if (result) {
+                        deleted++;
+                    }
+                }
+            } catch (ExecutionException e) {
+                LOG.error("Deleting " + description + " failed", e.getCause());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                LOG.error("Deleting " + description + " has been interrupted");
+                break;
+            }
+            LOG.info("Deleted " + deleted + " " + description + " so far");
+            if (page.size() < PAGE_SIZE) {
+                break;
+            }
+        }
+        return deleted;
+    }
+}
@@ -0,0 +1,246 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2020 Lundegaard a.s.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package eu.lundegaard.liferay.db.setup.core.util;
+
+import com.liferay.portal.kernel.log.Log;
+import com.liferay.portal.kernel.log.LogFactoryUtil;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Predicate;
+
+/**
+ * Run-scoped cache of resolved placeholder values, keyed by entity type, site and key of the referenced entity. Only
+ * successful lookups are cached. Setup handlers invalidate the entries of entities they create or update, so a value
+ * resolved before the entity changed is never reused. Outside of a setup run the cache is disabled.
+ * <p>
+ * The cache also holds entities loaded in advance by {@link ResolverPrefetcher}, which lookups use instead of querying
+ * the entity one by one. They are invalidated together with the resolved values.
+ */
+public final class ResolutionCache {
+
+    public static final String STRUCTURE = "STRUCTURE";
+    public static final String TEMPLATE = "TEMPLATE";
+    public static final String CATEGORY = "CATEGORY";
+    public static final String ARTICLE = "ARTICLE";
+    public static final String FILE = "FILE";
+    public static final String CLASS_NAME = "CLASS_NAME";
+    public static final String PAGE = "PAGE";
+    public static final String DDL_RECORD_SET = "DDL_RECORD_SET";
+    public static final String ORGANIZATION = "ORGANIZATION";
+    public static final String USER_GROUP = "USER_GROUP";
+    public static final String ROLE = "ROLE";
+
+    private static final Log LOG = LogFactoryUtil.getLog(ResolutionCache.class);
+
+    // entity -> placeholder name -> resolved value, the entity is shared by the ID, UUID, ... placeholders
+    private static final Map<Key, Map<String, String>> ENTRIES = new ConcurrentHashMap<>();
+    private static final Map<Key, List<Object>> PREFETCHED = new ConcurrentHashMap<>();
+    private static final LongAdder HITS = new LongAdder();
+    private static final LongAdder MISSES = new LongAdder();
+    private static final LongAdder PREFETCH_HITS = new LongAdder();
+    private static volatile boolean enabled;
+
+    private ResolutionCache() {
+
+    }
+
+    /**
+     * Enables the cache for a setup run, starting with no entries and zero statistics.
+     */
+    public static void start() {
+        ENTRIES.clear();
+        PREFETCHED.clear();
+        HITS.reset();
+        MISSES.reset();
+        PREFETCH_HITS.reset();
+        enabled = true;
+    }
+
+    /**
+     * Disables the cache at the end of a setup run and logs its statistics.
+     */
+    public static void stop() {
+        enabled = false;
+        ENTRIES.clear();
+        PREFETCHED.clear();
+        LOG.info("Placeholder resolution cache: " + HITS.sum() + " hits, " + MISSES.sum() + " misses, "
+                + PREFETCH_HITS.sum() + " misses served by prefetched entities");
+    }
+
+    /**
+     * Returns the cached value or resolves it with the lookup. A null value returned by the lookup is not cached.
+     *
+     * @param type entity type, one of the constants of this class
+     * @param placeholder placeholder name
+     * @param siteGroupId group ID of the site the entity belongs to, 0 for entities not scoped by a site
+     * @param key key of the entity within the site
+     * @param lookup lookup of the value
+     * @return resolved value
+     */
+    public static String get(final String type, final String placeholder, final long siteGroupId, final String key,
+            final Callable<String> lookup) throws Exception {
+
+        if (!enabled) {
+            return lookup.call();
+        }
+        Key entryKey = new Key(type, siteGroupId, key);
+        Map<String, String> values = ENTRIES.get(entryKey);
+        String value = values == null ? null : values.get(placeholder);
+        if (value != null) {
+            HITS.increment();
+            return value;
+        }
+        MISSES.increment();
+        value = lookup.call();
+        if (value != null) {
+            ENTRIES.computeIfAbsent(entryKey, k -> new ConcurrentHashMap<>()).put(placeholder, value);
+        }
+        return value;
+    }
+
+    /**
+     * Stores an entity loaded in advance. More entities may be stored under the same key, e.g. public and private page
+     * with the same friendly URL.
+     *
+     * @param type entity type, one of the constants of this class
+     * @param siteGroupId group ID of the site the entity is referred from
+     * @param key key of the entity within the site
+     * @param entity the entity
+     */
+    public static void prefetched(final String type, final long siteGroupId, final String key, final Object entity) {
+        if (enabled) {
+            PREFETCHED.computeIfAbsent(new Key(type, siteGroupId, key), k -> new CopyOnWriteArrayList<>()).add(entity);
+        }
+    }
+
+    /**
+     * @return the first entity loaded in advance which matches the filter, or null if there is none
+     */
+    public static <T> T getPrefetched(final String type, final long siteGroupId, final String key,
+            final Class<T> entityClass, final Predicate<? super T> filter) {
+
+        List<Object> entities = PREFETCHED.get(new Key(type, siteGroupId, key));
+        if (entities == null) {
+            return null;
+        }
+        for (Object entity : entities) {
+            if (entityClass.isInstance(entity) && filter.test(entityClass.cast(entity))) {
+                PREFETCH_HITS.increment();
+                return entityClass.cast(entity);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Removes cached values of a single entity.
+     */
+    public static void invalidate(final String type, final long siteGroupId, final String key) {
+        Key entryKey = new Key(type, siteGroupId, key);
+        ENTRIES.remove(entryKey);
+        PREFETCHED.remove(entryKey);
+    }
+
+    /**
+     * Removes cached values of all entities of given type within a site.
+     */
+    public static void invalidateSite(final String type, final long siteGroupId) {
+        Predicate<Key> matches = key -> key.type.equals(type) && key.siteGroupId == siteGroupId;
+        ENTRIES.keySet().removeIf(matches);
+        PREFETCHED.keySet().removeIf(matches);
+    }
+
+    /**
+     * Removes cached values of all entities of given type with given key in any site.
+     */
+    public static void invalidateKey(final String type, final String key) {
+        Predicate<Key> matches = entryKey -> entryKey.type.equals(type) && entryKey.key.equals(key);
+        ENTRIES.keySet().removeIf(matches);
+        PREFETCHED.keySet().removeIf(matches);
+    }
+
+    /**
+     * Removes cached values of all entities of given type.
+     */
+    public static void invalidateAll(final String type) {
+        Predicate<Key> matches = key -> key.type.equals(type);
+        ENTRIES.keySet().removeIf(matches);
+        PREFETCHED.keySet().removeIf(matches);
+    }
+
+    /**
+     * Removes all cached values, e.g. after a rollback.
+     */
+    public static void invalidateAll() {
+        ENTRIES.clear();
+        PREFETCHED.clear();
+    }
+
+    public static long getHits() {
+        return HITS.sum();
+    }
+
+    public static long getPrefetchHits() {
+        return PREFETCH_HITS.sum();
+    }
+
+    public static long getMisses() {
+        return MISSES.sum();
+    }
+
+    private static final class Key {
+
+        private final String type;
+        private final long siteGroupId;
+        private final String key;
+
+        private Key(final String type, final long siteGroupId, final String key) {
+            this.type = type;
+            this.siteGroupId = siteGroupId;
+            this.key = key;
+        }
+
+        @Override
+        public boolean equals(final Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return siteGroupId == other.siteGroupId && type.equals(other.type) && key.equals(other.key);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(type, siteGroupId, key);
+        }
+    }
+}
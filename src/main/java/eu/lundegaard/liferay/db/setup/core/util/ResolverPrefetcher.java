@@ -0,0 +1,271 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2020 Lundegaard a.s.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package eu.lundegaard.liferay.db.setup.core.util;
+
+import com.liferay.dynamic.data.lists.model.DDLRecordSet;
+import com.liferay.dynamic.data.lists.service.DDLRecordSetLocalServiceUtil;
+import com.liferay.dynamic.data.mapping.model.DDMStructure;
+import com.liferay.dynamic.data.mapping.model.DDMTemplate;
+import com.liferay.dynamic.data.mapping.service.DDMStructureLocalServiceUtil;
+import com.liferay.dynamic.data.mapping.service.DDMTemplateLocalServiceUtil;
+import com.liferay.journal.model.JournalArticle;
+import com.liferay.journal.service.JournalArticleLocalServiceUtil;
+import com.liferay.portal.kernel.dao.orm.DynamicQuery;
+import com.liferay.portal.kernel.dao.orm.ProjectionFactoryUtil;
+import com.liferay.portal.kernel.dao.orm.PropertyFactoryUtil;
+import com.liferay.portal.kernel.log.Log;
+import com.liferay.portal.kernel.log.LogFactoryUtil;
+import com.liferay.portal.kernel.model.Group;
+import com.liferay.portal.kernel.model.GroupConstants;
+import com.liferay.portal.kernel.model.Layout;
+import com.liferay.portal.kernel.service.GroupLocalServiceUtil;
+import com.liferay.portal.kernel.service.LayoutLocalServiceUtil;
+import com.liferay.portal.kernel.workflow.WorkflowConstants;
+import eu.lundegaard.liferay.db.setup.domain.Article;
+import eu.lundegaard.liferay.db.setup.domain.Page;
+import eu.lundegaard.liferay.db.setup.domain.Pageportlet;
+import eu.lundegaard.liferay.db.setup.domain.PortletPreference;
+import eu.lundegaard.liferay.db.setup.domain.Setup;
+import eu.lundegaard.liferay.db.setup.domain.Site;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+/**
+ * Loads the entities referenced by placeholders in article contents and portlet preferences before the sites are set
+ * up. Every entity type is loaded with one IN query per site instead of one query per placeholder, and the entities
+ * are stored in {@link ResolutionCache}. Placeholders referring to entities which are not prefetched, e.g. because
+ * they are created by the setup, are resolved one by one as before.
+ */
+public final class ResolverPrefetcher {
+
+    private static final Log LOG = LogFactoryUtil.getLog(ResolverPrefetcher.class);
+
+    private ResolverPrefetcher() {
+
+    }
+
+    /**
+     * Prefetches the entities referenced from all sites of the setup, must be called while {@link ResolutionCache} is
+     * started.
+     */
+    public static void prefetch(final Setup setup, final long companyId) {
+        if (setup.getSites() == null) {
+            return;
+        }
+        long start = System.nanoTime();
+        // type -> site group ID -> keys
+        Map<String, Map<Long, Set<String>>> references = new HashMap<>();
+        collectSites(setup.getSites().getSite(), companyId, references);
+
+        int prefetched = 0;
+        for (Map.Entry<String, Map<Long, Set<String>>> type : references.entrySet()) {
+            for (Map.Entry<Long, Set<String>> site : type.getValue().entrySet()) {
+                try {
+                    prefetched += prefetch(type.getKey(), site.getKey(), site.getValue());
+                } catch (RuntimeException e) {
+                    // the entities are looked up one by one later
+                    LOG.warn("Could not prefetch " + type.getKey() + " entities of site " + site.getKey(), e);
+                }
+            }
+        }
+        LOG.info("Prefetched " + prefetched + " entities referenced by placeholders in "
+                + (System.nanoTime() - start) / 1_000_000 + " ms");
+    }
+
+    private static void collectSites(final List<Site> sites, final long companyId,
+            final Map<String, Map<Long, Set<String>>> references) {
+
+        for (Site site : sites) {
+            long groupId = getGroupId(site, companyId);
+            // the site is created by the setup, so there is nothing to prefetch yet
+            if (groupId != 0) {
+                ResolverUtil.ReferenceCollector collector = (type, placeholder, siteGroupId, key) -> {
+                    if (siteGroupId != 0) {
+                        references.computeIfAbsent(type, t -> new HashMap<>())
+                                .computeIfAbsent(siteGroupId, g -> new HashSet<>()).add(key);
+                    }
+                };
+                collectArticles(site.getArticle(), groupId, companyId, collector);
+                if (site.getPublicPages() != null) {
+                    collectPages(site.getPublicPages().getPage(), groupId, companyId, collector);
+                }
+                if (site.getPrivatePages() != null) {
+                    collectPages(site.getPrivatePages().getPage(), groupId, companyId, collector);
+                }
+            }
+            collectSites(site.getSite(), companyId, references);
+        }
+    }
+
+    private static long getGroupId(final Site site, final long companyId) {
+        Group group;
+        if (site.isDefault()) {
+            SetupMetrics.serviceCall("GroupLocalService.fetchGroup");
+            group = GroupLocalServiceUtil.fetchGroup(companyId, GroupConstants.GUEST);
+        } else if (site.getName() == null) {
+            SetupMetrics.serviceCall("GroupLocalService.fetchCompanyGroup");
+            group = GroupLocalServiceUtil.fetchCompanyGroup(companyId);
+        } else {
+            SetupMetrics.serviceCall("GroupLocalService.fetchGroup");
+            group = GroupLocalServiceUtil.fetchGroup(companyId, site.getName());
+        }
+        return group == null ? 0 : group.getGroupId();
+    }
+
+    private static void collectArticles(final List<Article> articles, final long groupId, final long companyId,
+            final ResolverUtil.ReferenceCollector collector) {
+
+        for (Article article : articles) {
+            try {
+                String content = ResourcesUtil.getFileContent(article.getPath());
+                ResolverUtil.collectReferences(content, groupId, companyId, collector);
+            } catch (IOException e) {
+                // reported when the article is set up
+                LOG.debug("Cannot read article " + article.getPath(), e);
+            }
+        }
+    }
+
+    private static void collectPages(final List<Page> pages, final long groupId, final long companyId,
+            final ResolverUtil.ReferenceCollector collector) {
+
+        for (Page page : pages) {
+            for (Pageportlet portlet : page.getPageportlet()) {
+                for (PortletPreference preference : portlet.getPortletPreference()) {
+                    ResolverUtil.collectReferences(preference.getValue(), groupId, companyId, collector);
+                }
+            }
+            collectPages(page.getPage(), groupId, companyId, collector);
+        }
+    }
+
+    private static int prefetch(final String type, final long siteGroupId, final Set<String> keys) {
+        switch (type) {
+            case ResolutionCache.ARTICLE:
+                return prefetchArticles(siteGroupId, keys);
+            case ResolutionCache.STRUCTURE:
+                return store(type, siteGroupId, keys, queryByKeys(keys, chunk -> {
+                    DynamicQuery dq = DDMStructureLocalServiceUtil.dynamicQuery()
+                            .add(PropertyFactoryUtil.forName("groupId").eq(siteGroupId))
+                            .add(PropertyFactoryUtil.forName("structureKey").in(chunk));
+                    SetupMetrics.serviceCall("DDMStructureLocalService.dynamicQuery");
+                    return DDMStructureLocalServiceUtil.dynamicQuery(dq);
+                }), DDMStructure::getStructureKey);
+            case ResolutionCache.TEMPLATE:
+                // templates of all sites, the UUID placeholder does not take the site into account
+                return store(type, siteGroupId, keys, queryByKeys(keys, chunk -> {
+                    DynamicQuery dq = DDMTemplateLocalServiceUtil.dynamicQuery()
+                            .add(PropertyFactoryUtil.forName("templateKey").in(chunk));
+                    SetupMetrics.serviceCall("DDMTemplateLocalService.dynamicQuery");
+                    return DDMTemplateLocalServiceUtil.dynamicQuery(dq);
+                }), DDMTemplate::getTemplateKey);
+            case ResolutionCache.PAGE:
+                return store(type, siteGroupId, keys, queryByKeys(keys, chunk -> {
+                    DynamicQuery dq = LayoutLocalServiceUtil.dynamicQuery()
+                            .add(PropertyFactoryUtil.forName("groupId").eq(siteGroupId))
+                            .add(PropertyFactoryUtil.forName("friendlyURL").in(chunk));
+                    SetupMetrics.serviceCall("LayoutLocalService.dynamicQuery");
+                    return LayoutLocalServiceUtil.dynamicQuery(dq);
+                }), Layout::getFriendlyURL);
+            case ResolutionCache.DDL_RECORD_SET:
+                return store(type, siteGroupId, keys, queryByKeys(keys, chunk -> {
+                    DynamicQuery dq = DDLRecordSetLocalServiceUtil.dynamicQuery()
+                            .add(PropertyFactoryUtil.forName("groupId").eq(siteGroupId))
+                            .add(PropertyFactoryUtil.forName("recordSetKey").in(chunk));
+                    SetupMetrics.serviceCall("DDLRecordSetLocalService.dynamicQuery");
+                    return DDLRecordSetLocalServiceUtil.dynamicQuery(dq);
+                }), DDLRecordSet::getRecordSetKey);
+            default:
+                // resolved one by one, e.g. files are looked up folder by folder
+                return 0;
+        }
+    }
+
+    /**
+     * Loads the latest approved version of the articles, as {@link ResolverUtil#getArticleByArticleID} does.
+     */
+    private static int prefetchArticles(final long siteGroupId, final Set<String> articleIds) {
+        List<Object[]> latestVersions = queryByKeys(articleIds, chunk -> {
+            DynamicQuery dq = JournalArticleLocalServiceUtil.dynamicQuery()
+                    .add(PropertyFactoryUtil.forName("groupId").eq(siteGroupId))
+                    .add(PropertyFactoryUtil.forName("articleId").in(chunk))
+                    .add(PropertyFactoryUtil.forName("status").eq(WorkflowConstants.STATUS_APPROVED))
+                    .setProjection(ProjectionFactoryUtil.projectionList()
+                            .add(ProjectionFactoryUtil.groupProperty("articleId"))
+                            .add(ProjectionFactoryUtil.max("version")));
+            SetupMetrics.serviceCall("JournalArticleLocalService.dynamicQuery");
+            return JournalArticleLocalServiceUtil.dynamicQuery(dq);
+        });
+        Map<String, Double> versions = new HashMap<>();
+        for (Object[] latestVersion : latestVersions) {
+            versions.put((String) latestVersion[0], ((Number) latestVersion[1]).doubleValue());
+        }
+        if (versions.isEmpty()) {
+            return 0;
+        }
+
+        List<JournalArticle> articles = queryByKeys(versions.keySet(), chunk -> {
+            DynamicQuery dq = JournalArticleLocalServiceUtil.dynamicQuery()
+                    .add(PropertyFactoryUtil.forName("groupId").eq(siteGroupId))
+                    .add(PropertyFactoryUtil.forName("articleId").in(chunk))
+                    // the versions of the chunk's own articles keep both lists within the chunk size
+                    .add(PropertyFactoryUtil.forName("version")
+                            .in(chunk.stream().map(versions::get).collect(Collectors.toSet())));
+            SetupMetrics.serviceCall("JournalArticleLocalService.dynamicQuery");
+            return JournalArticleLocalServiceUtil.dynamicQuery(dq);
+        });
+        List<JournalArticle> latest = new ArrayList<>();
+        for (JournalArticle article : articles) {
+            Double version = versions.get(article.getArticleId());
+            if (version != null && version == article.getVersion()) {
+                latest.add(article);
+            }
+        }
+        return store(ResolutionCache.ARTICLE, siteGroupId, articleIds, latest, JournalArticle::getArticleId);
+    }
+
+    private static <T> List<T> queryByKeys(final Set<String> keys, final Function<List<String>, List<T>> query) {
+        return BatchQueryUtil.queryInChunks(keys, query);
+    }
+
+    private static <T> int store(final String type, final long siteGroupId, final Set<String> keys,
+            final List<T> entities, final Function<T, String> keyOf) {
+        int stored = 0;
+        for (T entity : entities) {
+            String key = keyOf.apply(entity);
+            if (keys.contains(key)) {
+                ResolutionCache.prefetched(type, siteGroupId, key, entity);
+                stored++;
+            }
+        }
+        return stored;
+    }
+}
@@ -23,10 +23,8 @@
  */
 package eu.lundegaard.liferay.db.setup.core.util;
 
-import com.liferay.asset.kernel.model.AssetCategory;
 import com.liferay.asset.kernel.model.AssetEntry;
 import com.liferay.asset.kernel.model.AssetVocabulary;
-import com.liferay.asset.kernel.service.AssetCategoryLocalServiceUtil;
 import com.liferay.asset.kernel.service.AssetVocabularyLocalServiceUtil;
 import com.liferay.dynamic.data.lists.model.DDLRecordSet;
 import com.liferay.dynamic.data.lists.service.DDLRecordSetLocalServiceUtil;
@@ -44,6 +42,7 @@ import com.liferay.portal.kernel.json.JSONObject;
 import com.liferay.portal.kernel.json.JSONUtil;
 import com.liferay.portal.kernel.log.Log;
 import com.liferay.portal.kernel.log.LogFactoryUtil;
+import com.liferay.portal.kernel.model.Group;
 import com.liferay.portal.kernel.model.Layout;
 import com.liferay.portal.kernel.model.Organization;
 import com.liferay.portal.kernel.model.UserGroup;
@@ -55,7 +54,10 @@ import com.liferay.portal.kernel.service.OrganizationLocalServiceUtil;
 import com.liferay.portal.kernel.service.UserGroupLocalServiceUtil;
 import com.liferay.portal.kernel.workflow.WorkflowConstants;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 public final class ResolverUtil {
 
@@ -65,24 +67,33 @@ public final class ResolverUtil {
     public static final int ID_TYPE_RESOURCE = 2;
     public static final int ID_TYPE_FILE = 3;
     private static final Log LOG = LogFactoryUtil.getLog(ResolverUtil.class);
+    private static final String OPENING_TAG = "{{$";
     private static final String CLOSING_TAG = "$}}";
-    private static final String ARTICLE_BY_ART_ID = "{{$ARTICLE-%%IDTYPE%%-BY-ARTICLE-ID=";
-    private static final String TEMPLATE_BY_KEY = "{{$%%PREFIX%%-TEMPLATE-%%IDTYPE%%-BY-KEY=";
-    private static final String STRUCTURE_BY_KEY = "{{$%%PREFIX%%-STRUCTURE-%%IDTYPE%%-BY-KEY=";
-    private static final String FILE_REFERENCE_JSON = "{{$FILE-JSON=";
-    private static final String FILE_REFERENCE_ID = "{{$FILE-ID=";
-    private static final String FILE_REFERENCE_UUID = "{{$FILE-UUID=";
-    private static final String CLASS_ID_BY_NAME = "{{$CLASS-ID-BY-NAME=";
-    private static final String PAGE_ID_BY_FRIENDLY_URL = "{{$%%PTYPE%%-PAGE-%%LAYOUTID%%-BY-FRIENDLY_URL=";
-    private static final String DDL_REC_SET_BY_KEY = "{{$DDL-REC-SET-ID-BY-KEY=";
-    private static final String TEMPLATE_CATEGORY = "{{$CATEGORY-ID-BY-VOCABULARY-AND-PATH=";
+    private static final String ARTICLE_BY_ART_ID = "ARTICLE-%%IDTYPE%%-BY-ARTICLE-ID";
+    private static final String TEMPLATE_BY_KEY = "%%PREFIX%%-TEMPLATE-%%IDTYPE%%-BY-KEY";
+    private static final String STRUCTURE_BY_KEY = "%%PREFIX%%-STRUCTURE-%%IDTYPE%%-BY-KEY";
+    private static final String FILE_REFERENCE_JSON = "FILE-JSON";
+    private static final String FILE_REFERENCE_ID = "FILE-ID";
+    private static final String FILE_REFERENCE_UUID = "FILE-UUID";
+    private static final String CLASS_ID_BY_NAME = "CLASS-ID-BY-NAME";
+    private static final String PAGE_ID_BY_FRIENDLY_URL = "%%PTYPE%%-PAGE-%%LAYOUTID%%-BY-FRIENDLY_URL";
+    private static final String DDL_REC_SET_BY_KEY = "DDL-REC-SET-ID-BY-KEY";
+    private static final String TEMPLATE_CATEGORY = "CATEGORY-ID-BY-VOCABULARY-AND-PATH";
     private static final String DEFAULT_GROUP_NAME = "Guest";
-    private static final String ID_OF_SITE_WITH_NAME_KEY = "{{$ID_OF_SITE_WITH_NAME=";
+    private static final String GLOBAL_SITE_NAME = "global";
+    private static final String DEFAULT_SITE_NAME = "default";
+    private static final String ID_OF_SITE_WITH_NAME_KEY = "ID_OF_SITE_WITH_NAME";
     private static final String VALUE_SPLIT = "::";
-    private static final String ID_OF_ORG_USER_GROUP_WITH_NAME_KEY = "{{$%%IDTYPE%%_OF_%%LOOKUPTYPE%%_WITH_NAME=";
+    private static final String ID_OF_ORG_USER_GROUP_WITH_NAME_KEY = "%%IDTYPE%%_OF_%%LOOKUPTYPE%%_WITH_NAME";
+    private static final String FILE_NOT_FOUND = " <file-not-found /> ";
+    private static final String PAGE_NOT_FOUND = " PAGE NOT FOUND!! ";
+    private static final String ARTICLE_NOT_FOUND = "!!NOTFOUND!!";
+    private static final String NOT_FOUND = "NOT FOUND";
 
     // CHECKSTYLE:ON
 
+    private static final Map<String, TokenResolver> RESOLVERS = createResolvers();
+
     private ResolverUtil() {}
 
     /**
@@ -148,118 +159,349 @@ public final class ResolverUtil {
      */
     public static String lookupAll(final long runAsUserId, final long groupId, final long company,
             final String value, final String resolverHint) {
-        String retVal = value;
-
-        // substitute references to groups/sites
-        retVal = ResolverUtil.lookupSiteIdWithName(resolverHint, value, company);
-        // ID for article template
-        retVal = ResolverUtil.lookupStructureOrTemplateIdWithKey(retVal, resolverHint, groupId,
-                company, false, "ART", true, JournalArticle.class);
-        // ID for article structure
-        retVal = ResolverUtil.lookupStructureOrTemplateIdWithKey(retVal, resolverHint, groupId,
-                company, false, "ART", false, JournalArticle.class);
-        // UUID for article structure
-        retVal = ResolverUtil.lookupStructureOrTemplateIdWithKey(retVal, resolverHint, groupId,
-                company, true, "ART", false, JournalArticle.class);
-        // UUID for article template
-        retVal = ResolverUtil.lookupStructureOrTemplateIdWithKey(retVal, resolverHint, groupId,
-                company, true, "ART", true, JournalArticle.class);
-        // UUID for ADT
-        retVal = ResolverUtil.lookupStructureOrTemplateIdWithKey(retVal, resolverHint, groupId,
-                company, true, "ADT", true, AssetEntry.class);
-        // ID for ADT
-        retVal = ResolverUtil.lookupStructureOrTemplateIdWithKey(retVal, resolverHint, groupId,
-                company, false, "ADT", true, AssetEntry.class);
-
-        //Resolve categories
-        retVal = ResolverUtil.substituteCategoryNameWithCategoryId(retVal, resolverHint, groupId, company, runAsUserId);
-
-        // Substitute the article key with the primary key (id)
-        retVal = ResolverUtil.lookupArticleWithArticleId(retVal, resolverHint, groupId, company,
-                ID_TYPE_ID);
-        // Substitute the article key with the uuid of the article
-        retVal = ResolverUtil.lookupArticleWithArticleId(retVal, resolverHint, groupId, company,
-                ID_TYPE_UUID);
-        // Resource type id for articles
-        retVal = ResolverUtil.lookupArticleWithArticleId(retVal, resolverHint, groupId, company,
-                ID_TYPE_RESOURCE);
-        // Substitute references to files by their URLs
-        retVal = ResolverUtil.substituteFileReferencesWithURL(retVal, resolverHint, groupId,
-                company, groupId, runAsUserId, ID_TYPE_FILE);
-        // Substitute references to files by their id
-        retVal = ResolverUtil.substituteFileReferencesWithURL(retVal, resolverHint, groupId,
-                company, groupId, runAsUserId, ID_TYPE_ID);
-        // Substitute references to files by their UUID
-        retVal = ResolverUtil.substituteFileReferencesWithURL(retVal, resolverHint, groupId,
-                company, groupId, runAsUserId, ID_TYPE_UUID);
-        // Substitute class id references
-        retVal = ResolverUtil.getClassIdByName(retVal, resolverHint);
-        // Substitute private page friendly urls to layout ids
-        retVal = ResolverUtil.lookupPageIdWithFriendlyUrl(retVal, resolverHint, groupId, company,
-                true, IdMode.ID);
-        // Substitute public page friendly urls to layout ids
-        retVal = ResolverUtil.lookupPageIdWithFriendlyUrl(retVal, resolverHint, groupId, company,
-                false, IdMode.ID);
-        // Substitute private page friendly urls to plids
-        retVal = ResolverUtil.lookupPageIdWithFriendlyUrl(retVal, resolverHint, groupId, company,
-                true, IdMode.PLID);
-        // Substitute public page friendly urls to plids
-        retVal = ResolverUtil.lookupPageIdWithFriendlyUrl(retVal, resolverHint, groupId, company,
-                false, IdMode.PLID);
-        // Substitute private page friendly urls to uuids
-        retVal = ResolverUtil.lookupPageIdWithFriendlyUrl(retVal, resolverHint, groupId, company,
-                true, IdMode.UUID);
-        // Substitute public page friendly urls to uuids
-        retVal = ResolverUtil.lookupPageIdWithFriendlyUrl(retVal, resolverHint, groupId, company,
-                false, IdMode.UUID);
-        // lookup ddl record set id by key
-        retVal = lookupDDLRecordSetId(retVal, resolverHint, groupId, company);
-        // replace id of user groups
-        retVal = lookupOrgOrUserGroupIdWithName(resolverHint, retVal, company, false, false);
-        // replace uuid of user groups
-        retVal = lookupOrgOrUserGroupIdWithName(resolverHint, retVal, company, true, false);
-        // replace id of orgs
-        retVal = lookupOrgOrUserGroupIdWithName(resolverHint, retVal, company, false, true);
-        // replace uuid of orgs
-        retVal = lookupOrgOrUserGroupIdWithName(resolverHint, retVal, company, true, true);
-        return retVal;
+
+        return substitute(value, new ResolverContext(runAsUserId, groupId, company, groupId, resolverHint), RESOLVERS);
     }
 
-    public static String getClassIdByName(final String value, final String locationHint) {
-        String valueCopy = value;
-        String retVal = valueCopy;
-        while (valueCopy != null && valueCopy.trim().indexOf(CLASS_ID_BY_NAME) > -1) {
-            int pos = valueCopy.trim().indexOf(CLASS_ID_BY_NAME);
-            int pos2 = valueCopy.indexOf(CLOSING_TAG, pos + 1);
-            String name = "";
-            if (pos2 > -1) {
-                try {
-                    name = valueCopy.substring(pos + CLASS_ID_BY_NAME.length(), pos2);
-
-                    long groupId = ResolverUtil.getClassId(name);
-                    retVal = valueCopy.substring(0, pos) + groupId
-                            + valueCopy.substring(pos2 + CLOSING_TAG.length(), valueCopy.length());
-                    valueCopy = retVal;
-                } catch (Exception ex) {
-                    LOG.error("Could not resolve class " + name + " for " + locationHint, ex);
-                }
+    /**
+     * Scans the value once and replaces every {{$NAME=argument$}} token, whose name has a resolver in given resolvers,
+     * with the resolved value. Unknown tokens are kept as they are.
+     */
+    private static String substitute(final String value, final ResolverContext context,
+            final Map<String, TokenResolver> resolvers) {
+
+        if (value == null) {
+            return null;
+        }
+        int start = value.indexOf(OPENING_TAG);
+        if (start < 0) {
+            return value;
+        }
+
+        StringBuilder result = new StringBuilder(value.length());
+        int position = 0;
+        while (start > -1) {
+            int end = value.indexOf(CLOSING_TAG, start + OPENING_TAG.length());
+            if (end < 0) {
+                LOG.warn("Could not resolve " + value.substring(start, Math.min(value.length(), start + 64))
+                        + ", as the syntax is offended, closing $}} is missing for " + context.locationHint);
+                break;
+            }
+            result.append(value, position, start);
+
+            String token = value.substring(start + OPENING_TAG.length(), end);
+            int separator = token.indexOf('=');
+            TokenResolver resolver = separator < 0 ? null : resolvers.get(token.substring(0, separator));
+            String resolved = null;
+            if (resolver != null) {
+                resolved = resolver.resolve(context, token.substring(0, separator), token.substring(separator + 1));
+            }
+            if (resolved == null) {
+                result.append(value, start, end + CLOSING_TAG.length());
             } else {
-                LOG.warn("Could not resolve site name, as the syntax is offendended, closing $}} "
-                        + "is missing for " + locationHint);
+                result.append(resolved);
+            }
+
+            position = end + CLOSING_TAG.length();
+            start = value.indexOf(OPENING_TAG, position);
+        }
+        result.append(value, position, value.length());
+        return result.toString();
+    }
+
+    /**
+     * Reports every cacheable reference in the value to the collector, without resolving it.
+     */
+    static void collectReferences(final String value, final long groupId, final long company,
+            final ReferenceCollector collector) {
+
+        if (value == null) {
+            return;
+        }
+        ResolverContext context = new ResolverContext(0, groupId, company, groupId, "prefetch");
+        int start = value.indexOf(OPENING_TAG);
+        while (start > -1) {
+            int end = value.indexOf(CLOSING_TAG, start + OPENING_TAG.length());
+            if (end < 0) {
                 break;
             }
+            String token = value.substring(start + OPENING_TAG.length(), end);
+            int separator = token.indexOf('=');
+            TokenResolver resolver = separator < 0 ? null : RESOLVERS.get(token.substring(0, separator));
+            if (resolver != null) {
+                resolver.collect(context, token.substring(0, separator), token.substring(separator + 1), collector);
+            }
+            start = value.indexOf(OPENING_TAG, end + CLOSING_TAG.length());
         }
+    }
 
-        return retVal;
+    private static Map<String, TokenResolver> createResolvers() {
+        Map<String, TokenResolver> resolvers = new HashMap<>();
+
+        resolvers.put(ID_OF_SITE_WITH_NAME_KEY, new TokenResolver(null, false, false, "0",
+                (context, siteGroupId, name) -> {
+                    long groupId = getSiteGroupIdByName(name, context.company, context.locationHint);
+                    return groupId == 0 ? null : Long.toString(groupId);
+                }));
+
+        putStructureAndTemplateResolvers(resolvers, "ART", JournalArticle.class, true);
+        putStructureAndTemplateResolvers(resolvers, "ADT", AssetEntry.class, false);
+
+        resolvers.put(TEMPLATE_CATEGORY, new TokenResolver(ResolutionCache.CATEGORY, false, false, null,
+                ResolverUtil::lookupCategoryId));
+
+        resolvers.put(articleTokenName(ID_TYPE_ID), articleResolver(ID_TYPE_ID));
+        resolvers.put(articleTokenName(ID_TYPE_UUID), articleResolver(ID_TYPE_UUID));
+        resolvers.put(articleTokenName(ID_TYPE_RESOURCE), articleResolver(ID_TYPE_RESOURCE));
+
+        resolvers.put(FILE_REFERENCE_JSON, fileResolver(ID_TYPE_FILE));
+        resolvers.put(FILE_REFERENCE_ID, fileResolver(ID_TYPE_ID));
+        resolvers.put(FILE_REFERENCE_UUID, fileResolver(ID_TYPE_UUID));
+
+        resolvers.put(CLASS_ID_BY_NAME, new TokenResolver(ResolutionCache.CLASS_NAME, false, false, null,
+                (context, siteGroupId, name) -> Long.toString(getClassId(name))));
+
+        for (boolean isPrivate : new boolean[] {true, false}) {
+            for (IdMode mode : IdMode.values()) {
+                resolvers.put(pageTokenName(isPrivate, mode), pageResolver(isPrivate, mode));
+            }
+        }
+
+        resolvers.put(DDL_REC_SET_BY_KEY, new TokenResolver(ResolutionCache.DDL_RECORD_SET, true, true, PAGE_NOT_FOUND,
+                (context, siteGroupId, recordSetKey) -> {
+                    DDLRecordSet recordSet = ResolutionCache.getPrefetched(ResolutionCache.DDL_RECORD_SET,
+                            siteGroupId, recordSetKey, DDLRecordSet.class, r -> true);
+                    if (recordSet == null) {
+                        SetupMetrics.serviceCall("DDLRecordSetLocalService.fetchRecordSet");
+                        recordSet = DDLRecordSetLocalServiceUtil.fetchRecordSet(siteGroupId, recordSetKey);
+                    }
+                    if (recordSet == null) {
+                        throw new PortalException("No DDL record set " + recordSetKey + " in group " + siteGroupId);
+                    }
+                    return Long.toString(recordSet.getRecordSetId());
+                }));
+
+        for (boolean uuid : new boolean[] {false, true}) {
+            for (boolean org : new boolean[] {false, true}) {
+                resolvers.put(orgOrUserGroupTokenName(uuid, org), orgOrUserGroupResolver(uuid, org));
+            }
+        }
+        return Collections.unmodifiableMap(resolvers);
+    }
+
+    private static void putStructureAndTemplateResolvers(final Map<String, TokenResolver> resolvers,
+            final String commandPrefix, final Class referredClass, final boolean withStructures) {
+
+        resolvers.put(structureOrTemplateTokenName(commandPrefix, false, true),
+                structureOrTemplateResolver(false, true, referredClass, true));
+        resolvers.put(structureOrTemplateTokenName(commandPrefix, true, true),
+                structureOrTemplateResolver(true, true, referredClass, true));
+        if (withStructures) {
+            resolvers.put(structureOrTemplateTokenName(commandPrefix, false, false),
+                    structureOrTemplateResolver(false, false, referredClass, true));
+            resolvers.put(structureOrTemplateTokenName(commandPrefix, true, false),
+                    structureOrTemplateResolver(true, false, referredClass, true));
+        }
+    }
+
+    private static String structureOrTemplateTokenName(final String commandPrefix, final boolean uuid,
+            final boolean isTemplate) {
+        String lookup = isTemplate ? TEMPLATE_BY_KEY : STRUCTURE_BY_KEY;
+        return lookup.replace("%%IDTYPE%%", uuid ? "UUID" : "ID").replace("%%PREFIX%%", commandPrefix);
+    }
+
+    /**
+     * @param cached whether resolved values may be cached, the cache type does not tell apart the referred class
+     */
+    private static TokenResolver structureOrTemplateResolver(final boolean uuid, final boolean isTemplate,
+            final Class referredClass, final boolean cached) {
+        String type = null;
+        if (cached) {
+            type = isTemplate ? ResolutionCache.TEMPLATE : ResolutionCache.STRUCTURE;
+        }
+        return new TokenResolver(type, false, true, "", (context, siteGroupId, key) -> {
+            SetupMetrics.serviceCall("ClassNameLocalService.getClassNameId");
+            long classNameId = ClassNameLocalServiceUtil.getClassNameId(referredClass);
+            if (isTemplate) {
+                // the UUID lookup does not take the site and class into account
+                DDMTemplate template = ResolutionCache.getPrefetched(ResolutionCache.TEMPLATE, siteGroupId, key,
+                        DDMTemplate.class, t -> uuid || t.getGroupId() == siteGroupId
+                                && t.getClassNameId() == classNameId);
+                if (template != null) {
+                    return uuid ? template.getUuid() : Long.toString(template.getTemplateId());
+                }
+                return uuid ? getTemplateUUID(key, siteGroupId)
+                        : Long.toString(getTemplateId(key, siteGroupId, referredClass));
+            }
+            DDMStructure structure = ResolutionCache.getPrefetched(ResolutionCache.STRUCTURE, siteGroupId, key,
+                    DDMStructure.class, s -> s.getGroupId() == siteGroupId && s.getClassNameId() == classNameId);
+            if (structure != null) {
+                return uuid ? structure.getUuid() : Long.toString(structure.getStructureId());
+            }
+            return uuid ? getStructureUUID(key, siteGroupId, referredClass)
+                    : Long.toString(getStructureId(key, siteGroupId, referredClass, false));
+        });
+    }
+
+    private static String articleTokenName(final int typeOfId) {
+        if (typeOfId == ID_TYPE_UUID) {
+            return ARTICLE_BY_ART_ID.replace("%%IDTYPE%%", "UUID");
+        } else if (typeOfId == ID_TYPE_RESOURCE) {
+            return ARTICLE_BY_ART_ID.replace("%%IDTYPE%%", "RESID");
+        }
+        return ARTICLE_BY_ART_ID.replace("%%IDTYPE%%", "ID");
+    }
+
+    private static TokenResolver articleResolver(final int typeOfId) {
+        return new TokenResolver(ResolutionCache.ARTICLE, false, true,
+                ARTICLE_NOT_FOUND, (context, siteGroupId, articleId) -> {
+            JournalArticle ja = ResolutionCache.getPrefetched(ResolutionCache.ARTICLE, siteGroupId, articleId,
+                    JournalArticle.class, a -> true);
+            if (ja == null) {
+                ja = getArticleByArticleID(articleId, siteGroupId);
+            }
+            if (ja == null) {
+                return null;
+            } else if (typeOfId == ID_TYPE_UUID) {
+                return ja.getUuid();
+            } else if (typeOfId == ID_TYPE_RESOURCE) {
+                return Long.toString(ja.getResourcePrimKey());
+            }
+            return Long.toString(ja.getId());
+        });
+    }
+
+    private static String fileTokenName(final int refType) {
+        if (refType == ID_TYPE_ID) {
+            return FILE_REFERENCE_ID;
+        } else if (refType == ID_TYPE_UUID) {
+            return FILE_REFERENCE_UUID;
+        }
+        return FILE_REFERENCE_JSON;
+    }
+
+    private static TokenResolver fileResolver(final int refType) {
+        return new TokenResolver(ResolutionCache.FILE, true, true, FILE_NOT_FOUND, (context, siteGroupId, filePath) -> {
+            FileEntry fe = DocumentUtil.findDocument(filePath, siteGroupId, context.company, context.repoId,
+                    context.runAsUserId);
+            if (fe == null) {
+                return null;
+            } else if (refType == ID_TYPE_ID) {
+                return Long.toString(fe.getFileEntryId());
+            } else if (refType == ID_TYPE_UUID) {
+                return fe.getUuid();
+            }
+            return getFileEntryRef(fe);
+        });
+    }
+
+    /**
+     * The PLID and ID token names are swapped on purpose, {{$PUB-PAGE-PLID-BY-FRIENDLY_URL=...$}} has always been
+     * resolved to the layout ID and {{$PUB-PAGE-ID-BY-FRIENDLY_URL=...$}} to the PLID.
+     */
+    private static String pageTokenName(final boolean isPrivate, final IdMode mode) {
+        String lookUp = PAGE_ID_BY_FRIENDLY_URL.replace("%%PTYPE%%", isPrivate ? "PRIV" : "PUB");
+        switch (mode) {
+            case ID:
+                return lookUp.replace("%%LAYOUTID%%", "PLID");
+            case PLID:
+                return lookUp.replace("%%LAYOUTID%%", "ID");
+            default:
+                return lookUp.replace("%%LAYOUTID%%", "UUID");
+        }
+    }
+
+    private static TokenResolver pageResolver(final boolean isPrivate, final IdMode mode) {
+        return new TokenResolver(ResolutionCache.PAGE, true, true,
+                PAGE_NOT_FOUND, (context, siteGroupId, friendlyUrl) -> {
+            Layout l = ResolutionCache.getPrefetched(ResolutionCache.PAGE, siteGroupId, friendlyUrl, Layout.class,
+                    layout -> layout.isPrivateLayout() == isPrivate);
+            if (l == null) {
+                SetupMetrics.serviceCall("LayoutLocalService.fetchLayoutByFriendlyURL");
+                l = LayoutLocalServiceUtil.fetchLayoutByFriendlyURL(siteGroupId, isPrivate, friendlyUrl);
+            }
+            if (l == null) {
+                throw new PortalException("No page " + friendlyUrl + " in group " + siteGroupId);
+            }
+            switch (mode) {
+                case ID:
+                    return Long.toString(l.getLayoutId());
+                case PLID:
+                    return Long.toString(l.getPlid());
+                default:
+                    return l.getUuid();
+            }
+        });
+    }
+
+    private static String orgOrUserGroupTokenName(final boolean uuid, final boolean org) {
+        return ID_OF_ORG_USER_GROUP_WITH_NAME_KEY.replace("%%IDTYPE%%", uuid ? "UUID" : "ID")
+                .replace("%%LOOKUPTYPE%%", org ? "ORG" : "USER_GROUP");
+    }
+
+    private static TokenResolver orgOrUserGroupResolver(final boolean uuid, final boolean org) {
+        String type = org ? ResolutionCache.ORGANIZATION : ResolutionCache.USER_GROUP;
+        return new TokenResolver(type, false, false, NOT_FOUND, (context, siteGroupId, name) -> {
+            if (org) {
+                Organization o = ResolverUtil.getOrganization(name, context.company, name);
+                if (o == null) {
+                    return null;
+                }
+                return uuid ? o.getUuid() : Long.toString(o.getOrganizationId());
+            }
+            UserGroup ug = ResolverUtil.getUserGroup(name, context.company, name);
+            if (ug == null) {
+                return null;
+            }
+            return uuid ? ug.getUuid() : Long.toString(ug.getUserGroupId());
+        });
+    }
+
+    /**
+     * Resolves {{$CATEGORY-ID-BY-VOCABULARY-AND-PATH=::site::vocabulary::category/sub category$}}.
+     */
+    private static String lookupCategoryId(final ResolverContext context, final long siteGroupId,
+            final String reference) throws PortalException {
+
+        String[] values = reference.split(VALUE_SPLIT);
+        if (values.length != 4) {
+            LOG.error("Categories to be susbstited is not in correct format : SiteName::Vocabulary::CategoriesPath");
+            return null;
+        }
+        long groupIdResolved = getSiteGroupIdByName(values[1], context.company, context.locationHint);
+        SetupMetrics.serviceCall("AssetVocabularyLocalService.fetchGroupVocabulary");
+        AssetVocabulary assetVocabulary =
+                AssetVocabularyLocalServiceUtil.fetchGroupVocabulary(groupIdResolved, values[2]);
+        if (assetVocabulary == null) {
+            throw new PortalException("Vocabulary " + values[2] + " not found in site " + values[1]);
+        }
+
+        Long categoryId = CategoryTreeCache.getCategoryId(assetVocabulary.getVocabularyId(), values[3]);
+        if (categoryId == null) {
+            throw new PortalException("Category " + values[3] + " not found in vocabulary " + values[2]);
+        }
+        return String.valueOf(categoryId);
+    }
+
+    public static String getClassIdByName(final String value, final String locationHint) {
+        return substitute(value, new ResolverContext(0, 0, 0, 0, locationHint),
+                Collections.singletonMap(CLASS_ID_BY_NAME, RESOLVERS.get(CLASS_ID_BY_NAME)));
     }
 
     public static long getSiteGroupIdByName(final String siteName, final long company,
             final String locationName) {
+        boolean global = GLOBAL_SITE_NAME.equalsIgnoreCase(siteName);
+        String cacheKey = global ? GLOBAL_SITE_NAME : getSiteName(siteName);
+        Long cached = SiteGroupIdCache.get(company, cacheKey);
+        if (cached != null) {
+            return cached;
+        }
         long siteGroupId = 0;
 
-        if (siteName.toLowerCase().equals("global")) {
+        if (global) {
             try {
                 // look up global site
+                SetupMetrics.serviceCall("GroupLocalService.getCompanyGroup");
                 siteGroupId = GroupLocalServiceUtil.getCompanyGroup(company).getGroupId();
             } catch (PortalException e) {
                 LOG.error("Id of global site could not be retrieved!");
@@ -271,21 +513,26 @@ public final class ResolverUtil {
         } else {
             try {
                 // look up default site
-                siteGroupId = GroupLocalServiceUtil.getGroup(company, getSiteName(siteName))
-                        .getGroupId();
-            } catch (PortalException e) {
-                LOG.error("Id of site " + siteName + " could not be retrieved for " + locationName);
-                LOG.error((Throwable) e);
+                SetupMetrics.serviceCall("GroupLocalService.fetchGroup");
+                Group group = GroupLocalServiceUtil.fetchGroup(company, cacheKey);
+                if (group != null) {
+                    siteGroupId = group.getGroupId();
+                } else {
+                    LOG.error("Id of site " + siteName + " could not be retrieved for " + locationName);
+                }
             } catch (SystemException e) {
                 LOG.error("Id of site " + siteName + " could not be retrieved for" + locationName);
                 LOG.error((Throwable) e);
             }
         }
+        if (siteGroupId != 0) {
+            SiteGroupIdCache.put(company, cacheKey, siteGroupId);
+        }
         return siteGroupId;
     }
 
     private static String getSiteName(final String siteName) {
-        if (siteName.toLowerCase().equals("default") || siteName.equals("")) {
+        if (DEFAULT_SITE_NAME.equalsIgnoreCase(siteName) || siteName.equals("")) {
             return DEFAULT_GROUP_NAME;
         }
         // WAS needed till version 2.0.x when Organizations were used instead of Sites
@@ -315,59 +562,9 @@ public final class ResolverUtil {
     public static String substituteFileReferencesWithURL(final String content,
             final String locationHint, final long groupId, final long company, final long repoId,
             final long userId, final int refType) {
-        String openingTag = FILE_REFERENCE_JSON;
-        if (refType == ID_TYPE_ID) {
-            openingTag = FILE_REFERENCE_ID;
-        } else if (refType == ID_TYPE_UUID) {
-            openingTag = FILE_REFERENCE_UUID;
-        }
-        String result = content;
-        int pos = result.indexOf(openingTag);
-        while (pos > -1) {
-            int pos2 = result.indexOf(CLOSING_TAG, pos);
-            if (pos2 < 0) {
-                LOG.error("No closing Tag, pos " + pos + " in file " + locationHint);
-                break;
-            } else {
-                // by default the referred file is looked up in current site.
-                long siteGroupId = groupId;
-                String filePath = result.substring(pos + openingTag.length(), pos2).trim();
-
-                // check for the reference to another site
-                String[] refSegs = ResolverUtil.separateSiteRef(filePath);
-                if (!refSegs[0].equals("")) {
-                    siteGroupId = ResolverUtil.getSiteGroupIdByName(refSegs[0], company,
-                            locationHint);
-                    filePath = refSegs[1];
-                }
-
-                FileEntry fe = DocumentUtil.findDocument(filePath, siteGroupId, company, repoId,
-                        userId);
-                if (fe == null) {
-                    LOG.error("Referred file " + filePath + " is not found in documents and media"
-                            + ".");
-                    result = result.substring(0, pos) + " <file-not-found /> "
-                            + result.substring(pos2 + CLOSING_TAG.length(), result.length());
-                } else {
-                    String fileEntryRef = " <file-not-found /> ";
-                    try {
-                        if (refType == ID_TYPE_ID) {
-                            fileEntryRef = Long.toString(fe.getFileEntryId());
-                        } else if (refType == ID_TYPE_UUID) {
-                            fileEntryRef = fe.getUuid();
-                        } else {
-                            fileEntryRef = getFileEntryRef(fe);
-                        }
-                    } catch (SystemException e) {
-                        LOG.error("URL of referred file " + filePath + " cannot be retrieved.");
-                    }
-                    result = result.substring(0, pos) + fileEntryRef
-                            + result.substring(pos2 + CLOSING_TAG.length(), result.length());
-                }
-            }
-            pos = result.indexOf(openingTag, pos + 1);
-        }
-        return result;
+        String name = fileTokenName(refType);
+        return substitute(content, new ResolverContext(userId, groupId, company, repoId, locationHint),
+                Collections.singletonMap(name, RESOLVERS.get(name)));
     }
 
     private static String getFileEntryRef(FileEntry fe) {
@@ -386,416 +583,56 @@ public final class ResolverUtil {
     public static String substituteCategoryNameWithCategoryId(final String content,
             final String locationHint, final long groupId, final long company,
             final long userId) {
-        String openingTag = TEMPLATE_CATEGORY;
-
-        String result = content;
-
-        if (result.startsWith(openingTag)) {
-
-            String[] values = result.replace(CLOSING_TAG, "").split("::");
-            if (values.length == 4) {
-                long groupIdResolved = groupId;
-
-                try {
-                    groupIdResolved = ResolverUtil.getSiteGroupIdByName(values[1], company, locationHint);
-
-                    try {
-                        AssetVocabulary assetVocabulary =
-                                AssetVocabularyLocalServiceUtil.getGroupVocabulary(groupIdResolved, values[2]);
-
-                        String[] categoryIds = values[3].split("/");
-
-                        try {
-                            AssetCategory category = assetVocabulary.getCategories().stream()
-                                    .filter(vocabularyCategory -> vocabularyCategory.getName().equals(categoryIds[0]))
-                                    .findFirst().orElseThrow(PortalException::new);
-
-                            for (int i = 1; i < categoryIds.length; i++) {
-                                String categoryName = categoryIds[i];
-                                category = AssetCategoryLocalServiceUtil.getChildCategories(category.getCategoryId())
-                                        .stream()
-                                        .filter(childrenCategory -> childrenCategory.getName().equals(categoryName))
-                                        .findFirst().orElseThrow(PortalException::new);
-                            }
-                            return String.valueOf(category.getCategoryId());
-                        } catch (PortalException e) {
-                            LOG.error("Could not resolve category path for " + locationHint, e);
-                        }
-                    } catch (PortalException e) {
-                        LOG.error("Could not resolve vocabulary name for " + locationHint, e);
-                    }
-
-                } catch (Exception e) {
-                    LOG.error("Could not resolve site name for " + locationHint, e);
-                }
-            } else {
-                LOG.error(
-                        "Categories to be susbstited is not in correct format : SiteName::Vocabulary::CategoriesPath");
-            }
-
-        }
-
-
-        return result;
+        return substitute(content, new ResolverContext(userId, groupId, company, groupId, locationHint),
+                Collections.singletonMap(TEMPLATE_CATEGORY, RESOLVERS.get(TEMPLATE_CATEGORY)));
     }
 
     public static String lookupSiteIdWithName(final String locationHint, final String value,
             final long company) {
-        String valueCopy = value;
-        String retVal = valueCopy;
-        while (valueCopy != null && valueCopy.trim().indexOf(ID_OF_SITE_WITH_NAME_KEY) > -1) {
-            int pos = valueCopy.trim().indexOf(ID_OF_SITE_WITH_NAME_KEY);
-            int pos2 = valueCopy.indexOf(CLOSING_TAG, pos + 1);
-            if (pos2 > -1) {
-                try {
-                    String name = valueCopy.substring(pos + ID_OF_SITE_WITH_NAME_KEY.length(),
-                            pos2);
-
-                    long groupId = ResolverUtil.getSiteGroupIdByName(name, company, locationHint);
-                    retVal = valueCopy.substring(0, pos) + groupId
-                            + valueCopy.substring(pos2 + CLOSING_TAG.length(), valueCopy.length());
-                    valueCopy = retVal;
-                } catch (Exception ex) {
-                    LOG.error("Could not resolve site name for " + locationHint, ex);
-                }
-            } else {
-                LOG.warn("Could not resolve site name, as the syntax is offendended, closing $}} "
-                        + "is missing for " + locationHint);
-                break;
-            }
-        }
-
-        return retVal;
+        return substitute(value, new ResolverContext(0, 0, company, 0, locationHint),
+                Collections.singletonMap(ID_OF_SITE_WITH_NAME_KEY, RESOLVERS.get(ID_OF_SITE_WITH_NAME_KEY)));
     }
 
     public static String lookupOrgOrUserGroupIdWithName(final String locationHint,
             final String value, final long company, final boolean uuid, final boolean org) {
-        String valueCopy = value;
-        String retVal = valueCopy;
-        String searchString = ID_OF_ORG_USER_GROUP_WITH_NAME_KEY;
-        if (uuid) {
-            searchString = searchString.replace("%%IDTYPE%%", "UUID");
-        } else {
-            searchString = searchString.replace("%%IDTYPE%%", "ID");
-        }
-        if (org) {
-            searchString = searchString.replace("%%LOOKUPTYPE%%", "ORG");
-        } else {
-            searchString = searchString.replace("%%LOOKUPTYPE%%", "USER_GROUP");
-        }
-        while (valueCopy != null && valueCopy.trim().indexOf(searchString) > -1) {
-            int pos = valueCopy.trim().indexOf(searchString);
-            int pos2 = valueCopy.indexOf(CLOSING_TAG, pos + 1);
-            if (pos2 > -1) {
-                try {
-                    String name = valueCopy.substring(pos + searchString.length(), pos2);
-                    String replacementId = "NOT FOUND";
-                    if (org) {
-                        Organization o = ResolverUtil.getOrganization(name, company, name);
-                        if (o != null) {
-                            if (uuid) {
-                                replacementId = o.getUuid();
-                            } else {
-                                replacementId = Long.toString(o.getOrganizationId());
-                            }
-                        }
-                    } else {
-                        UserGroup ug = ResolverUtil.getUserGroup(name, company, name);
-                        if (ug != null) {
-                            if (uuid) {
-                                replacementId = ug.getUuid();
-                            } else {
-                                replacementId = Long.toString(ug.getUserGroupId());
-                            }
-                        }
-                    }
-
-                    retVal = valueCopy.substring(0, pos) + replacementId
-                            + valueCopy.substring(pos2 + CLOSING_TAG.length(), valueCopy.length());
-                    valueCopy = retVal;
-                } catch (Exception ex) {
-                    String type = "user group";
-                    if (org) {
-                        type = "organization";
-                    }
-                    LOG.error("Could not resolve  " + type + " name for " + locationHint, ex);
-                }
-            } else {
-                String type = "user group";
-                if (org) {
-                    type = "organization";
-                }
-                LOG.warn("Could not resolve " + type + " name, as the syntax is offendended, "
-                        + "closing $}} is missing " + "for " + locationHint);
-                break;
-            }
-        }
-
-        return retVal;
+        String name = orgOrUserGroupTokenName(uuid, org);
+        return substitute(value, new ResolverContext(0, 0, company, 0, locationHint),
+                Collections.singletonMap(name, RESOLVERS.get(name)));
     }
 
     public static String lookupArticleWithArticleId(final String content, final String locationHint,
             final long groupId, final long company, final int typeOfId) {
-        String contentCopy = content;
-        String retVal = contentCopy;
-        long siteGroupId = groupId;
-        int pos = -1;
-        String lookup = ARTICLE_BY_ART_ID;
-
-        if (typeOfId == 0) {
-            lookup = lookup.replace("%%IDTYPE%%", "ID");
-        } else if (typeOfId == 1) {
-            lookup = lookup.replace("%%IDTYPE%%", "UUID");
-        } else if (typeOfId == 2) {
-            lookup = lookup.replace("%%IDTYPE%%", "RESID");
-        }
-
-        while (contentCopy != null && contentCopy.indexOf(lookup) > -1) {
-            pos = contentCopy.indexOf(lookup);
-            int pos2 = contentCopy.indexOf(CLOSING_TAG, pos + 1);
-            if (pos2 > -1) {
-                String name = contentCopy.substring(pos + lookup.length(), pos2);
-
-                // check for the reference to another site
-                String[] refSegs = ResolverUtil.separateSiteRef(name);
-                if (!refSegs[0].equals("")) {
-                    siteGroupId = ResolverUtil.getSiteGroupIdByName(refSegs[0], company,
-                            locationHint);
-                    name = refSegs[1];
-                }
-                String templateId = "";
-                try {
-                    JournalArticle ja = getArticleByArticleID(name, siteGroupId);
-                    if (ja != null) {
-                        if (typeOfId == 0) {
-                            templateId = Long.toString(ja.getId());
-                        } else if (typeOfId == 1) {
-                            templateId = ja.getUuid();
-                        } else if (typeOfId == 2) {
-                            templateId = Long.toString(ja.getResourcePrimKey());
-                        }
-                    } else {
-                        LOG.error("Article with article id " + name + " not found for "
-                                + locationHint);
-                        templateId = "!!NOTFOUND!!";
-                    }
-                } catch (SystemException e) {
-                    LOG.error("Article with article id " + name + " not found for " + locationHint);
-                    LOG.error((Throwable) e);
-                }
-
-                retVal = contentCopy.substring(0, pos) + templateId
-                        + contentCopy.substring(pos2 + CLOSING_TAG.length(), contentCopy.length());
-                contentCopy = retVal;
-            } else {
-                LOG.warn("Could not resolve template, as the syntax is offended, closing $}} is "
-                        + "missing for " + locationHint
-                        + " abort parsing, as this is possibly an error!");
-                break;
-            }
-        }
-        return retVal;
+        String name = articleTokenName(typeOfId);
+        return substitute(content, new ResolverContext(0, groupId, company, groupId, locationHint),
+                Collections.singletonMap(name, RESOLVERS.get(name)));
     }
 
     public static String lookupPageIdWithFriendlyUrl(final String content,
             final String locationHint, final long groupId, final long company,
             final boolean isPrivate, final IdMode mode) {
-        String contentCopy = content;
-        String lookUp = PAGE_ID_BY_FRIENDLY_URL;
-        if (isPrivate) {
-            lookUp = lookUp.replace("%%PTYPE%%", "PRIV");
-        } else {
-            lookUp = lookUp.replace("%%PTYPE%%", "PUB");
-        }
-        switch (mode) {
-            case ID:
-                lookUp = lookUp.replace("%%LAYOUTID%%", "PLID");
-                break;
-            case PLID:
-                lookUp = lookUp.replace("%%LAYOUTID%%", "ID");
-                break;
-            case UUID:
-                lookUp = lookUp.replace("%%LAYOUTID%%", "UUID");
-                break;
-        }
-        int pos = contentCopy.indexOf(lookUp);
-        while (pos > -1) {
-            int pos2 = contentCopy.indexOf(CLOSING_TAG, pos);
-            if (pos2 < 0) {
-                LOG.error("No closing Tag, pos " + pos + " for " + locationHint);
-                break;
-            } else {
-                // by default the referred file is looked up in current site.
-                long siteGroupId = groupId;
-                String fUrl = contentCopy.substring(pos + lookUp.length(), pos2).trim();
-
-                // check for the reference to another site
-                String[] refSegs = ResolverUtil.separateSiteRef(fUrl);
-                if (!refSegs[0].equals("")) {
-                    siteGroupId = ResolverUtil.getSiteGroupIdByName(refSegs[0], company,
-                            locationHint);
-                    fUrl = refSegs[1];
-                }
-
-                String pageId = "NOT FOUND";
-                Layout l = null;
-                try {
-                    l = LayoutLocalServiceUtil.getFriendlyURLLayout(siteGroupId, isPrivate, fUrl);
-                } catch (PortalException | SystemException e) {
-                    e.printStackTrace();
-                }
-
-                if (l == null) {
-                    LOG.error("Referred page " + fUrl + " is not found .");
-                    contentCopy = contentCopy.substring(0, pos) + " PAGE NOT FOUND!! " + contentCopy
-                            .substring(pos2 + CLOSING_TAG.length(), contentCopy.length());
-                } else {
-                    switch (mode) {
-                        case ID:
-                            pageId = Long.toString(l.getLayoutId());
-                            break;
-                        case PLID:
-                            pageId = Long.toString(l.getPlid());
-                            break;
-                        case UUID:
-                            pageId = l.getUuid();
-                            break;
-                    }
-                    contentCopy = contentCopy.substring(0, pos) + pageId + contentCopy
-                            .substring(pos2 + CLOSING_TAG.length(), contentCopy.length());
-                }
-            }
-            pos = contentCopy.indexOf(lookUp, pos + 1);
-        }
-
-        //
-        return contentCopy;
+        String name = pageTokenName(isPrivate, mode);
+        return substitute(content, new ResolverContext(0, groupId, company, groupId, locationHint),
+                Collections.singletonMap(name, RESOLVERS.get(name)));
     }
 
     public static String lookupDDLRecordSetId(final String content, final String locationHint,
             final long groupId, final long company) {
-        String contentCopy = content;
-        String lookUp = DDL_REC_SET_BY_KEY;
-
-        int pos = contentCopy.indexOf(lookUp);
-        while (pos > -1) {
-            int pos2 = contentCopy.indexOf(CLOSING_TAG, pos);
-            if (pos2 < 0) {
-                LOG.error("No closing Tag, pos " + pos + " for " + locationHint);
-                break;
-            } else {
-                // by default the referred file is looked up in current site.
-                long siteGroupId = groupId;
-                String recordsetId = contentCopy.substring(pos + lookUp.length(), pos2).trim();
-
-                // check for the reference to another site
-                String[] refSegs = ResolverUtil.separateSiteRef(recordsetId);
-                if (!refSegs[0].equals("")) {
-                    siteGroupId = ResolverUtil.getSiteGroupIdByName(refSegs[0], company,
-                            locationHint);
-                    recordsetId = refSegs[1];
-                }
-
-                String pageId = "NOT FOUND";
-                DDLRecordSet rs = null;
-                try {
-                    rs = DDLRecordSetLocalServiceUtil.getRecordSet(siteGroupId, recordsetId);
-
-                } catch (PortalException e) {
-                    LOG.error("Error retrieving referred DDL structure " + recordsetId + ".");
-                } catch (SystemException e) {
-                    LOG.error("Error retrieving referred DDL structure " + recordsetId + ".");
-                }
-
-                if (rs == null) {
-                    LOG.error("Referred DDL structure " + recordsetId + " is not found .");
-                    contentCopy = contentCopy.substring(0, pos) + " PAGE NOT FOUND!! " + contentCopy
-                            .substring(pos2 + CLOSING_TAG.length(), contentCopy.length());
-                } else {
-                    pageId = Long.toString(rs.getRecordSetId());
-                    contentCopy = contentCopy.substring(0, pos) + pageId + contentCopy
-                            .substring(pos2 + CLOSING_TAG.length(), contentCopy.length());
-                }
-            }
-            pos = contentCopy.indexOf(lookUp, pos + 1);
-        }
-
-        //
-        return contentCopy;
+        return substitute(content, new ResolverContext(0, groupId, company, groupId, locationHint),
+                Collections.singletonMap(DDL_REC_SET_BY_KEY, RESOLVERS.get(DDL_REC_SET_BY_KEY)));
     }
 
-    // CHECKSTYLE:OFF
     public static String lookupStructureOrTemplateIdWithKey(final String content,
             final String locationHint, final long groupId, final long company, final boolean uuid,
             final String commandPrefix, final boolean isTemplate, final Class referredClass) {
-        String contentCopy = content;
-        String retVal = contentCopy;
-        long siteGroupId = groupId;
-        int pos = -1;
-        String lookup = TEMPLATE_BY_KEY;
-        if (!isTemplate) {
-            lookup = STRUCTURE_BY_KEY;
-        }
-        if (uuid) {
-            lookup = lookup.replace("%%IDTYPE%%", "UUID");
-        } else {
-            lookup = lookup.replace("%%IDTYPE%%", "ID");
-        }
-        lookup = lookup.replace("%%PREFIX%%", commandPrefix);
-        while (contentCopy != null && contentCopy.indexOf(lookup) > -1) {
-            pos = contentCopy.indexOf(lookup);
-            int pos2 = contentCopy.indexOf(CLOSING_TAG);
-            if (pos2 > -1) {
-                String name = contentCopy.substring(pos + lookup.length(), pos2);
-
-                // check for the reference to another site
-                String[] refSegs = ResolverUtil.separateSiteRef(name);
-                if (!refSegs[0].equals("")) {
-                    siteGroupId = ResolverUtil.getSiteGroupIdByName(refSegs[0], company,
-                            locationHint);
-                    name = refSegs[1];
-                }
-                String templateId = "";
-                try {
-                    if (uuid) {
-                        if (isTemplate) {
-                            templateId = getTemplateUUID(name, siteGroupId);
-                        } else {
-                            templateId = getStructureUUID(name, siteGroupId, referredClass);
-                        }
-                    } else {
-                        if (isTemplate) {
-                            templateId = Long
-                                    .toString(getTemplateId(name, siteGroupId, referredClass));
-                        } else {
-                            templateId = Long
-                                    .toString(getStructureId(name, siteGroupId, referredClass, false));
-                        }
-                    }
-                } catch (PortalException | SystemException e) {
-                    LOG.error("Template with key contentCopy " + name + " not found for "
-                            + locationHint);
-                    LOG.error((Throwable) e);
-                }
-
-                retVal = contentCopy.substring(0, pos) + templateId
-                        + contentCopy.substring(pos2 + CLOSING_TAG.length(), contentCopy.length());
-                contentCopy = retVal;
-            } else {
-                LOG.warn("Could not resolve template, as the syntax is offended, closing $}} is "
-                        + "missing for " + locationHint
-                        + " abort parsing, as this is possibly an error!");
-                break;
-            }
-        }
-        return retVal;
+        return substitute(content, new ResolverContext(0, groupId, company, groupId, locationHint),
+                Collections.singletonMap(structureOrTemplateTokenName(commandPrefix, uuid, isTemplate),
+                        structureOrTemplateResolver(uuid, isTemplate, referredClass, false)));
     }
 
-    // CHECKSTYLE:ON
-
     public static JournalArticle getArticleByArticleID(final String articleId, final long groupId)
             throws SystemException {
         JournalArticle article = null;
+        SetupMetrics.serviceCall("JournalArticleLocalService.fetchLatestArticle");
         article = JournalArticleLocalServiceUtil.fetchLatestArticle(groupId, articleId,
                 WorkflowConstants.STATUS_APPROVED);
 
@@ -805,39 +642,51 @@ public final class ResolverUtil {
     public static long getStructureId(final String structureKey, final long groupId,
             final Class clazz, boolean includeAncestorStructures) throws SystemException, PortalException {
 
+        SetupMetrics.serviceCall("ClassNameLocalService.getClassNameId");
         long classNameId = ClassNameLocalServiceUtil.getClassNameId(clazz);
-        DDMStructure structure = DDMStructureLocalServiceUtil.getStructure(groupId, classNameId,
+        SetupMetrics.serviceCall("DDMStructureLocalService.fetchStructure");
+        DDMStructure structure = DDMStructureLocalServiceUtil.fetchStructure(groupId, classNameId,
                 structureKey, includeAncestorStructures);
+        if (structure == null) {
+            throw new PortalException("No structure " + structureKey + " in group " + groupId);
+        }
         return structure.getStructureId();
     }
 
     public static String getStructureUUID(final String structureKey, final long groupId,
             final Class clazz) throws SystemException, PortalException {
 
+        SetupMetrics.serviceCall("ClassNameLocalService.getClassNameId");
         long classNameId = ClassNameLocalServiceUtil.getClassNameId(clazz);
-        DDMStructure structure = DDMStructureLocalServiceUtil.getStructure(groupId, classNameId,
+        SetupMetrics.serviceCall("DDMStructureLocalService.fetchStructure");
+        DDMStructure structure = DDMStructureLocalServiceUtil.fetchStructure(groupId, classNameId,
                 structureKey);
+        if (structure == null) {
+            throw new PortalException("No structure " + structureKey + " in group " + groupId);
+        }
         return structure.getUuid();
     }
 
     public static long getTemplateId(final String templateKey, final long groupId,
             final Class clazz) throws SystemException, PortalException {
 
+        SetupMetrics.serviceCall("ClassNameLocalService.getClassNameId");
         long classNameId = ClassNameLocalServiceUtil.getClassNameId(clazz);
 
-        DDMTemplate template = DDMTemplateLocalServiceUtil.getTemplate(groupId, classNameId,
+        SetupMetrics.serviceCall("DDMTemplateLocalService.fetchTemplate");
+        DDMTemplate template = DDMTemplateLocalServiceUtil.fetchTemplate(groupId, classNameId,
                 templateKey);
+        if (template == null) {
+            throw new PortalException("No template " + templateKey + " in group " + groupId);
+        }
         return template.getTemplateId();
     }
 
     public static Organization getOrganization(final String name, final long companyId,
             final String locationHint) {
-        Organization o = null;
-        try {
-            o = OrganizationLocalServiceUtil.getOrganization(companyId, name);
-        } catch (PortalException e) {
-            LOG.error("Could not retrieve organization " + name + " in context " + locationHint);
-        } catch (SystemException e) {
+        SetupMetrics.serviceCall("OrganizationLocalService.fetchOrganization");
+        Organization o = OrganizationLocalServiceUtil.fetchOrganization(companyId, name);
+        if (o == null) {
             LOG.error("Could not retrieve organization " + name + " in context " + locationHint);
         }
         return o;
@@ -845,12 +694,9 @@ public final class ResolverUtil {
 
     public static UserGroup getUserGroup(final String name, final long companyId,
             final String locationHint) {
-        UserGroup o = null;
-        try {
-            o = UserGroupLocalServiceUtil.getUserGroup(companyId, name);
-        } catch (PortalException e) {
-            LOG.error("Could not retrieve organization " + name + " in context " + locationHint);
-        } catch (SystemException e) {
+        SetupMetrics.serviceCall("UserGroupLocalService.fetchUserGroup");
+        UserGroup o = UserGroupLocalServiceUtil.fetchUserGroup(companyId, name);
+        if (o == null) {
             LOG.error("Could not retrieve organization " + name + " in context " + locationHint);
         }
         return o;
@@ -865,6 +711,7 @@ public final class ResolverUtil {
         String uuid = "NOT FOUND!!!!";
         try {
             DDMTemplate template = null;
+            SetupMetrics.serviceCall("DDMTemplateLocalService.dynamicQuery");
             templateList = DDMTemplateLocalServiceUtil.dynamicQuery(dq);
             if (templateList != null && templateList.size() > 0 && templateList.get(0) != null) {
                 uuid = templateList.get(0).getUuid();
@@ -896,7 +743,136 @@ public final class ResolverUtil {
     }
 
     private static long getClassId(final String clazzName) {
+        SetupMetrics.serviceCall("ClassNameLocalService.getClassNameId");
         long id = ClassNameLocalServiceUtil.getClassNameId(clazzName);
         return id;
     }
+
+    /**
+     * Receiver of references found by {@link #collectReferences}.
+     */
+    @FunctionalInterface
+    interface ReferenceCollector {
+
+        /**
+         * @param type entity type, one of the {@link ResolutionCache} constants
+         * @param placeholder placeholder name
+         * @param siteGroupId group ID of the site the entity is looked up in
+         * @param key key of the entity within the site
+         */
+        void collect(String type, String placeholder, long siteGroupId, String key);
+    }
+
+    @FunctionalInterface
+    private interface Lookup {
+
+        /**
+         * @return resolved value, or null if the referenced entity does not exist
+         */
+        String lookup(ResolverContext context, long siteGroupId, String key) throws Exception;
+    }
+
+    /**
+     * Resolver of a single token name.
+     */
+    private static final class TokenResolver {
+
+        private final String cacheType;
+        private final boolean trimKey;
+        private final boolean siteScoped;
+        private final String notFoundValue;
+        private final Lookup lookup;
+
+        /**
+         * @param cacheType type of the referred entity in {@link ResolutionCache}, null if not cached
+         * @param trimKey whether the whitespace around the key is removed
+         * @param siteScoped whether the key may start with a ::site name:: reference
+         * @param notFoundValue value used when the entity is not found, null keeps the token as it is
+         * @param lookup the lookup
+         */
+        private TokenResolver(final String cacheType, final boolean trimKey, final boolean siteScoped,
+                final String notFoundValue, final Lookup lookup) {
+            this.cacheType = cacheType;
+            this.trimKey = trimKey;
+            this.siteScoped = siteScoped;
+            this.notFoundValue = notFoundValue;
+            this.lookup = lookup;
+        }
+
+        private String resolve(final ResolverContext context, final String name, final String argument) {
+            SetupMetrics.resolverCall(name);
+            String[] reference = separateReference(argument);
+            long siteGroupId = getSiteGroupId(context, reference[0]);
+            String key = reference[1];
+            try {
+                String resolved = lookup(context, name, siteGroupId, key);
+                if (resolved != null) {
+                    return resolved;
+                }
+                LOG.error("Referred " + name + " " + key + " is not found for " + context.locationHint);
+            } catch (Exception e) {
+                LOG.error("Could not resolve " + name + " " + key + " for " + context.locationHint, e);
+            }
+            return notFoundValue;
+        }
+
+        private void collect(final ResolverContext context, final String name, final String argument,
+                final ReferenceCollector collector) {
+            if (cacheType != null) {
+                String[] reference = separateReference(argument);
+                collector.collect(cacheType, name, getSiteGroupId(context, reference[0]), reference[1]);
+            }
+        }
+
+        /**
+         * @return name of the referred site, empty for current site, and the key of the entity
+         */
+        private String[] separateReference(final String argument) {
+            String key = trimKey ? argument.trim() : argument;
+            if (siteScoped) {
+                return separateSiteRef(key);
+            }
+            return new String[] {"", key};
+        }
+
+        private long getSiteGroupId(final ResolverContext context, final String siteName) {
+            // by default the referred entity is looked up in current site
+            if (siteName.equals("")) {
+                return context.groupId;
+            }
+            return getSiteGroupIdByName(siteName, context.company, context.locationHint);
+        }
+
+        private String lookup(final ResolverContext context, final String name, final long siteGroupId,
+                final String key) throws Exception {
+            if (cacheType == null) {
+                return lookup.lookup(context, siteGroupId, key);
+            }
+            // entities not scoped by a site are looked up in the whole company
+            long cacheSiteGroupId = siteScoped ? siteGroupId : 0;
+            return ResolutionCache.get(cacheType, name, cacheSiteGroupId, key,
+                    () -> lookup.lookup(context, siteGroupId, key));
+        }
+    }
+
+    /**
+     * Parameters of a single lookupAll call.
+     */
+    private static final class ResolverContext {
+
+        private final long runAsUserId;
+        private final long groupId;
+        private final long company;
+        private final long repoId;
+        private final String locationHint;
+
+        private ResolverContext(final long runAsUserId, final long groupId, final long company, final long repoId,
+                final String locationHint) {
+            this.runAsUserId = runAsUserId;
+            this.groupId = groupId;
+            this.company = company;
+            this.repoId = repoId;
+            this.locationHint = locationHint;
+        }
+    }
 }
@@ -0,0 +1,48 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2020 Lundegaard a.s.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package eu.lundegaard.liferay.db.setup.core.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Source of the files referenced by a setup, e.g. article contents, templates and documents. Registered by
+ * {@link ResourcesUtil#setResourceProvider(ResourceProvider)}, the class loader of this library is used by default.
+ */
+public interface ResourceProvider {
+
+    /**
+     * @param path path of the resource as written in the setup
+     * @return stream of the resource, null if it does not exist
+     */
+    InputStream getStream(String path) throws IOException;
+
+    /**
+     * @param path path of the resource as written in the setup
+     * @return size of the resource in bytes, -1 if it is not known without reading the resource
+     */
+    default long getSize(final String path) throws IOException {
+        return -1;
+    }
+}
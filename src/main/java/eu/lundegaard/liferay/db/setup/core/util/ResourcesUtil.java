@@ -32,14 +32,44 @@ import java.io.InputStream;
  */
 public class ResourcesUtil {
 
+    private static volatile ResourceProvider resourceProvider = new ClassLoaderResourceProvider();
+
+    /**
+     * Replaces the source of the files referenced by setups, e.g. by a {@link MappedDirectoryResourceProvider}.
+     *
+     * @param provider resource provider, null restores the default one reading from the class loader of this library
+     */
+    public static void setResourceProvider(final ResourceProvider provider) {
+        resourceProvider = provider == null ? new ClassLoaderResourceProvider() : provider;
+    }
+
+    public static ResourceProvider getResourceProvider() {
+        return resourceProvider;
+    }
+
     public static InputStream getFileStream(String path) {
+        try {
+            return resourceProvider.getStream(path);
+        } catch (IOException e) {
+            return null;
+        }
+    }
 
-        ClassLoader cl = ResourcesUtil.class.getClassLoader();
-        return cl.getResourceAsStream(path);
+    /**
+     * @return size of the file in bytes, -1 if it is not known without reading the file
+     */
+    public static long getFileSize(String path) throws IOException {
+        return resourceProvider.getSize(path);
     }
 
     public static byte[] getFileBytes(String path) throws IOException {
-        return FileUtil.getBytes(getFileStream(path));
+        InputStream stream = resourceProvider.getStream(path);
+        if (stream == null) {
+            throw new IOException("Resource not found: " + path);
+        }
+        try (InputStream in = stream) {
+            return FileUtil.getBytes(in);
+        }
     }
 
     public static String getFileContent(String path) throws IOException {
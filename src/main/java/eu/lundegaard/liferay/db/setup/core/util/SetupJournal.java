@@ -0,0 +1,276 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2020 Lundegaard a.s.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package eu.lundegaard.liferay.db.setup.core.util;
+
+import com.liferay.portal.kernel.log.Log;
+import com.liferay.portal.kernel.log.LogFactoryUtil;
+import com.liferay.portal.kernel.util.PropsKeys;
+import com.liferay.portal.kernel.util.PropsUtil;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Journal of the units (roles, users, sites, pages, articles, documents, ...) completed by a setup run, stored in a
+ * file named by the checksum of the setup file under {@code ${liferay.home}/data/db-setup}. When a run is interrupted,
+ * e.g. by a restart of the node, the journal is kept and the next run of the same setup file skips the units which
+ * have already been completed. The journal is deleted when the run finishes.
+ * <p>
+ * Every completed unit is appended to the file at once, so at most the units in progress are set up again.
+ */
+public final class SetupJournal {
+
+    public static final String DELETE_OBJECTS = "delete-objects";
+    public static final String ROLE = "role";
+    public static final String USER = "user";
+    public static final String SITE = "site";
+    public static final String PAGES_DELETED = "pages-deleted";
+    public static final String PAGE = "page";
+    public static final String ARTICLE = "article";
+    public static final String DOCUMENT = "document";
+    // not a completed unit, an entity changed by the run whose reindexing has been deferred
+    public static final String REINDEX = "reindex";
+
+    private static final Log LOG = LogFactoryUtil.getLog(SetupJournal.class);
+    private static final String JOURNAL_DIRECTORY = "data/db-setup";
+    private static final String JOURNAL_SUFFIX = ".journal";
+    private static final String CHECKSUM_ALGORITHM = "SHA-256";
+    private static final char SEPARATOR = '\t';
+
+    private static final Set<String> COMPLETED = ConcurrentHashMap.newKeySet();
+    // units completed in a transaction of the calling thread which has not been committed yet
+    private static final ThreadLocal<List<String>> PENDING = new ThreadLocal<>();
+    private static File journalFile;
+    private static OutputStream journal;
+
+    private SetupJournal() {
+
+    }
+
+    /**
+     * Opens the journal of a setup file, units recorded by an interrupted run of the same file are reported as
+     * completed.
+     *
+     * @param checksum checksum of the setup file, see {@link #checksum(DigestInputStream)}
+     */
+    public static synchronized void open(final String checksum) {
+        close();
+        File directory = new File(PropsUtil.get(PropsKeys.LIFERAY_HOME), JOURNAL_DIRECTORY);
+        File file = new File(directory, checksum + JOURNAL_SUFFIX);
+        try {
+            Files.createDirectories(directory.toPath());
+            if (file.exists()) {
+                readCompleted(file);
+                LOG.info("Resuming interrupted setup, " + COMPLETED.size() + " units are already completed");
+            }
+            journal = new FileOutputStream(file, true);
+            journalFile = file;
+        } catch (IOException e) {
+            LOG.warn("Cannot open setup journal " + file + ", the setup cannot be resumed if it is interrupted", e);
+            COMPLETED.clear();
+        }
+    }
+
+    /**
+     * Closes the journal of a successfully finished run and deletes it.
+     */
+    public static synchronized void complete() {
+        File file = journalFile;
+        close();
+        if (file != null && !file.delete()) {
+            LOG.warn("Cannot delete setup journal " + file);
+        }
+    }
+
+    /**
+     * Closes the journal and keeps it, so the next run of the same setup file resumes.
+     */
+    public static synchronized void close() {
+        COMPLETED.clear();
+        journalFile = null;
+        if (journal != null) {
+            try {
+                journal.close();
+            } catch (IOException e) {
+                LOG.warn("Cannot close setup journal", e);
+            }
+            journal = null;
+        }
+    }
+
+    /**
+     * @param unit type of the unit, one of the constants of this class
+     * @param key identity of the unit within the setup
+     * @return whether the unit has been completed by an interrupted run of the setup
+     */
+    public static boolean isCompleted(final String unit, final String key) {
+        return !COMPLETED.isEmpty() && COMPLETED.contains(entry(unit, key));
+    }
+
+    /**
+     * @param unit type of the units, one of the constants of this class
+     * @return keys of the units of the type recorded by an interrupted run of the setup
+     */
+    public static List<String> getCompleted(final String unit) {
+        String prefix = entry(unit, "");
+        List<String> keys = new ArrayList<>();
+        for (String entry : COMPLETED) {
+            if (entry.startsWith(prefix)) {
+                keys.add(entry.substring(prefix.length()));
+            }
+        }
+        return keys;
+    }
+
+    /**
+     * Records a completed unit, does nothing if no journal is open. Within a batch, the unit is recorded when the batch
+     * is committed.
+     */
+    public static void markCompleted(final String unit, final String key) {
+        List<String> pending = PENDING.get();
+        if (pending != null) {
+            pending.add(entry(unit, key));
+        } else {
+            write(entry(unit, key));
+        }
+    }
+
+    /**
+     * Starts a batch of units set up in one transaction by the calling thread.
+     */
+    public static void beginBatch() {
+        PENDING.set(new ArrayList<>());
+    }
+
+    /**
+     * Records the units of the batch after its transaction has been committed.
+     */
+    public static void commitBatch() {
+        List<String> pending = PENDING.get();
+        PENDING.remove();
+        if (pending != null) {
+            pending.forEach(SetupJournal::write);
+        }
+    }
+
+    /**
+     * Forgets the units of a rolled back batch, does nothing if the batch has been committed.
+     */
+    public static void discardBatch() {
+        PENDING.remove();
+    }
+
+    private static synchronized void write(final String entry) {
+        if (journal == null) {
+            return;
+        }
+        try {
+            journal.write((entry + '\n').getBytes(StandardCharsets.UTF_8));
+        } catch (IOException e) {
+            LOG.warn("Cannot write setup journal " + journalFile, e);
+        }
+    }
+
+    /**
+     * @return identity of a unit composed of the parts
+     */
+    public static String key(final Object... parts) {
+        StringBuilder key = new StringBuilder();
+        for (Object part : parts) {
+            if (key.length() > 0) {
+                key.append(SEPARATOR);
+            }
+            key.append(part);
+        }
+        return key.toString();
+    }
+
+    /**
+     * Wraps the setup stream, so its checksum can be computed by {@link #checksum(DigestInputStream)} once it is
+     * parsed. Closing the returned stream does not close the setup stream.
+     */
+    public static DigestInputStream digesting(final InputStream setupStream) {
+        try {
+            InputStream unclosable = new FilterInputStream(setupStream) {
+
+                @Override
+                public void close() {
+                    // the parser may close the stream before it is read to the end
+                }
+            };
+            return new DigestInputStream(unclosable, MessageDigest.getInstance(CHECKSUM_ALGORITHM));
+        } catch (NoSuchAlgorithmException e) {
+            // every Java platform is required to support SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Reads the rest of the stream and returns the checksum of everything read from it.
+     *
+     * @return hex encoded checksum
+     */
+    public static String checksum(final DigestInputStream stream) throws IOException {
+        byte[] buffer = new byte[8192];
+        while (stream.read(buffer) != -1) {
+            // only digested
+        }
+        StringBuilder checksum = new StringBuilder();
+        for (byte b : stream.getMessageDigest().digest()) {
+            checksum.append(String.format("%02x", b));
+        }
+        return checksum.toString();
+    }
+
+    private static void readCompleted(final File file) throws IOException {
+        try (BufferedReader reader = new BufferedReader(
+                new InputStreamReader(Files.newInputStream(file.toPath()), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (!line.isEmpty()) {
+                    COMPLETED.add(line);
+                }
+            }
+        }
+    }
+
+    private static String entry(final String unit, final String key) {
+        // a line of the journal file per unit
+        return unit + SEPARATOR + key.replace('\n', ' ').replace('\r', ' ');
+    }
+}
@@ -0,0 +1,170 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2020 Lundegaard a.s.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package eu.lundegaard.liferay.db.setup.core.util;
+
+import com.liferay.portal.kernel.log.Log;
+import com.liferay.portal.kernel.log.LogFactoryUtil;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Collects the metrics of a setup run: wall time and number of entities of every section, service calls per
+ * {@code *LocalService} method and resolver calls per placeholder. When the run finishes, a
+ * {@link SetupMetricsReport} is passed to the registered {@link SetupMetricsListener}s, by default to the
+ * {@link SummaryMetricsListener} which logs it.
+ */
+public final class SetupMetrics {
+
+    private static final Log LOG = LogFactoryUtil.getLog(SetupMetrics.class);
+
+    private static final List<SetupMetricsListener> LISTENERS =
+            new CopyOnWriteArrayList<>(Collections.singletonList(new SummaryMetricsListener()));
+    // section name -> wall time in nanoseconds and number of entities, in the order the sections were started
+    private static final Map<String, long[]> SECTIONS = Collections.synchronizedMap(new LinkedHashMap<>());
+    private static final Map<String, LongAdder> SERVICE_CALLS = new ConcurrentHashMap<>();
+    private static final Map<String, LongAdder> RESOLVER_CALLS = new ConcurrentHashMap<>();
+
+    private static volatile long runStart;
+
+    private SetupMetrics() {
+
+    }
+
+    public static void addListener(final SetupMetricsListener listener) {
+        LISTENERS.add(listener);
+    }
+
+    public static void removeListener(final SetupMetricsListener listener) {
+        LISTENERS.remove(listener);
+    }
+
+    /**
+     * Starts collecting the metrics of a new run.
+     */
+    public static void start() {
+        SECTIONS.clear();
+        SERVICE_CALLS.clear();
+        RESOLVER_CALLS.clear();
+        runStart = System.nanoTime();
+    }
+
+    /**
+     * Starts measuring a section, the measurement ends when the returned section is closed. Sections with the same
+     * name, e.g. the pages of different sites, are summed up.
+     *
+     * @param name name of the section
+     * @param entities number of entities set up by the section
+     */
+    public static Section section(final String name, final int entities) {
+        return new Section(name, entities);
+    }
+
+    /**
+     * Counts a call of a local service method. Every local service call of the setup handlers and utilities is
+     * counted right before it is made. Calls made by Liferay itself, e.g. by the called services, indexers, expando
+     * bridges or {@code PortalUtil}, are not counted, neither are the read-only queries of the dry-run planner, which
+     * runs outside of a setup run.
+     *
+     * @param method service and method name, e.g. RoleLocalService.getRole
+     */
+    public static void serviceCall(final String method) {
+        SERVICE_CALLS.computeIfAbsent(method, key -> new LongAdder()).increment();
+    }
+
+    /**
+     * Counts a resolved placeholder.
+     *
+     * @param placeholder name of the placeholder
+     */
+    public static void resolverCall(final String placeholder) {
+        RESOLVER_CALLS.computeIfAbsent(placeholder, key -> new LongAdder()).increment();
+    }
+
+    /**
+     * Finishes the run and passes its report to the listeners, must be called before {@link ResolutionCache#stop()}.
+     */
+    public static void finish() {
+        SetupMetricsReport report = new SetupMetricsReport(System.nanoTime() - runStart, copySections(),
+                sum(SERVICE_CALLS), sum(RESOLVER_CALLS), ResolutionCache.getHits(), ResolutionCache.getMisses(),
+                ResolutionCache.getPrefetchHits(), SiteGroupIdCache.getHits(), SiteGroupIdCache.getMisses());
+        for (SetupMetricsListener listener : LISTENERS) {
+            try {
+                listener.runFinished(report);
+            } catch (RuntimeException e) {
+                LOG.warn("Setup metrics listener " + listener + " failed", e);
+            }
+        }
+    }
+
+    private static Map<String, long[]> copySections() {
+        Map<String, long[]> sections = new LinkedHashMap<>();
+        synchronized (SECTIONS) {
+            SECTIONS.forEach((name, section) -> sections.put(name, section.clone()));
+        }
+        return sections;
+    }
+
+    private static Map<String, Long> sum(final Map<String, LongAdder> counters) {
+        Map<String, Long> sums = new LinkedHashMap<>();
+        counters.forEach((key, counter) -> sums.put(key, counter.sum()));
+        return sums;
+    }
+
+    /**
+     * Measurement of a single section.
+     */
+    public static final class Section implements AutoCloseable {
+
+        private final String name;
+        private final int entities;
+        private final long start = System.nanoTime();
+
+        private Section(final String name, final int entities) {
+            this.name = name;
+            this.entities = entities;
+        }
+
+        @Override
+        public void close() {
+            long wallTime = System.nanoTime() - start;
+            synchronized (SECTIONS) {
+                long[] section = SECTIONS.computeIfAbsent(name, key -> new long[2]);
+                section[0] += wallTime;
+                section[1] += entities;
+            }
+            for (SetupMetricsListener listener : LISTENERS) {
+                try {
+                    listener.sectionFinished(name, wallTime, entities);
+                } catch (RuntimeException e) {
+                    LOG.warn("Setup metrics listener " + listener + " failed", e);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,163 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2020 Lundegaard a.s.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package eu.lundegaard.liferay.db.setup.core.util;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Metrics of a finished setup run.
+ */
+public final class SetupMetricsReport {
+
+    private final long wallTimeNanos;
+    private final Map<String, Long> sectionWallTimeMillis = new LinkedHashMap<>();
+    private final Map<String, Long> sectionEntities = new LinkedHashMap<>();
+    private final Map<String, Long> serviceCalls;
+    private final Map<String, Long> resolverCalls;
+    private final long resolutionCacheHits;
+    private final long resolutionCacheMisses;
+    private final long prefetchHits;
+    private final long siteGroupIdCacheHits;
+    private final long siteGroupIdCacheMisses;
+
+    SetupMetricsReport(final long wallTimeNanos, final Map<String, long[]> sections,
+            final Map<String, Long> serviceCalls, final Map<String, Long> resolverCalls,
+            final long resolutionCacheHits, final long resolutionCacheMisses, final long prefetchHits,
+            final long siteGroupIdCacheHits, final long siteGroupIdCacheMisses) {
+        this.wallTimeNanos = wallTimeNanos;
+        sections.forEach((name, section) -> {
+            sectionWallTimeMillis.put(name, section[0] / 1_000_000);
+            sectionEntities.put(name, section[1]);
+        });
+        this.serviceCalls = serviceCalls;
+        this.resolverCalls = resolverCalls;
+        this.resolutionCacheHits = resolutionCacheHits;
+        this.resolutionCacheMisses = resolutionCacheMisses;
+        this.prefetchHits = prefetchHits;
+        this.siteGroupIdCacheHits = siteGroupIdCacheHits;
+        this.siteGroupIdCacheMisses = siteGroupIdCacheMisses;
+    }
+
+    public long getWallTimeMillis() {
+        return wallTimeNanos / 1_000_000;
+    }
+
+    /**
+     * @return section name -> wall time in milliseconds, summed up over concurrently set up sites
+     */
+    public Map<String, Long> getSectionWallTimeMillis() {
+        return Collections.unmodifiableMap(sectionWallTimeMillis);
+    }
+
+    /**
+     * @return section name -> number of entities set up
+     */
+    public Map<String, Long> getSectionEntities() {
+        return Collections.unmodifiableMap(sectionEntities);
+    }
+
+    /**
+     * @return service and method name -> number of calls
+     */
+    public Map<String, Long> getServiceCalls() {
+        return Collections.unmodifiableMap(serviceCalls);
+    }
+
+    public long getTotalServiceCalls() {
+        return sum(serviceCalls);
+    }
+
+    /**
+     * @return placeholder name -> number of resolved placeholders
+     */
+    public Map<String, Long> getResolverCalls() {
+        return Collections.unmodifiableMap(resolverCalls);
+    }
+
+    public long getTotalResolverCalls() {
+        return sum(resolverCalls);
+    }
+
+    public long getResolutionCacheHits() {
+        return resolutionCacheHits;
+    }
+
+    public long getResolutionCacheMisses() {
+        return resolutionCacheMisses;
+    }
+
+    /**
+     * @return misses of the resolution cache served by prefetched entities
+     */
+    public long getPrefetchHits() {
+        return prefetchHits;
+    }
+
+    public double getResolutionCacheHitRate() {
+        return hitRate(resolutionCacheHits, resolutionCacheMisses);
+    }
+
+    public long getSiteGroupIdCacheHits() {
+        return siteGroupIdCacheHits;
+    }
+
+    public long getSiteGroupIdCacheMisses() {
+        return siteGroupIdCacheMisses;
+    }
+
+    public double getSiteGroupIdCacheHitRate() {
+        return hitRate(siteGroupIdCacheHits, siteGroupIdCacheMisses);
+    }
+
+    @Override
+    public String toString() {
+        String nl = System.lineSeparator();
+        StringBuilder sb = new StringBuilder("Setup finished in ").append(getWallTimeMillis()).append(" ms");
+        sectionWallTimeMillis.forEach((name, millis) -> sb.append(nl).append("  ").append(name).append(": ")
+                .append(millis).append(" ms, ").append(sectionEntities.get(name)).append(" entities"));
+        sb.append(nl).append("Service calls: ").append(getTotalServiceCalls());
+        serviceCalls.forEach((method, calls) -> sb.append(nl).append("  ").append(method).append(": ").append(calls));
+        sb.append(nl).append("Resolved placeholders: ").append(getTotalResolverCalls()).append(' ')
+                .append(resolverCalls);
+        sb.append(nl).append(String.format("Resolution cache: %d hits, %d misses (%d prefetched), hit rate %.1f %%",
+                resolutionCacheHits, resolutionCacheMisses, prefetchHits, getResolutionCacheHitRate() * 100));
+        sb.append(nl).append(String.format("Site group ID cache: %d hits, %d misses, hit rate %.1f %%",
+                siteGroupIdCacheHits, siteGroupIdCacheMisses, getSiteGroupIdCacheHitRate() * 100));
+        return sb.toString();
+    }
+
+    private static long sum(final Map<String, Long> counts) {
+        long sum = 0;
+        for (long count : counts.values()) {
+            sum += count;
+        }
+        return sum;
+    }
+
+    private static double hitRate(final long hits, final long misses) {
+        return hits + misses == 0 ? 0 : (double) hits / (hits + misses);
+    }
+}
@@ -0,0 +1,110 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2020 Lundegaard a.s.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package eu.lundegaard.liferay.db.setup.core.util;
+
+import com.liferay.portal.kernel.log.Log;
+import com.liferay.portal.kernel.log.LogFactoryUtil;
+import com.liferay.portal.kernel.model.User;
+import com.liferay.portal.kernel.security.auth.CompanyThreadLocal;
+import com.liferay.portal.kernel.security.auth.PrincipalThreadLocal;
+import com.liferay.portal.kernel.security.permission.PermissionChecker;
+import com.liferay.portal.kernel.security.permission.PermissionCheckerFactoryUtil;
+import com.liferay.portal.kernel.security.permission.PermissionThreadLocal;
+import java.util.concurrent.Callable;
+
+/**
+ * Snapshot of the thread locals a setup relies on (company, principal and permission checker). Tasks wrapped by the
+ * snapshot run with the same context on any worker thread, the previous context of the worker is restored afterwards.
+ */
+public final class SetupThreadContext {
+
+    private static final Log LOG = LogFactoryUtil.getLog(SetupThreadContext.class);
+
+    private final Long companyId;
+    private final String principalName;
+    private final User permissionUser;
+
+    private SetupThreadContext(final Long companyId, final String principalName, final User permissionUser) {
+        this.companyId = companyId;
+        this.principalName = principalName;
+        this.permissionUser = permissionUser;
+    }
+
+    /**
+     * @return context of the calling thread
+     */
+    public static SetupThreadContext capture() {
+        PermissionChecker permissionChecker = PermissionThreadLocal.getPermissionChecker();
+        User permissionUser = permissionChecker == null ? null : permissionChecker.getUser();
+        return new SetupThreadContext(CompanyThreadLocal.getCompanyId(), PrincipalThreadLocal.getName(),
+                permissionUser);
+    }
+
+    public Runnable wrap(final Runnable task) {
+        return () -> {
+            SetupThreadContext previous = capture();
+            PermissionChecker previousPermissionChecker = PermissionThreadLocal.getPermissionChecker();
+            apply();
+            try {
+                task.run();
+            } finally {
+                previous.restore(previousPermissionChecker);
+            }
+        };
+    }
+
+    public <T> Callable<T> wrap(final Callable<T> task) {
+        return () -> {
+            SetupThreadContext previous = capture();
+            PermissionChecker previousPermissionChecker = PermissionThreadLocal.getPermissionChecker();
+            apply();
+            try {
+                return task.call();
+            } finally {
+                previous.restore(previousPermissionChecker);
+            }
+        };
+    }
+
+    private void apply() {
+        CompanyThreadLocal.setCompanyId(companyId);
+        PrincipalThreadLocal.setName(principalName);
+        if (permissionUser == null) {
+            PermissionThreadLocal.setPermissionChecker(null);
+            return;
+        }
+        // permission checkers cache per request state, every thread gets its own one
+        try {
+            PermissionThreadLocal.setPermissionChecker(PermissionCheckerFactoryUtil.create(permissionUser));
+        } catch (Exception e) {
+            LOG.error("Cannot create permission checker for user " + permissionUser.getUserId(), e);
+        }
+    }
+
+    private void restore(final PermissionChecker permissionChecker) {
+        CompanyThreadLocal.setCompanyId(companyId);
+        PrincipalThreadLocal.setName(principalName);
+        PermissionThreadLocal.setPermissionChecker(permissionChecker);
+    }
+}
@@ -0,0 +1,154 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2020 Lundegaard a.s.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package eu.lundegaard.liferay.db.setup.core.util;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bounded cache of site group IDs by company and site name, used by {@link ResolverUtil#getSiteGroupIdByName}. The
+ * least recently used entries are evicted when the cache is full. Setup handlers invalidate entries of sites they
+ * create, rename or delete.
+ */
+public final class SiteGroupIdCache {
+
+    private static final int MAX_ENTRIES = 1024;
+
+    private static final Map<Key, Long> ENTRIES = new LinkedHashMap<Key, Long>(64, 0.75f, true) {
+
+        @Override
+        protected boolean removeEldestEntry(final Map.Entry<Key, Long> eldest) {
+            return size() > MAX_ENTRIES;
+        }
+    };
+    private static final LongAdder HITS = new LongAdder();
+    private static final LongAdder MISSES = new LongAdder();
+
+    private SiteGroupIdCache() {
+
+    }
+
+    /**
+     * @return cached group ID of the site, or null if it is not cached
+     */
+    public static Long get(final long companyId, final String siteName) {
+        Long groupId;
+        synchronized (ENTRIES) {
+            groupId = ENTRIES.get(new Key(companyId, siteName));
+        }
+        if (groupId == null) {
+            MISSES.increment();
+        } else {
+            HITS.increment();
+        }
+        return groupId;
+    }
+
+    public static void put(final long companyId, final String siteName, final long groupId) {
+        synchronized (ENTRIES) {
+            ENTRIES.put(new Key(companyId, siteName), groupId);
+        }
+    }
+
+    /**
+     * Removes the entry of a site with given name, e.g. when the site is created.
+     */
+    public static void invalidate(final long companyId, final String siteName) {
+        synchronized (ENTRIES) {
+            ENTRIES.remove(new Key(companyId, siteName));
+        }
+    }
+
+    /**
+     * Removes all entries pointing to given group, e.g. when the site is renamed or deleted.
+     */
+    public static void invalidateGroup(final long companyId, final long groupId) {
+        synchronized (ENTRIES) {
+            Iterator<Map.Entry<Key, Long>> iterator = ENTRIES.entrySet().iterator();
+            while (iterator.hasNext()) {
+                Map.Entry<Key, Long> entry = iterator.next();
+                if (entry.getKey().companyId == companyId && entry.getValue() == groupId) {
+                    iterator.remove();
+                }
+            }
+        }
+    }
+
+    /**
+     * Removes all entries, e.g. after a rollback.
+     */
+    public static void invalidateAll() {
+        synchronized (ENTRIES) {
+            ENTRIES.clear();
+        }
+    }
+
+    /**
+     * Removes all entries and resets the statistics, at the start of a setup run.
+     */
+    public static void clear() {
+        invalidateAll();
+        HITS.reset();
+        MISSES.reset();
+    }
+
+    public static long getHits() {
+        return HITS.sum();
+    }
+
+    public static long getMisses() {
+        return MISSES.sum();
+    }
+
+    private static final class Key {
+
+        private final long companyId;
+        private final String siteName;
+
+        private Key(final long companyId, final String siteName) {
+            this.companyId = companyId;
+            this.siteName = siteName;
+        }
+
+        @Override
+        public boolean equals(final Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return companyId == other.companyId && siteName.equals(other.siteName);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(companyId, siteName);
+        }
+    }
+}
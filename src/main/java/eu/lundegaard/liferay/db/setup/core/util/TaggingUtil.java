@@ -23,7 +23,6 @@
  */
 package eu.lundegaard.liferay.db.setup.core.util;
 
-import com.liferay.asset.kernel.exception.NoSuchTagException;
 import com.liferay.asset.kernel.model.AssetEntry;
 import com.liferay.asset.kernel.model.AssetTag;
 import com.liferay.asset.kernel.service.AssetEntryLocalServiceUtil;
@@ -50,26 +49,45 @@ public final class TaggingUtil {
     public static void associateTagsAndCategories(long groupId, Article article, JournalArticle journalArticle)
             throws PortalException {
 
-        List<Tag> tags = article.getTag();
-        String[] tagNames = null;
-        if (tags != null) {
-            tagNames = tags.stream().map(Tag::getName).toArray(String[]::new);
-        }
+        associateTagsAndCategories(groupId, article, journalArticle,
+                getCategoryIds(groupId, journalArticle.getCompanyId(), article));
+    }
 
-        long[] categoryIds = article.getCategory().stream()
-                .map(category -> ResolverUtil.lookupAll(LiferaySetup.getRunAsUserId(), groupId,
-                        journalArticle.getCompanyId(),
-                        category.getId(), article.getPath()))
-                .filter(categoryString -> Validator.isNumber(categoryString))
-                .mapToLong(categoryString -> Long.parseLong(categoryString)).toArray();
+    /**
+     * @param categoryIds IDs of the article categories, as returned by {@link #getCategoryIds}
+     */
+    public static void associateTagsAndCategories(long groupId, Article article, JournalArticle journalArticle,
+            long[] categoryIds) throws PortalException {
 
+        String[] tagNames = getTagNames(article);
 
+        SetupMetrics.serviceCall("AssetEntryLocalService.getEntry");
         AssetEntry entry = AssetEntryLocalServiceUtil.getEntry(JournalArticle.class.getName(),
                 journalArticle.getResourcePrimKey());
+        SetupMetrics.serviceCall("AssetEntryLocalService.updateEntry");
         AssetEntryLocalServiceUtil.updateEntry(LiferaySetup.getRunAsUserId(), groupId, JournalArticle.class.getName(),
                 entry.getClassPK(), categoryIds, tagNames);
     }
 
+    public static String[] getTagNames(final Article article) {
+        List<Tag> tags = article.getTag();
+        if (tags == null) {
+            return null;
+        }
+        return tags.stream().map(Tag::getName).toArray(String[]::new);
+    }
+
+    /**
+     * Resolves the category references of the article, unresolved references are left out.
+     */
+    public static long[] getCategoryIds(final long groupId, final long companyId, final Article article) {
+        return article.getCategory().stream()
+                .map(category -> ResolverUtil.lookupAll(LiferaySetup.getRunAsUserId(), groupId, companyId,
+                        category.getId(), article.getPath()))
+                .filter(categoryString -> Validator.isNumber(categoryString))
+                .mapToLong(categoryString -> Long.parseLong(categoryString)).toArray();
+    }
+
     /*
      * public static void associateCategories(long groupId, Article article,
      * JournalArticle journalArticle) {
@@ -91,6 +109,7 @@ public final class TaggingUtil {
             if (categories != null) {
                 catIds = getCategories(categories, groupId, userId);
             }
+            SetupMetrics.serviceCall("AssetEntryLocalService.updateEntry");
             AssetEntryLocalServiceUtil.updateEntry(userId, groupId, JournalArticle.class.getName(),
                     primaryKey, catIds, tags.toArray(new String[tags.size()]));
         } catch (PortalException | SystemException e) {
@@ -106,17 +125,15 @@ public final class TaggingUtil {
         for (int i = 0; i < categories.size(); ++i) {
             final String name = categories.get(i);
 
-            AssetTag assetTag = null;
-            try {
-                assetTag = AssetTagLocalServiceUtil.getTag(groupId, name);
-            } catch (final NoSuchTagException e) {
+            SetupMetrics.serviceCall("AssetTagLocalService.fetchTag");
+            AssetTag assetTag = AssetTagLocalServiceUtil.fetchTag(groupId, name);
+            if (assetTag == null) {
                 try {
+                    SetupMetrics.serviceCall("AssetTagLocalService.addTag");
                     assetTag = AssetTagLocalServiceUtil.addTag(runAsUser, groupId, name, new ServiceContext());
-                } catch (PortalException | SystemException e1) {
-                    LOG.error("Category " + name + " not found! ", e1);
+                } catch (PortalException | SystemException e) {
+                    LOG.error("Category " + name + " not found! ", e);
                 }
-            } catch (PortalException | SystemException e) {
-                LOG.error("Category " + name + " not found! ", e);
             }
 
             assetCategoryIds[i] = assetTag.getTagId();
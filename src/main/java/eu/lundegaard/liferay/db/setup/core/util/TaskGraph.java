@@ -0,0 +1,137 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2020 Lundegaard a.s.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package eu.lundegaard.liferay.db.setup.core.util;
+
+import com.liferay.portal.kernel.log.Log;
+import com.liferay.portal.kernel.log.LogFactoryUtil;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Directed acyclic graph of named tasks. A task starts as soon as all tasks it depends on are finished, independent
+ * tasks run concurrently. Dependencies have to be added before their dependents, so the graph cannot contain a cycle.
+ * When a task fails, the tasks depending on it are skipped and all the other tasks still run.
+ */
+public final class TaskGraph {
+
+    private static final Log LOG = LogFactoryUtil.getLog(TaskGraph.class);
+
+    private final Map<String, Node> nodes = new LinkedHashMap<>();
+
+    /**
+     * @param name unique name of the task
+     * @param task the task
+     * @param dependencies names of tasks which have to finish before this one starts
+     * @return this graph
+     */
+    public TaskGraph add(final String name, final Runnable task, final String... dependencies) {
+        if (nodes.containsKey(name)) {
+            throw new IllegalArgumentException("Task " + name + " is already defined");
+        }
+        List<Node> dependencyNodes = new ArrayList<>();
+        for (String dependency : dependencies) {
+            Node node = nodes.get(dependency);
+            if (node == null) {
+                throw new IllegalArgumentException("Task " + name + " depends on unknown task " + dependency);
+            }
+            dependencyNodes.add(node);
+        }
+        nodes.put(name, new Node(name, task, dependencyNodes));
+        return this;
+    }
+
+    /**
+     * Runs the graph with at most given number of worker threads, each carrying the {@link SetupThreadContext} of the
+     * calling thread, and waits until all tasks are finished or skipped.
+     *
+     * @param parallelism maximum number of worker threads
+     * @param threadNamePrefix prefix of the worker thread names
+     * @throws ExecutionException failure of the first failed task in the order the tasks were added
+     */
+    public void run(final int parallelism, final String threadNamePrefix) throws ExecutionException {
+        SetupThreadContext context = SetupThreadContext.capture();
+        ExecutorService executor = ConcurrencyUtil.newFixedThreadPool(Math.max(1, parallelism), threadNamePrefix);
+        try {
+            Map<Node, CompletableFuture<Void>> futures = new LinkedHashMap<>();
+            for (Node node : nodes.values()) {
+                Runnable task = context.wrap(node.task);
+                CompletableFuture<Void> future;
+                if (node.dependencies.isEmpty()) {
+                    future = CompletableFuture.runAsync(task, executor);
+                } else {
+                    CompletableFuture<?>[] dependencies = node.dependencies.stream()
+                            .map(futures::get)
+                            .toArray(CompletableFuture[]::new);
+                    future = CompletableFuture.allOf(dependencies).thenRunAsync(task, executor);
+                }
+                futures.put(node, future);
+            }
+
+            Throwable failure = null;
+            Set<Throwable> reported = Collections.newSetFromMap(new IdentityHashMap<>());
+            for (Map.Entry<Node, CompletableFuture<Void>> entry : futures.entrySet()) {
+                try {
+                    entry.getValue().join();
+                } catch (CompletionException e) {
+                    Throwable cause = e.getCause() != null ? e.getCause() : e;
+                    if (failure == null) {
+                        failure = cause;
+                    }
+                    if (reported.add(cause)) {
+                        LOG.error("Task " + entry.getKey().name + " failed", cause);
+                    } else {
+                        LOG.warn("Task " + entry.getKey().name + " skipped, because a task it depends on failed");
+                    }
+                }
+            }
+            if (failure != null) {
+                throw new ExecutionException(failure);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static final class Node {
+
+        private final String name;
+        private final Runnable task;
+        private final List<Node> dependencies;
+
+        private Node(final String name, final Runnable task, final List<Node> dependencies) {
+            this.name = name;
+            this.task = task;
+            this.dependencies = dependencies;
+        }
+    }
+}
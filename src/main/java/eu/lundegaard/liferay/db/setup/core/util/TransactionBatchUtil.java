@@ -0,0 +1,136 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2020 Lundegaard a.s.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package eu.lundegaard.liferay.db.setup.core.util;
+
+import com.liferay.portal.kernel.log.Log;
+import com.liferay.portal.kernel.log.LogFactoryUtil;
+import com.liferay.portal.kernel.transaction.Propagation;
+import com.liferay.portal.kernel.transaction.TransactionConfig;
+import com.liferay.portal.kernel.transaction.TransactionInvokerUtil;
+import java.util.List;
+
+/**
+ * Groups the service calls of several setup units (roles, users, pages, ...) into one transaction, so they are
+ * committed at once instead of one by one. If a batch fails, its changes are rolled back and it is split in halves
+ * which are retried, a single unit is set up without a surrounding transaction, as if batching were disabled.
+ * <p>
+ * Units of a batch started within another batch join its transaction.
+ */
+public final class TransactionBatchUtil {
+
+    private static final Log LOG = LogFactoryUtil.getLog(TransactionBatchUtil.class);
+    private static final TransactionConfig TRANSACTION_CONFIG =
+            TransactionConfig.Factory.create(Propagation.REQUIRED, new Class<?>[] {Exception.class});
+    private static final ThreadLocal<Boolean> IN_BATCH = ThreadLocal.withInitial(() -> Boolean.FALSE);
+
+    private static volatile int batchSize = 1;
+
+    private TransactionBatchUtil() {
+
+    }
+
+    /**
+     * @param size maximum number of units committed in one transaction, 1 disables batching
+     */
+    public static void setBatchSize(final int size) {
+        batchSize = Math.max(1, size);
+    }
+
+    public static int getBatchSize() {
+        return batchSize;
+    }
+
+    /**
+     * Sets up the units in batches of {@link #getBatchSize()} units, in the given order.
+     *
+     * @param units units to set up
+     * @param description description of the units for the log
+     * @param operation sets up a single unit
+     * @throws E if a unit fails when set up on its own
+     */
+    public static <T, E extends Exception> void forEach(final List<T> units, final String description,
+            final UnitOperation<? super T, E> operation) throws E {
+
+        int size = batchSize;
+        if (size <= 1 || units.size() <= 1 || IN_BATCH.get()) {
+            for (T unit : units) {
+                operation.apply(unit);
+            }
+            return;
+        }
+        for (int from = 0; from < units.size(); from += size) {
+            runBatch(units.subList(from, Math.min(from + size, units.size())), description, operation);
+        }
+    }
+
+    private static <T, E extends Exception> void runBatch(final List<T> batch, final String description,
+            final UnitOperation<? super T, E> operation) throws E {
+
+        if (batch.size() == 1) {
+            operation.apply(batch.get(0));
+            return;
+        }
+        SetupJournal.beginBatch();
+        IN_BATCH.set(Boolean.TRUE);
+        try {
+            TransactionInvokerUtil.invoke(TRANSACTION_CONFIG, () -> {
+                for (T unit : batch) {
+                    operation.apply(unit);
+                }
+                return null;
+            });
+            IN_BATCH.set(Boolean.FALSE);
+            SetupJournal.commitBatch();
+            return;
+        } catch (Error e) {
+            throw e;
+        } catch (Throwable t) {
+            LOG.warn("Batch of " + batch.size() + " " + description + " rolled back, retrying in smaller batches: "
+                    + t);
+        } finally {
+            IN_BATCH.set(Boolean.FALSE);
+            SetupJournal.discardBatch();
+        }
+        // entities looked up in the rolled back transaction may not exist any more
+        ResolutionCache.invalidateAll();
+        SiteGroupIdCache.invalidateAll();
+        FolderPathCache.clear();
+        CategoryTreeCache.clear();
+        int half = batch.size() / 2;
+        runBatch(batch.subList(0, half), description, operation);
+        runBatch(batch.subList(half, batch.size()), description, operation);
+    }
+
+    /**
+     * Sets up a single unit.
+     *
+     * @param <T> type of the unit
+     * @param <E> exception thrown by the operation
+     */
+    @FunctionalInterface
+    public interface UnitOperation<T, E extends Exception> {
+
+        void apply(T unit) throws E;
+    }
+}
@@ -28,7 +28,6 @@ import com.liferay.journal.service.JournalFolderLocalServiceUtil;
 import com.liferay.portal.kernel.exception.PortalException;
 import com.liferay.portal.kernel.exception.SystemException;
 import com.liferay.portal.kernel.service.ServiceContext;
-import java.util.List;
 
 public final class WebFolderUtil {
 
@@ -37,13 +36,21 @@ public final class WebFolderUtil {
     public static JournalFolder findWebFolder(final long companyId, final long groupId,
             final long userId, final String name, final String description,
             final boolean createIfNotExists) {
-        String[] folderPath = name.split("/");
-        JournalFolder foundFolder = null;
-        int count = 0;
+        String normalizedPath = FolderPathCache.normalize(name);
+        JournalFolder foundFolder = FolderPathCache.getWebFolder(groupId, normalizedPath);
+        if (foundFolder != null) {
+            return foundFolder;
+        }
+        String[] folderPath = normalizedPath.split("/");
+        StringBuilder path = new StringBuilder();
         Long parentId = 0L;
-        while (count < folderPath.length) {
+        // the first segment of the normalized path is empty
+        for (int count = 1; count < folderPath.length; count++) {
             String folder = folderPath[count];
-            if (!folder.equals("")) {
+            path.append('/').append(folder);
+            String currentPath = path.toString();
+            foundFolder = FolderPathCache.getWebFolder(groupId, currentPath);
+            if (foundFolder == null) {
                 foundFolder = findWebFolder(groupId, parentId, folder);
 
                 if (foundFolder == null && createIfNotExists) {
@@ -54,9 +61,9 @@ public final class WebFolderUtil {
                 if (foundFolder == null) {
                     break;
                 }
-                parentId = foundFolder.getFolderId();
+                FolderPathCache.putWebFolder(groupId, currentPath, foundFolder);
             }
-            count++;
+            parentId = foundFolder.getFolderId();
         }
         return foundFolder;
     }
@@ -64,15 +71,9 @@ public final class WebFolderUtil {
     public static JournalFolder findWebFolder(final Long groupId, final Long parentFolderId,
             final String name) {
         JournalFolder dir = null;
-        List<JournalFolder> dirs;
         try {
-            dirs = JournalFolderLocalServiceUtil.getFolders(groupId, parentFolderId);
-            for (JournalFolder jf : dirs) {
-                if (jf.getName() != null && jf.getName().equals(name)) {
-                    dir = jf;
-                    break;
-                }
-            }
+            SetupMetrics.serviceCall("JournalFolderLocalService.fetchFolder");
+            dir = JournalFolderLocalServiceUtil.fetchFolder(groupId, parentFolderId, name);
         } catch (SystemException e) {
             e.printStackTrace();
         }
@@ -88,6 +89,7 @@ public final class WebFolderUtil {
             serviceContext.setScopeGroupId(groupId);
             serviceContext.setCompanyId(companyId);
 
+            SetupMetrics.serviceCall("JournalFolderLocalService.addFolder");
             folder = JournalFolderLocalServiceUtil.addFolder(userId, groupId, parentFolderId, name,
                     description, serviceContext);
 